@@ -0,0 +1,103 @@
+package com.jad.offheap.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared map, which is read and written by several threads.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/19/14
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentMapBenchmark {
+
+    @Param({"ConcurrentOffHeapMap", "ConcurrentHashMap"})
+    public String implementation;
+
+    @Param({"100000"})
+    public int size;
+
+    @Param({"256"})
+    public int valueSize;
+
+    @Param({"UNIFORM", "SKEWED"})
+    public KeyDistribution distribution;
+
+    private Map<Integer, String> map;
+    private String[] values;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int[] probes;
+        private int cursor;
+
+        @Setup
+        public void setUp(ConcurrentMapBenchmark benchmark, ThreadParams thread) {
+            probes = benchmark.distribution.probes(benchmark.size, 42 + thread.getThreadIndex());
+        }
+
+        int nextKey() {
+            return probes[cursor++ & (KeyDistribution.PROBES - 1)];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        map = Implementations.newMap(implementation);
+        values = new String[]{Implementations.value(valueSize, 'a'), Implementations.value(valueSize, 'b')};
+        for (int key = 0; key < size; key++) {
+            map.put(key, values[0]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Implementations.close(map);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String get(Cursor cursor) {
+        return map.get(cursor.nextKey());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String mixedGet(Cursor cursor) {
+        return map.get(cursor.nextKey());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public String mixedPut(Cursor cursor) {
+        int key = cursor.nextKey();
+        return map.put(key, values[key & 1]);
+    }
+}
@@ -0,0 +1,72 @@
+package com.jad.offheap.benchmarks;
+
+import com.jad.offheap.collections.impl.ConcurrentOffHeapMap;
+import com.jad.offheap.collections.impl.OffHeapHashMap;
+import com.jad.offheap.collections.impl.OffHeapHashSet;
+import com.jad.offheap.collections.serializer.Serializers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collections under test by names, which are used as values of <tt>@Param</tt>.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/19/14
+ */
+
+final class Implementations {
+
+    private Implementations() {
+    }
+
+    static Map<Integer, String> newMap(String name) {
+        if ("OffHeapHashMap".equals(name)) {
+            return new OffHeapHashMap<Integer, String>(Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        }
+        if ("ConcurrentOffHeapMap".equals(name)) {
+            return new ConcurrentOffHeapMap<Integer, String>(Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        }
+        if ("HashMap".equals(name)) {
+            return new HashMap<Integer, String>();
+        }
+        if ("ConcurrentHashMap".equals(name)) {
+            return new ConcurrentHashMap<Integer, String>();
+        }
+        throw new IllegalArgumentException("Unknown map: " + name);
+    }
+
+    static Set<Integer> newSet(String name) {
+        if ("OffHeapHashSet".equals(name)) {
+            return new OffHeapHashSet<Integer>(Serializers.INT_SERIALIZER);
+        }
+        if ("HashSet".equals(name)) {
+            return new HashSet<Integer>();
+        }
+        throw new IllegalArgumentException("Unknown set: " + name);
+    }
+
+    /**
+     * Releases native memory of an off-heap collection at once, heap collections are left to GC.
+     */
+    static void close(Object collection) throws IOException {
+        if (collection instanceof Closeable) {
+            ((Closeable) collection).close();
+        }
+    }
+
+    /**
+     * ASCII string, which is serialized into <tt>length</tt> bytes.
+     */
+    static String value(int length, char c) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,52 @@
+package com.jad.offheap.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Order, in which benchmarks probe keys <tt>0..size-1</tt> of a filled collection.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/19/14
+ */
+
+public enum KeyDistribution {
+    SEQUENTIAL {
+        @Override
+        int key(Random random, int size, int n) {
+            return n % size;
+        }
+    },
+    UNIFORM {
+        @Override
+        int key(Random random, int size, int n) {
+            return random.nextInt(size);
+        }
+    },
+    /**
+     * 80% of probes hit 20% of keys, hot keys are spread over the whole range.
+     */
+    SKEWED {
+        @Override
+        int key(Random random, int size, int n) {
+            int hot = Math.max(size / 5, 1);
+            int key = random.nextInt(10) < 8 ? random.nextInt(hot) : random.nextInt(size);
+            return (int) ((key * 0x9E3779B1L) % size);
+        }
+    };
+
+    /**
+     * Number of precomputed probes, a power of two.
+     */
+    public static final int PROBES = 1 << 16;
+
+    abstract int key(Random random, int size, int n);
+
+    public int[] probes(int size, long seed) {
+        Random random = new Random(seed);
+        int[] probes = new int[PROBES];
+        for (int n = 0; n < PROBES; n++) {
+            probes[n] = key(random, size, n);
+        }
+        return probes;
+    }
+}
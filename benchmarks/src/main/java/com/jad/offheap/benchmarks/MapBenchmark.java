@@ -0,0 +1,99 @@
+package com.jad.offheap.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded operations on a map filled with keys <tt>0..size-1</tt>. Size of the map
+ * does not change: put replaces values by values of the same length, removed keys are put back.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/19/14
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+
+    @Param({"OffHeapHashMap", "ConcurrentOffHeapMap", "HashMap", "ConcurrentHashMap"})
+    public String implementation;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"16", "256", "2048"})
+    public int valueSize;
+
+    @Param({"SEQUENTIAL", "UNIFORM", "SKEWED"})
+    public KeyDistribution distribution;
+
+    private Map<Integer, String> map;
+    private String[] values;
+    private int[] probes;
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        map = Implementations.newMap(implementation);
+        values = new String[]{Implementations.value(valueSize, 'a'), Implementations.value(valueSize, 'b')};
+        for (int key = 0; key < size; key++) {
+            map.put(key, values[0]);
+        }
+        probes = distribution.probes(size, 42);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Implementations.close(map);
+    }
+
+    private int nextKey() {
+        return probes[cursor++ & (KeyDistribution.PROBES - 1)];
+    }
+
+    @Benchmark
+    public String get() {
+        return map.get(nextKey());
+    }
+
+    @Benchmark
+    public String put() {
+        return map.put(nextKey(), values[cursor & 1]);
+    }
+
+    @Benchmark
+    public String removeAndPut() {
+        int key = nextKey();
+        String value = map.remove(key);
+        map.put(key, values[cursor & 1]);
+        return value;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long iterate() {
+        long sum = 0;
+        for (Map.Entry<Integer, String> entry : map.entrySet()) {
+            sum += entry.getKey() + entry.getValue().length();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,116 @@
+package com.jad.offheap.benchmarks;
+
+import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.collections.serializer.DirectSerializer;
+import com.jad.offheap.collections.serializer.Serializer;
+import com.jad.offheap.collections.serializer.Serializers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializers of {@link Serializers}: byte array round trip and, the way collections store
+ * keys and values, writing to and reading from off-heap memory. Serializers, which are not
+ * {@link DirectSerializer}, go through a byte array there.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/19/14
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+
+    @Param({"INT", "LONG", "STRING", "SERIALIZABLE"})
+    public String serializer;
+
+    /**
+     * Length of strings, it is ignored by numeric serializers.
+     */
+    @Param({"16", "256"})
+    public int length;
+
+    private Serializer<Object> target;
+    private DirectSerializer<Object> direct;
+    private Object value;
+    private byte[] bytes;
+    private long address;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        if ("INT".equals(serializer)) {
+            target = (Serializer) Serializers.INT_SERIALIZER;
+            value = 123456789;
+        } else if ("LONG".equals(serializer)) {
+            target = (Serializer) Serializers.LONG_SERIALIZER;
+            value = 1234567890123L;
+        } else if ("STRING".equals(serializer)) {
+            target = (Serializer) Serializers.STRING_SERIALIZER;
+            value = Implementations.value(length, 'a');
+        } else if ("SERIALIZABLE".equals(serializer)) {
+            target = (Serializer) Serializers.SERIALIZABLE_SERIALIZER;
+            value = Implementations.value(length, 'a');
+        } else {
+            throw new IllegalArgumentException("Unknown serializer: " + serializer);
+        }
+        direct = target instanceof DirectSerializer ? (DirectSerializer<Object>) target : null;
+        bytes = target.serialize(value);
+        address = unsafe.allocateMemory(bytes.length);
+        unsafe.copyMemory(bytes, BYTE_ARRAY_OFFSET, null, address, bytes.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        unsafe.freeMemory(address);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return target.serialize(value);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return target.deserialize(bytes);
+    }
+
+    @Benchmark
+    public int write() {
+        if (direct != null) {
+            int size = direct.sizeOf(value);
+            direct.write(value, address);
+            return size;
+        }
+        byte[] array = target.serialize(value);
+        unsafe.copyMemory(array, BYTE_ARRAY_OFFSET, null, address, array.length);
+        return array.length;
+    }
+
+    @Benchmark
+    public Object read() {
+        if (direct != null) {
+            return direct.read(address, bytes.length);
+        }
+        byte[] array = new byte[bytes.length];
+        unsafe.copyMemory(null, address, array, BYTE_ARRAY_OFFSET, bytes.length);
+        return target.deserialize(array);
+    }
+}
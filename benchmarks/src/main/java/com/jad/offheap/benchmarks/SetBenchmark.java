@@ -0,0 +1,94 @@
+package com.jad.offheap.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded operations on a set filled with keys <tt>0..size-1</tt>.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/19/14
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetBenchmark {
+
+    @Param({"OffHeapHashSet", "HashSet"})
+    public String implementation;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"SEQUENTIAL", "UNIFORM", "SKEWED"})
+    public KeyDistribution distribution;
+
+    private Set<Integer> set;
+    private int[] probes;
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        set = Implementations.newSet(implementation);
+        for (int key = 0; key < size; key++) {
+            set.add(key);
+        }
+        probes = distribution.probes(size, 42);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Implementations.close(set);
+    }
+
+    private int nextKey() {
+        return probes[cursor++ & (KeyDistribution.PROBES - 1)];
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return set.contains(nextKey());
+    }
+
+    /**
+     * Probes a key, which is absent.
+     */
+    @Benchmark
+    public boolean containsMissing() {
+        return set.contains(nextKey() + size);
+    }
+
+    @Benchmark
+    public boolean removeAndAdd() {
+        int key = nextKey();
+        return set.remove(key) & set.add(key);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long iterate() {
+        long sum = 0;
+        for (Integer key : set) {
+            sum += key;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,318 @@
+package com.jad.offheap;
+
+import com.jad.offheap.allocator.MemoryAllocator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug mode of {@link UnsafeWrapper}: keeps every live native block with its size, owner and
+ * allocation stack trace, reports outstanding blocks and catches double (or foreign) frees.
+ *
+ * Enabled by <tt>-Doffheap.trackAllocations=true</tt>, then {@link #INSTANCE} tracks all memory,
+ * allocated through {@link UnsafeWrapper}, and outstanding blocks are printed to
+ * <tt>System.err</tt> at shutdown (unless <tt>-Doffheap.trackAllocations.reportOnExit=false</tt>).
+ * <tt>-Doffheap.trackAllocations.sampling=N</tt> takes stack trace of every N-th allocation only
+ * (1 by default). Owner is recorded for every block: it is passed explicitly
+ * ({@link UnsafeWrapper#allocateMemory(long, String)}), or it is the current owner of the thread,
+ * which collections set around allocations through their allocator (see {@link #enter(String)}
+ * and {@link #owned(MemoryAllocator, String)}). Stack trace is the last resort for blocks
+ * allocated out of any owner. When disabled, {@link UnsafeWrapper} does not call the tracker at all.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/26/14
+ */
+
+public class AllocationTracker {
+
+    public static final boolean ENABLED = Boolean.getBoolean("offheap.trackAllocations");
+
+    /**
+     * Tracker of {@link UnsafeWrapper}, null if tracking is disabled.
+     */
+    public static final AllocationTracker INSTANCE;
+
+    static {
+        if (ENABLED) {
+            INSTANCE = new AllocationTracker(Integer.getInteger("offheap.trackAllocations.sampling", 1));
+            if (!"false".equals(System.getProperty("offheap.trackAllocations.reportOnExit"))) {
+                Runtime.getRuntime().addShutdownHook(new Thread("offheap-allocation-report") {
+                    @Override
+                    public void run() {
+                        INSTANCE.report(System.err);
+                    }
+                });
+            }
+        } else {
+            INSTANCE = null;
+        }
+    }
+
+    private static final String OWNER_PACKAGE = "com.jad.offheap.collections.";
+
+    private static final ThreadLocal<String> OWNER = new ThreadLocal<String>();
+
+    /**
+     * Makes <tt>owner</tt> the owner of blocks, allocated by the current thread, until
+     * {@link #exit(String)} restores the returned previous owner. Calls nest.
+     */
+    public static String enter(String owner) {
+        String previous = OWNER.get();
+        OWNER.set(owner);
+        return previous;
+    }
+
+    public static void exit(String previous) {
+        OWNER.set(previous);
+    }
+
+    /**
+     * Owner of native memory of a collection instance: class name and identity hash code,
+     * as in {@link Object#toString()}, so blocks of different instances are reported apart.
+     */
+    public static String ownerOf(Object collection) {
+        return collection.getClass().getName() + '@' + Integer.toHexString(System.identityHashCode(collection));
+    }
+
+    /**
+     * Returns allocator, which makes <tt>owner</tt> the current owner during allocations of
+     * <tt>allocator</tt>. Allocator, which is already owned, gets the new owner (e.g. a copy
+     * of {@link MemoryAllocator#newInstance()} for a cloned collection). If tracking is disabled
+     * <tt>allocator</tt> is returned as is.
+     */
+    public static MemoryAllocator owned(MemoryAllocator allocator, String owner) {
+        if (!ENABLED) {
+            return allocator;
+        }
+        if (allocator instanceof OwnedAllocator) {
+            allocator = ((OwnedAllocator) allocator).allocator;
+        }
+        return new OwnedAllocator(allocator, owner);
+    }
+
+    private static final class OwnedAllocator implements MemoryAllocator {
+        private final MemoryAllocator allocator;
+        private final String owner;
+
+        OwnedAllocator(MemoryAllocator allocator, String owner) {
+            this.allocator = allocator;
+            this.owner = owner;
+        }
+
+        @Override
+        public long allocate(long size) {
+            String previous = enter(owner);
+            try {
+                return allocator.allocate(size);
+            } finally {
+                exit(previous);
+            }
+        }
+
+        @Override
+        public long reallocate(long address, long oldSize, long newSize) {
+            String previous = enter(owner);
+            try {
+                return allocator.reallocate(address, oldSize, newSize);
+            } finally {
+                exit(previous);
+            }
+        }
+
+        @Override
+        public void free(long address, long size) {
+            allocator.free(address, size);
+        }
+
+        @Override
+        public boolean releaseAll() {
+            return allocator.releaseAll();
+        }
+
+        @Override
+        public MemoryAllocator newInstance() {
+            return new OwnedAllocator(allocator.newInstance(), owner);
+        }
+    }
+
+    /**
+     * Live block.
+     */
+    public static final class Allocation {
+        private final long address;
+        private final long size;
+        private final String owner;
+        private final StackTraceElement[] stackTrace;
+
+        Allocation(long address, long size, String owner, StackTraceElement[] stackTrace) {
+            this.address = address;
+            this.size = size;
+            this.owner = owner;
+            this.stackTrace = stackTrace;
+        }
+
+        public long getAddress() {
+            return address;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Class name of the collection, which allocated the block, null if it is unknown:
+         * the block was allocated out of any owner and its stack trace was not sampled.
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Stack trace of allocation, null if it was not sampled.
+         */
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace;
+        }
+    }
+
+    private final int sampling;
+    private final ConcurrentHashMap<Long, Allocation> live = new ConcurrentHashMap<Long, Allocation>();
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * @param sampling stack trace is taken for every <tt>sampling</tt>-th allocation
+     */
+    public AllocationTracker(int sampling) {
+        if (sampling < 1) {
+            throw new IllegalArgumentException("Illegal sampling: " + sampling);
+        }
+        this.sampling = sampling;
+    }
+
+    /**
+     * Records block, returned by malloc, for the current owner of the thread.
+     * 0 address is ignored.
+     */
+    public void allocated(long address, long size) {
+        allocated(address, size, OWNER.get());
+    }
+
+    /**
+     * Records block, returned by malloc, 0 address is ignored.
+     *
+     * @param owner collection instance (see {@link #ownerOf(Object)}), null to take its class from
+     *              the stack trace (if sampled)
+     */
+    public void allocated(long address, long size, String owner) {
+        if (address == 0) {
+            return;
+        }
+        StackTraceElement[] stackTrace = null;
+        if (allocations.getAndIncrement() % sampling == 0) {
+            stackTrace = new Throwable().getStackTrace();
+            if (owner == null) {
+                owner = findOwner(stackTrace);
+            }
+        }
+        live.put(address, new Allocation(address, size, owner, stackTrace));
+    }
+
+    /**
+     * Checks the block before it is freed.
+     *
+     * @throws IllegalStateException if the block is not live: it is freed already or was not
+     *                               allocated through {@link UnsafeWrapper}
+     */
+    public void freeing(long address) {
+        if (live.remove(address) == null) {
+            throw new IllegalStateException("Double free or unknown address: 0x" + Long.toHexString(address));
+        }
+    }
+
+    /**
+     * Checks the block before it is reallocated, new block is recorded by {@link #reallocated}.
+     * Reallocation of 0 address is allocation.
+     */
+    public void reallocating(long address) {
+        if (address != 0) {
+            freeing(address);
+        }
+    }
+
+    public void reallocated(long address, long size) {
+        allocated(address, size);
+    }
+
+    /**
+     * Returns live blocks, the largest first.
+     */
+    public List<Allocation> outstanding() {
+        List<Allocation> result = new ArrayList<Allocation>(live.values());
+        Collections.sort(result, new Comparator<Allocation>() {
+            @Override
+            public int compare(Allocation a, Allocation b) {
+                return a.size < b.size ? 1 : a.size > b.size ? -1 : 0;
+            }
+        });
+        return result;
+    }
+
+    public int outstandingCount() {
+        return live.size();
+    }
+
+    public long outstandingBytes() {
+        long bytes = 0;
+        for (Allocation allocation : live.values()) {
+            bytes += allocation.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Prints totals of live blocks by owner and stack traces of sampled ones.
+     */
+    public void report(PrintStream out) {
+        List<Allocation> outstanding = outstanding();
+        long bytes = 0;
+        Map<String, long[]> byOwner = new TreeMap<String, long[]>();
+        for (Allocation allocation : outstanding) {
+            bytes += allocation.size;
+            String owner = allocation.owner == null ? "<unknown>" : allocation.owner;
+            long[] total = byOwner.get(owner);
+            if (total == null) {
+                byOwner.put(owner, total = new long[2]);
+            }
+            total[0]++;
+            total[1] += allocation.size;
+        }
+        out.println("Outstanding native allocations: " + outstanding.size() + " blocks, " + bytes + " bytes");
+        for (Map.Entry<String, long[]> entry : byOwner.entrySet()) {
+            out.println("  " + entry.getKey() + ": " + entry.getValue()[0] + " blocks, " + entry.getValue()[1] + " bytes");
+        }
+        for (Allocation allocation : outstanding) {
+            if (allocation.stackTrace != null) {
+                out.println("0x" + Long.toHexString(allocation.address) + ", " + allocation.size + " bytes, allocated at");
+                for (StackTraceElement element : allocation.stackTrace) {
+                    out.println("\tat " + element);
+                }
+            }
+        }
+    }
+
+    private static String findOwner(StackTraceElement[] stackTrace) {
+        for (StackTraceElement element : stackTrace) {
+            if (element.getClassName().startsWith(OWNER_PACKAGE)) {
+                return element.getClassName();
+            }
+        }
+        return null;
+    }
+}
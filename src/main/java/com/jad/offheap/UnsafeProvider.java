@@ -7,6 +7,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
 @SuppressWarnings("sunapi")
 public class UnsafeProvider {
@@ -20,7 +21,7 @@ public class UnsafeProvider {
         }
     }
 
-    public static Field getField(Class cls, String name) {
+    public static Field getField(Class<?> cls, String name) {
         try {
             Field f = cls.getDeclaredField(name);
             f.setAccessible(true);
@@ -30,7 +31,7 @@ public class UnsafeProvider {
         }
     }
 
-    public static Method getMethod(Class cls, String name, Class... params) {
+    public static Method getMethod(Class<?> cls, String name, Class<?>... params) {
         try {
             Method m = cls.getDeclaredMethod(name, params);
             m.setAccessible(true);
@@ -60,6 +61,23 @@ public class UnsafeProvider {
         return address;
     }
 
+    /**
+     * Registers release of native memory, which runs once: when the returned action is run,
+     * or after the holder becomes unreachable. Release MUST NOT refer the holder, otherwise
+     * the holder is never collected, and MUST NOT throw.
+     *
+     * @return action, which releases the memory at once, e.g. on close
+     */
+    public static Runnable registerCleaner(Object holder, Runnable release) {
+        final Cleaner cleaner = Cleaner.create(holder, release);
+        return new Runnable() {
+            @Override
+            public void run() {
+                cleaner.clean();
+            }
+        };
+    }
+
     public static long getByteBufferAddress(ByteBuffer buffer) {
         try {
             return getField(Buffer.class, "address").getLong(buffer);
@@ -67,4 +85,18 @@ public class UnsafeProvider {
             throw new IllegalStateException(e);
         }
     }
+
+    /**
+     * Unmaps the buffer immediately instead of waiting for GC. Buffer MUST NOT be used after that.
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        try {
+            Cleaner cleaner = (Cleaner) getMethod(buffer.getClass(), "cleaner").invoke(buffer);
+            if (cleaner != null) {
+                cleaner.clean();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -13,6 +13,13 @@ import java.security.ProtectionDomain;
 public class UnsafeWrapper {
     private Unsafe unsafe = UnsafeProvider.getUnsafe();
 
+    /**
+     * Allocations are tracked only if {@link AllocationTracker} is enabled,
+     * otherwise the checks are removed by JIT.
+     */
+    private static final boolean TRACKING = AllocationTracker.ENABLED;
+    private static final AllocationTracker tracker = AllocationTracker.INSTANCE;
+
     public static final UnsafeWrapper unsafeWrapper = new UnsafeWrapper();
 
     private UnsafeWrapper() {
@@ -31,7 +38,7 @@ public class UnsafeWrapper {
         unsafe.putDouble(o, i, v);
     }
 
-    public void ensureClassInitialized(Class aClass) {
+    public void ensureClassInitialized(Class<?> aClass) {
         unsafe.ensureClassInitialized(aClass);
     }
 
@@ -64,6 +71,9 @@ public class UnsafeWrapper {
     }
 
     public void freeMemory(long position) {
+        if (TRACKING && position != 0) {
+            tracker.freeing(position);
+        }
         unsafe.freeMemory(position);
     }
 
@@ -163,7 +173,7 @@ public class UnsafeWrapper {
         unsafe.putByteVolatile(o, position, b);
     }
 
-    public Class defineClass(String s, byte[] bytes, int i, int i2) {
+    public Class<?> defineClass(String s, byte[] bytes, int i, int i2) {
         return unsafe.defineClass(s, bytes, i, i2);
     }
 
@@ -175,7 +185,7 @@ public class UnsafeWrapper {
         return unsafe.getFloat(o, position);
     }
 
-    public Object allocateInstance(Class aClass) throws InstantiationException {
+    public Object allocateInstance(Class<?> aClass) throws InstantiationException {
         return unsafe.allocateInstance(aClass);
     }
 
@@ -188,6 +198,12 @@ public class UnsafeWrapper {
     }
 
     public long reallocateMemory(long position, long position2) {
+        if (TRACKING) {
+            tracker.reallocating(position);
+            long address = unsafe.reallocateMemory(position, position2);
+            tracker.reallocated(address, position2);
+            return address;
+        }
         return unsafe.reallocateMemory(position, position2);
     }
 
@@ -195,7 +211,7 @@ public class UnsafeWrapper {
         unsafe.putChar(position, c);
     }
 
-    public int arrayBaseOffset(Class aClass) {
+    public int arrayBaseOffset(Class<?> aClass) {
         return unsafe.arrayBaseOffset(aClass);
     }
 
@@ -220,6 +236,7 @@ public class UnsafeWrapper {
         unsafe.copyMemory(o, position, o2, position2, position3);
     }
 
+    @SuppressWarnings("deprecation")
     public void monitorEnter(Object o) {
         unsafe.monitorEnter(o);
     }
@@ -238,7 +255,7 @@ public class UnsafeWrapper {
     }
 
     @Deprecated
-    public Object staticFieldBase(Class aClass) {
+    public Object staticFieldBase(Class<?> aClass) {
         return unsafe.staticFieldBase(aClass);
     }
 
@@ -258,6 +275,7 @@ public class UnsafeWrapper {
         unsafe.putOrderedObject(o, position, o2);
     }
 
+    @SuppressWarnings("deprecation")
     public void monitorExit(Object o) {
         unsafe.monitorExit(o);
     }
@@ -382,7 +400,7 @@ public class UnsafeWrapper {
         unsafe.putChar(o, i, c);
     }
 
-    public int arrayIndexScale(Class aClass) {
+    public int arrayIndexScale(Class<?> aClass) {
         return unsafe.arrayIndexScale(aClass);
     }
 
@@ -399,9 +417,26 @@ public class UnsafeWrapper {
     }
 
     public long allocateMemory(long position) {
+        if (TRACKING) {
+            long address = unsafe.allocateMemory(position);
+            tracker.allocated(address, position);
+            return address;
+        }
         return unsafe.allocateMemory(position);
     }
 
+    /**
+     * Allocates memory, which {@link AllocationTracker} records for <tt>owner</tt>.
+     */
+    public long allocateMemory(long size, String owner) {
+        if (TRACKING) {
+            long address = unsafe.allocateMemory(size);
+            tracker.allocated(address, size, owner);
+            return address;
+        }
+        return unsafe.allocateMemory(size);
+    }
+
     public double getDoubleVolatile(Object o, long position) {
         return unsafe.getDoubleVolatile(o, position);
     }
@@ -414,7 +449,7 @@ public class UnsafeWrapper {
         unsafe.park(b, position);
     }
 
-    public Class defineClass(String s, byte[] bytes, int i, int i2, ClassLoader classLoader, ProtectionDomain protectionDomain) {
+    public Class<?> defineClass(String s, byte[] bytes, int i, int i2, ClassLoader classLoader, ProtectionDomain protectionDomain) {
         return unsafe.defineClass(s, bytes, i, i2, classLoader, protectionDomain);
     }
 
@@ -422,6 +457,7 @@ public class UnsafeWrapper {
         unsafe.putChar(o, position, c);
     }
 
+    @SuppressWarnings("deprecation")
     public boolean tryMonitorEnter(Object o) {
         return unsafe.tryMonitorEnter(o);
     }
@@ -0,0 +1,44 @@
+package com.jad.offheap.allocator;
+
+/**
+ * Source of native memory for off-heap entries.
+ *
+ * Implementations are not required to be thread safe, every collection owns
+ * its own allocator instance (see {@link #newInstance()}).
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 01/12/14
+ */
+
+public interface MemoryAllocator {
+
+    /**
+     * Allocates a block of at least <tt>size</tt> bytes. Content is not initialized.
+     */
+    long allocate(long size);
+
+    /**
+     * Resizes block, previously returned by {@link #allocate(long)}. Content is kept up to
+     * min(oldSize, newSize) bytes. Returned address may differ from the passed one.
+     */
+    long reallocate(long address, long oldSize, long newSize);
+
+    /**
+     * Returns block to the allocator. <tt>size</tt> MUST be the same as was requested on allocation.
+     */
+    void free(long address, long size);
+
+    /**
+     * Frees all blocks handed out by this allocator at once.
+     *
+     * @return <tt>false</tt> if allocator does not own its blocks, so every block
+     *         should be freed separately by {@link #free(long, long)}
+     */
+    boolean releaseAll();
+
+    /**
+     * Returns empty allocator with the same settings (used by clone).
+     * Stateless allocators may return themselves.
+     */
+    MemoryAllocator newInstance();
+}
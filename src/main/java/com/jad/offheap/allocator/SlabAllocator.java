@@ -0,0 +1,198 @@
+package com.jad.offheap.allocator;
+
+import com.jad.offheap.UnsafeWrapper;
+
+import static com.jad.offheap.collections.utils.Utils.checkPositive;
+
+/**
+ * Arena allocator for small blocks.
+ *
+ * Blocks are rounded up to a size class (multiple of 8 bytes) and bump-allocated
+ * from big chunks. Freed blocks go to per-class free lists (next pointer is kept in
+ * the first 8 bytes of a free block) and are reused by following allocations of
+ * the same class. Blocks bigger than <tt>maxSlotSize</tt> are allocated separately and
+ * linked in a list, so {@link #releaseAll()} frees everything in O(chunks).
+ *
+ * Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 01/12/14
+ */
+
+public class SlabAllocator implements MemoryAllocator {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_SLOT_SIZE = 1024;
+
+    private static final int ALIGN_SHIFT = 3;
+    private static final int ALIGN = 1 << ALIGN_SHIFT;
+
+    /**
+     * Chunk header: address of the next chunk, padded to keep blocks 16 bytes aligned.
+     */
+    private static final int CHUNK_HEADER = 16;
+
+    /**
+     * Large block header: previous and next large blocks.
+     */
+    private static final int LARGE_HEADER = 16;
+    private static final int LARGE_PREV = 0;
+    private static final int LARGE_NEXT = 8;
+
+    private final int chunkSize;
+    private final int maxSlotSize;
+
+    private final long[] freeLists;
+
+    private long chunks;
+    private long cursor;
+    private long limit;
+
+    private long largeBlocks;
+
+    private long reservedBytes;
+
+    public SlabAllocator() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_SLOT_SIZE);
+    }
+
+    public SlabAllocator(int chunkSize, int maxSlotSize) {
+        checkPositive(chunkSize, "chunkSize");
+        checkPositive(maxSlotSize, "maxSlotSize");
+        maxSlotSize = roundUp(maxSlotSize);
+        if (chunkSize < CHUNK_HEADER + maxSlotSize) {
+            throw new IllegalArgumentException("Chunk size " + chunkSize + " can not hold slot of size " + maxSlotSize);
+        }
+        this.chunkSize = chunkSize;
+        this.maxSlotSize = maxSlotSize;
+        this.freeLists = new long[(maxSlotSize >>> ALIGN_SHIFT) + 1];
+    }
+
+    private static int roundUp(long size) {
+        return (int) ((size + ALIGN - 1) & ~(ALIGN - 1));
+    }
+
+    private static int sizeClass(long size) {
+        return (int) ((size + ALIGN - 1) >>> ALIGN_SHIFT);
+    }
+
+    @Override
+    public long allocate(long size) {
+        if (size > maxSlotSize) {
+            return allocateLarge(size);
+        }
+        int sizeClass = sizeClass(size);
+        if (sizeClass == 0) {
+            sizeClass = 1;
+        }
+        long block = freeLists[sizeClass];
+        if (block != 0) {
+            freeLists[sizeClass] = unsafe.getLong(block);
+            return block;
+        }
+        int slotSize = sizeClass << ALIGN_SHIFT;
+        if (cursor + slotSize > limit) {
+            newChunk();
+        }
+        block = cursor;
+        cursor += slotSize;
+        return block;
+    }
+
+    private void newChunk() {
+        long chunk = unsafe.allocateMemory(chunkSize);
+        unsafe.putLong(chunk, chunks);
+        chunks = chunk;
+        cursor = chunk + CHUNK_HEADER;
+        limit = chunk + chunkSize;
+        reservedBytes += chunkSize;
+    }
+
+    private long allocateLarge(long size) {
+        long block = unsafe.allocateMemory(LARGE_HEADER + size);
+        unsafe.putLong(block + LARGE_PREV, 0);
+        unsafe.putLong(block + LARGE_NEXT, largeBlocks);
+        if (largeBlocks != 0) {
+            unsafe.putLong(largeBlocks + LARGE_PREV, block);
+        }
+        largeBlocks = block;
+        reservedBytes += LARGE_HEADER + size;
+        return block + LARGE_HEADER;
+    }
+
+    private void freeLarge(long address, long size) {
+        long block = address - LARGE_HEADER;
+        long prev = unsafe.getLong(block + LARGE_PREV);
+        long next = unsafe.getLong(block + LARGE_NEXT);
+        if (prev != 0) {
+            unsafe.putLong(prev + LARGE_NEXT, next);
+        } else {
+            largeBlocks = next;
+        }
+        if (next != 0) {
+            unsafe.putLong(next + LARGE_PREV, prev);
+        }
+        unsafe.freeMemory(block);
+        reservedBytes -= LARGE_HEADER + size;
+    }
+
+    @Override
+    public long reallocate(long address, long oldSize, long newSize) {
+        if (oldSize <= maxSlotSize && newSize <= maxSlotSize
+                && Math.max(sizeClass(oldSize), 1) == Math.max(sizeClass(newSize), 1)) {
+            return address;
+        }
+        long newAddress = allocate(newSize);
+        unsafe.copyMemory(address, newAddress, Math.min(oldSize, newSize));
+        free(address, oldSize);
+        return newAddress;
+    }
+
+    @Override
+    public void free(long address, long size) {
+        if (size > maxSlotSize) {
+            freeLarge(address, size);
+            return;
+        }
+        int sizeClass = sizeClass(size);
+        if (sizeClass == 0) {
+            sizeClass = 1;
+        }
+        unsafe.putLong(address, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+    }
+
+    @Override
+    public boolean releaseAll() {
+        while (chunks != 0) {
+            long next = unsafe.getLong(chunks);
+            unsafe.freeMemory(chunks);
+            chunks = next;
+        }
+        while (largeBlocks != 0) {
+            long next = unsafe.getLong(largeBlocks + LARGE_NEXT);
+            unsafe.freeMemory(largeBlocks);
+            largeBlocks = next;
+        }
+        cursor = 0;
+        limit = 0;
+        reservedBytes = 0;
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public MemoryAllocator newInstance() {
+        return new SlabAllocator(chunkSize, maxSlotSize);
+    }
+
+    /**
+     * Native memory, currently held by this allocator (chunks and large blocks).
+     */
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+}
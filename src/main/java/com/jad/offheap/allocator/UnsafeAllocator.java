@@ -0,0 +1,44 @@
+package com.jad.offheap.allocator;
+
+import com.jad.offheap.UnsafeWrapper;
+
+/**
+ * Default allocator: every block is a separate malloc.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 01/12/14
+ */
+
+public class UnsafeAllocator implements MemoryAllocator {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    public static final UnsafeAllocator INSTANCE = new UnsafeAllocator();
+
+    private UnsafeAllocator() {
+    }
+
+    @Override
+    public long allocate(long size) {
+        return unsafe.allocateMemory(size);
+    }
+
+    @Override
+    public long reallocate(long address, long oldSize, long newSize) {
+        return unsafe.reallocateMemory(address, newSize);
+    }
+
+    @Override
+    public void free(long address, long size) {
+        unsafe.freeMemory(address);
+    }
+
+    @Override
+    public boolean releaseAll() {
+        return false;
+    }
+
+    @Override
+    public MemoryAllocator newInstance() {
+        return this;
+    }
+}
@@ -0,0 +1,14 @@
+package com.jad.offheap.collections.function;
+
+/**
+ * Computes a value from two arguments, e.g. the new value from the key and the old value
+ * in {@code computeIfPresentAtomic}, or from two values in {@code mergeAtomic} of maps.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/03/14
+ */
+
+public interface BiFunction<T, U, R> {
+
+    R apply(T t, U u);
+}
@@ -0,0 +1,13 @@
+package com.jad.offheap.collections.function;
+
+/**
+ * Computes a value for the key, e.g. in {@code computeIfAbsentAtomic} of maps.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/03/14
+ */
+
+public interface Function<T, R> {
+
+    R apply(T t);
+}
@@ -0,0 +1,88 @@
+package com.jad.offheap.collections.hash;
+
+import com.jad.offheap.UnsafeWrapper;
+
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+
+/**
+ * Base of seeded hash functions: both arrays and native memory are read by unsafe
+ * (array is the base object, native memory has null base), words are little-endian
+ * on any platform, so hashes do not depend on the hardware.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/04/14
+ */
+
+public abstract class AbstractHashFunction implements HashFunction {
+    protected static final UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    protected final long seed;
+
+    protected AbstractHashFunction(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Unpredictable seed, it defends maps against hash flooding (keys, crafted to collide).
+     * Stored hashes are valid only for the same seed, so the seed has to be kept with
+     * snapshots of the map.
+     */
+    public static long randomSeed() {
+        return new SecureRandom().nextLong();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public long hash(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > bytes.length - length)
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length);
+        return hashRange(bytes, BYTE_ARRAY_OFFSET + offset, length);
+    }
+
+    @Override
+    public long hashMemory(long address, long length) {
+        if (length < 0)
+            throw new IllegalArgumentException("Illegal length: " + length);
+        return hashRange(null, address, length);
+    }
+
+    /**
+     * Hashes bytes at <tt>offset</tt> of <tt>base</tt>, or at address <tt>offset</tt> if base is null.
+     */
+    protected abstract long hashRange(Object base, long offset, long length);
+
+    protected static long getLong(Object base, long offset) {
+        long v = unsafe.getLong(base, offset);
+        return BIG_ENDIAN ? Long.reverseBytes(v) : v;
+    }
+
+    protected static long getUnsignedInt(Object base, long offset) {
+        int v = unsafe.getInt(base, offset);
+        return (BIG_ENDIAN ? Integer.reverseBytes(v) : v) & 0xFFFFFFFFL;
+    }
+
+    protected static long getUnsignedByte(Object base, long offset) {
+        return unsafe.getByte(base, offset) & 0xFFL;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o != null && o.getClass() == getClass() && ((AbstractHashFunction) o).seed == seed;
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode() * 31 + (int) (seed ^ (seed >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(seed=" + seed + ")";
+    }
+}
@@ -0,0 +1,22 @@
+package com.jad.offheap.collections.hash;
+
+/**
+ * 64-bit hash of bytes, e.g. of serialized keys, see
+ * {@link com.jad.offheap.collections.impl.OffHeapHashMap#setHashFunction(HashFunction)}.
+ * Unlike <tt>hashCode()</tt>, it depends on bytes only, so it is stable across JVM restarts
+ * (for the same seed) and does not inherit clustering of weak <tt>hashCode()</tt> implementations.
+ * Implementations are thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/04/14
+ */
+
+public interface HashFunction {
+
+    long hash(byte[] bytes, int offset, int length);
+
+    /**
+     * Hashes <tt>length</tt> bytes of native memory at <tt>address</tt>.
+     */
+    long hashMemory(long address, long length);
+}
@@ -0,0 +1,85 @@
+package com.jad.offheap.collections.hash;
+
+/**
+ * MurmurHash3 x64 128-bit (https://github.com/aappleby/smhasher), returns the first 64 bits,
+ * same as <tt>Hashing.murmur3_128(seed).hashBytes(bytes).asLong()</tt> of Guava for
+ * non-negative int seeds (the reference takes 32-bit seed, the whole long is used here).
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/04/14
+ */
+
+public final class Murmur3 extends AbstractHashFunction {
+    private static final long C1 = 0x87C37B91114253D5L;
+    private static final long C2 = 0x4CF5AD432745937FL;
+
+    public Murmur3() {
+        this(0);
+    }
+
+    public Murmur3(long seed) {
+        super(seed);
+    }
+
+    @Override
+    protected long hashRange(Object base, long offset, long length) {
+        long h1 = seed;
+        long h2 = seed;
+        long end = offset + length;
+        for (; offset + 16 <= end; offset += 16) {
+            h1 ^= mixK1(getLong(base, offset));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52DCE729;
+
+            h2 ^= mixK2(getLong(base, offset + 8));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495AB5;
+        }
+
+        int tail = (int) (end - offset);
+        if (tail > 0) {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | getUnsignedByte(base, offset + i);
+            }
+            for (int i = tail - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | getUnsignedByte(base, offset + i);
+            }
+            h1 ^= mixK1(k1);
+            h2 ^= mixK2(k2);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,84 @@
+package com.jad.offheap.collections.hash;
+
+/**
+ * xxHash64 (https://github.com/Cyan4973/xxHash), the fastest of bundled functions on long keys.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/04/14
+ */
+
+public final class XxHash64 extends AbstractHashFunction {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    public XxHash64() {
+        this(0);
+    }
+
+    public XxHash64(long seed) {
+        super(seed);
+    }
+
+    @Override
+    protected long hashRange(Object base, long offset, long length) {
+        long end = offset + length;
+        long h;
+        if (length >= 32) {
+            long limit = end - 32;
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            do {
+                v1 = round(v1, getLong(base, offset));
+                v2 = round(v2, getLong(base, offset + 8));
+                v3 = round(v3, getLong(base, offset + 16));
+                v4 = round(v4, getLong(base, offset + 24));
+                offset += 32;
+            } while (offset <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += length;
+
+        for (; offset + 8 <= end; offset += 8) {
+            h ^= round(0, getLong(base, offset));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (offset + 4 <= end) {
+            h ^= getUnsignedInt(base, offset) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+        for (; offset < end; offset++) {
+            h ^= getUnsignedByte(base, offset) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long v) {
+        acc ^= round(0, v);
+        return acc * PRIME1 + PRIME4;
+    }
+}
@@ -0,0 +1,154 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.UnsafeWrapper;
+
+import java.util.Arrays;
+
+/**
+ * Number of buckets by length of their chains, updated when a chain changes. Length of every
+ * chain is kept too, as an int per bucket in native memory, so an update does not walk the chain.
+ * During incremental rehash lengths of the old table are kept until it is released.
+ * Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/12/14
+ */
+
+final class ChainHistogram implements Runnable {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    private final String owner;
+    private long[] counts = new long[8];
+    private long lengths;
+    private long buckets;
+    private long oldLengths;
+    private long oldBuckets;
+
+    /**
+     * @param owner owner of chain lengths for {@link com.jad.offheap.AllocationTracker}
+     */
+    ChainHistogram(long emptyBuckets, String owner) {
+        this.owner = owner;
+        reset(emptyBuckets);
+    }
+
+    /**
+     * Forgets all chains, the table has <tt>emptyBuckets</tt> empty buckets.
+     */
+    void reset(long emptyBuckets) {
+        run();
+        Arrays.fill(counts, 0);
+        counts[0] = emptyBuckets;
+        lengths = allocate(emptyBuckets);
+        buckets = emptyBuckets;
+    }
+
+    private long allocate(long buckets) {
+        long bytes = buckets << 2;
+        long address = unsafe.allocateMemory(bytes, owner);
+        if (address <= 0) {
+            throw new OutOfMemoryError();
+        }
+        unsafe.setMemory(address, bytes, (byte) 0);
+        return address;
+    }
+
+    /**
+     * Entry was linked to the chain of bucket <tt>i</tt> of the table.
+     */
+    void added(long i) {
+        long address = lengths + (i << 2);
+        int length = unsafe.getInt(address);
+        unsafe.putInt(address, length + 1);
+        changed(length, length + 1);
+    }
+
+    /**
+     * Entry was unlinked from the chain of bucket <tt>i</tt> of the table.
+     */
+    void removed(long i) {
+        long address = lengths + (i << 2);
+        int length = unsafe.getInt(address);
+        unsafe.putInt(address, length - 1);
+        changed(length, length - 1);
+    }
+
+    /**
+     * Entry was unlinked from the chain of bucket <tt>j</tt> of the old table.
+     */
+    void removedOld(long j) {
+        long address = oldLengths + (j << 2);
+        int length = unsafe.getInt(address);
+        unsafe.putInt(address, length - 1);
+        changed(length, length - 1);
+    }
+
+    /**
+     * Chain of bucket <tt>j</tt> of the old table was moved to the table, entry by entry
+     * (see {@link #added(long)}).
+     */
+    void migrated(long j) {
+        long address = oldLengths + (j << 2);
+        int length = unsafe.getInt(address);
+        unsafe.putInt(address, 0);
+        changed(length, 0);
+    }
+
+    /**
+     * Incremental rehash to a table of <tt>newBuckets</tt> buckets started, the table is old now.
+     */
+    void rehashStarted(long newBuckets) {
+        oldLengths = lengths;
+        oldBuckets = buckets;
+        lengths = allocate(newBuckets);
+        buckets = newBuckets;
+        counts[0] += newBuckets;
+    }
+
+    /**
+     * Incremental rehash finished, all buckets of the old table are empty.
+     */
+    void rehashFinished() {
+        counts[0] -= oldBuckets;
+        unsafe.freeMemory(oldLengths);
+        oldLengths = 0;
+        oldBuckets = 0;
+    }
+
+    /**
+     * Chain of a bucket was <tt>from</tt> entries long, now it is <tt>to</tt>.
+     */
+    private void changed(int from, int to) {
+        if (to >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length << 1, to + 1));
+        }
+        counts[from]--;
+        counts[to]++;
+    }
+
+    long[] toArray() {
+        int length = counts.length;
+        while (length > 1 && counts[length - 1] == 0) {
+            length--;
+        }
+        return Arrays.copyOf(counts, length);
+    }
+
+    /**
+     * Releases lengths of chains, the histogram is attached to memory of the collection,
+     * and it is released on disabling as well. {@link #reset(long)} allocates them again.
+     */
+    @Override
+    public void run() {
+        if (lengths != 0) {
+            unsafe.freeMemory(lengths);
+            lengths = 0;
+            buckets = 0;
+        }
+        if (oldLengths != 0) {
+            unsafe.freeMemory(oldLengths);
+            oldLengths = 0;
+            oldBuckets = 0;
+        }
+    }
+}
@@ -1,16 +1,31 @@
 package com.jad.offheap.collections.impl;
 
+import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.allocator.UnsafeAllocator;
+import com.jad.offheap.collections.function.BiFunction;
+import com.jad.offheap.collections.function.Function;
+import com.jad.offheap.collections.hash.HashFunction;
+import com.jad.offheap.collections.metrics.CollectionMetrics;
+import com.jad.offheap.collections.metrics.MetricsSource;
 import com.jad.offheap.collections.serializer.Serializer;
 
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author: Ilya Krokhmalyov YC14IK1
  * @since: 11/10/13
  */
 
-public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
+public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, Closeable, MetricsSource {
 
     /**
      * The default initial capacity for this table,
@@ -52,6 +67,12 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
      */
     static final int RETRIES_BEFORE_LOCK = 2;
 
+    /**
+     * Number of entries, which a thread of parallel load collects for a segment
+     * before it puts them under one write lock.
+     */
+    static final int LOAD_BATCH = 512;
+
     final int segmentMask;
 
     /**                       getKvEntry
@@ -61,6 +82,8 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
 
     private Segment<K, V>[] segments;
 
+    private final Readers readers = new Readers();
+
     public static final Serializer<byte[]> STUB = new Serializer<byte[]>() {
         @Override
         public byte[] serialize(byte[] key) {
@@ -73,54 +96,307 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
         }
     };
 
-    private static class Segment<N, P> extends Semaphore {
-        private static final int MAX_PERMITS = 1024;
+    /**
+     * Segment is guarded by a lock for writers, readers do not lock it and do not write
+     * shared memory. Reader remembers sequence number, which writers make odd while they
+     * modify the segment, copies bytes of the entry and validates that the number is not
+     * changed. After a few failed attempts reader falls back to the lock.
+     *
+     * Memory, which optimistic reader can still dereference (removed entries, entries
+     * moved by value update, replaced tables), is not freed at once. It is retired with
+     * current epoch of the segment and freed when no reader, which entered the segment
+     * in that epoch, is still inside (see {@link Readers}).
+     */
+    private static class Segment<N, P> extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        private static final int OPTIMISTIC_ATTEMPTS = 2;
 
+        private final SegmentMap<N, P> map;
 
-        private OffHeapHashMap<N, P> map;
+        /**
+         * Even while the segment is not modified, odd during modification.
+         */
+        private volatile int seq;
 
-        public Segment(int initCap, float loadf, Serializer<N> keyS, Serializer<P> valSer) {
-            super(MAX_PERMITS, true);
-            map = new OffHeapHashMap<N, P>(initCap, loadf, keyS, valSer);
+        public Segment(int initCap, float loadf, Serializer<N> keyS, Serializer<P> valSer, int index, Readers readers,
+                       long maxBytes, EvictionPolicy policy) {
+            map = new SegmentMap<N, P>(initCap, loadf, keyS, valSer, index, readers, maxBytes, policy);
+        }
+
+        private void beginWrite() {
+            lock();
+            seq++;
+        }
+
+        private void endWrite() {
+            seq++;
+            unlock();
+        }
+
+        /**
+         * Counts reads, recorded by optimistic readers for TinyLFU, when the buffer is full and
+         * the segment is not locked; otherwise the next eviction counts them. Draining touches
+         * only the sketch, so it does not change the sequence.
+         */
+        private void drainReads() {
+            if (map.drainReads && tryLock()) {
+                try {
+                    map.drainReads = false;
+                    map.lfu.drainReads();
+                } finally {
+                    unlock();
+                }
+            }
         }
 
         public P get(Object key, int hash) {
-            acquireUninterruptibly();
+            Reader reader = map.readers.get();
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                byte[] value;
+                map.enter(reader);
+                int s = seq;
+                try {
+                    if ((s & 1) != 0) {
+                        continue;
+                    }
+                    value = map.getValueBytes(key, hash);
+                } catch (RuntimeException e) {
+                    // raced with a writer, or real failure, which repeats under the lock
+                    continue;
+                } finally {
+                    // volatile write, keeps reads above from moving below the validation
+                    map.exit(reader);
+                }
+                if (seq == s) {
+                    drainReads();
+                    return value == null ? null : map.valueFromBytes(value);
+                }
+            }
+            lock();
             try {
                 return map.get(key, hash);
             } finally {
-                release();
+                unlock();
+            }
+        }
+
+        /**
+         * @param ttl time to live in ms, or 0 for the default one
+         */
+        public P put(N key, P val, int hash, long ttl) {
+            beginWrite();
+            try {
+                P old = map.put(key, val, hash, ttl);
+                map.evict();
+                return old;
+            } finally {
+                endWrite();
+            }
+        }
+
+        public P putIfAbsent(N key, P val, int hash) {
+            beginWrite();
+            try {
+                P current = map.putIfAbsent(key, val, hash);
+                map.evict();
+                return current;
+            } finally {
+                endWrite();
+            }
+        }
+
+        public P replace(N key, P val, int hash) {
+            beginWrite();
+            try {
+                P old = map.replace(key, val, hash);
+                map.evict();
+                return old;
+            } finally {
+                endWrite();
+            }
+        }
+
+        public boolean replace(N key, P oldVal, P newVal, int hash) {
+            beginWrite();
+            try {
+                boolean replaced = map.replace(key, oldVal, newVal, hash);
+                map.evict();
+                return replaced;
+            } finally {
+                endWrite();
+            }
+        }
+
+        public boolean remove(Object key, Object val, int hash) {
+            beginWrite();
+            try {
+                return map.remove(key, val, hash);
+            } finally {
+                endWrite();
+            }
+        }
+
+        public P computeIfAbsentAtomic(N key, Function<? super N, ? extends P> function, int hash) {
+            beginWrite();
+            try {
+                P value = map.computeIfAbsentAtomic(key, function, hash);
+                map.evict();
+                return value;
+            } finally {
+                endWrite();
             }
         }
 
-        public P put(N key, P val, int hash) {
-            acquireUninterruptibly(MAX_PERMITS);
+        public P computeIfPresentAtomic(N key, BiFunction<? super N, ? super P, ? extends P> function, int hash) {
+            beginWrite();
             try {
-                return map.put(key, val, hash);
+                P value = map.computeIfPresentAtomic(key, function, hash);
+                map.evict();
+                return value;
             } finally {
-                release(MAX_PERMITS);
+                endWrite();
+            }
+        }
+
+        public P mergeAtomic(N key, P val, BiFunction<? super P, ? super P, ? extends P> function, int hash) {
+            beginWrite();
+            try {
+                P value = map.mergeAtomic(key, val, function, hash);
+                map.evict();
+                return value;
+            } finally {
+                endWrite();
+            }
+        }
+
+        public long updateLong(N key, int hash, long operand, boolean add) {
+            beginWrite();
+            try {
+                long old = map.updateLong(key, hash, operand, add);
+                map.evict();
+                return old;
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * Sizes the table for <tt>count</tt> more mappings at once.
+         */
+        public void reserve(long count) {
+            beginWrite();
+            try {
+                map.ensureCapacity(map.sizeLong() + count);
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * Puts a batch of a parallel load under one write lock, with hashes computed
+         * by the loading thread.
+         */
+        public void load(LoadBatch<N, P> batch, boolean uniqueKeys) {
+            beginWrite();
+            try {
+                map.ensureCapacity(map.sizeLong() + batch.count);
+                for (int i = 0; i < batch.count; i++) {
+                    if (uniqueKeys) {
+                        map.putUnique(batch.keys[i], batch.values[i], batch.hashes[i]);
+                    } else {
+                        map.put(batch.keys[i], batch.values[i], batch.hashes[i], 0);
+                    }
+                    map.evict();
+                }
+            } finally {
+                endWrite();
+            }
+        }
+
+        public void setExpireAfterWrite(long duration, TimeUnit unit) {
+            beginWrite();
+            try {
+                map.setExpireAfterWrite(duration, unit);
+            } finally {
+                endWrite();
+            }
+        }
+
+        public void setExpireAfterAccess(long duration, TimeUnit unit) {
+            beginWrite();
+            try {
+                map.setExpireAfterAccess(duration, unit);
+            } finally {
+                endWrite();
             }
         }
 
         public boolean contains(Object key, int hash) {
-            acquireUninterruptibly();
+            Reader reader = map.readers.get();
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                boolean found;
+                map.enter(reader);
+                int s = seq;
+                try {
+                    if ((s & 1) != 0) {
+                        continue;
+                    }
+                    found = map.getEntry(key, hash) > 0;
+                } catch (RuntimeException e) {
+                    continue;
+                } finally {
+                    map.exit(reader);
+                }
+                if (seq == s) {
+                    drainReads();
+                    return found;
+                }
+            }
+            lock();
             try {
                 return map.getEntry(key, hash) > 0;
             } finally {
-                release();
+                unlock();
             }
         }
 
         public void clear() {
-            map.clear();
+            beginWrite();
+            try {
+                map.clear();
+            } finally {
+                endWrite();
+            }
+        }
+
+        public void close() {
+            beginWrite();
+            try {
+                map.close();
+            } finally {
+                endWrite();
+            }
         }
 
         public P remove(Object key, int hash) {
-            acquireUninterruptibly(MAX_PERMITS);
+            beginWrite();
             try {
                 return map.remove(key, hash);
             } finally {
-                release(MAX_PERMITS);
+                endWrite();
+            }
+        }
+
+        /**
+         * Removes the mapping without a step of incremental rehash, which would move
+         * buckets under the iterator.
+         */
+        private void removeForIterator(Object key, int hash) {
+            beginWrite();
+            try {
+                map.free(map.removeEntryForKey(key, hash));
+            } finally {
+                endWrite();
             }
         }
 
@@ -128,6 +404,74 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
             return map.keySet();
         }
 
+        public void setIncrementalRehash(int bucketsPerStep) {
+            beginWrite();
+            try {
+                map.setIncrementalRehash(bucketsPerStep);
+            } finally {
+                endWrite();
+            }
+        }
+
+        public void setChainHistogram(boolean enabled) {
+            beginWrite();
+            try {
+                map.setChainHistogram(enabled);
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * Step of incremental rehash, if the segment is not locked by somebody else.
+         * Returns true, if rehash is still in progress.
+         */
+        public boolean rehashStep(int buckets) {
+            if (!map.isRehashing() || !tryLock()) {
+                return map.isRehashing();
+            }
+            seq++;
+            try {
+                return map.rehashStep(buckets);
+            } finally {
+                endWrite();
+            }
+        }
+
+        public void setKeyBytesComparison(boolean keyBytesComparison) {
+            beginWrite();
+            try {
+                map.setKeyBytesComparison(keyBytesComparison);
+            } finally {
+                endWrite();
+            }
+        }
+
+        public void setHashFunction(HashFunction hashFunction) {
+            beginWrite();
+            try {
+                map.setHashFunction(hashFunction);
+            } finally {
+                endWrite();
+            }
+        }
+
+        HashFunction getHashFunction() {
+            return map.getHashFunction();
+        }
+
+        /**
+         * Hash of the key for both segment and bucket index: serialized key is hashed
+         * by the hash function of the map, if it is set.
+         */
+        int hashOf(Object key) {
+            if (key != null && map.getHashFunction() != null) {
+                // segments are compact maps, hashes are ints
+                return (int) map.hashOf(key);
+            }
+            return hash(key.hashCode());
+        }
+
         private class HashIterator implements Iterator<Entry<N, P>> {
             private int tablePosition = 0;
             private int currentNum = 0;
@@ -139,18 +483,22 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
                 if (next != null) {
                     return true;
                 }
-                acquireUninterruptibly();
+                lock();
                 try {
-                    while (tablePosition < map.tableLength) {
-                        if ((next = map.getEntryAtPosition(tablePosition, currentNum++)) != null ) {
-                            return true;
+                    while (tablePosition < map.bucketCount()) {
+                        OffHeapHashMap<N, P>.Entry entry = map.getEntryAtPosition(tablePosition, currentNum++);
+                        if (entry != null) {
+                            if (!map.isExpired(entry.getPosition())) {
+                                next = entry;
+                                return true;
+                            }
                         } else {
                             tablePosition++;
                             currentNum = 0;
                         }
                     }
                 } finally {
-                    release();
+                    unlock();
                 }
                 return false;
             }
@@ -169,7 +517,7 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
             public void remove() {
                 if (current != null) {
                     N key = current.getKey();   //TODO without deserialize;
-                    map.remove(key, hash(key.hashCode()) );
+                    Segment.this.removeForIterator(key, hashOf(key));
                     currentNum--;
                 } else {
                     throw new IllegalStateException();
@@ -181,13 +529,466 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
             return new HashIterator();
         }
 
-        public int size() {
-            acquireUninterruptibly();
+        public long size() {
+            lock();
+            try {
+                return map.sizeLong();
+            } finally {
+                unlock();
+            }
+        }
+
+        public long bytes() {
+            lock();
             try {
-                return map.size();
+                return map.entryBytes;
             } finally {
-                release();
+                unlock();
+            }
+        }
+
+        public CollectionMetrics metrics() {
+            lock();
+            try {
+                return map.getMetrics();
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * Map of a segment, which defers release of memory until optimistic readers leave it.
+     * All methods, except {@link #enter(Reader)} and {@link #exit(Reader)}, are called by
+     * the lock holder.
+     *
+     * Segment counts bytes of its entries (header, key and value) and, if it has a budget,
+     * evicts entries chosen by {@link EvictionPolicy} after every put. Optimistic readers
+     * only mark entries as accessed, it is a plain write into the entry header (hits and misses
+     * of TinyLFU go to its read buffer): the entry is not freed while the reader is inside,
+     * and a lost mark is harmless.
+     */
+    private static final class SegmentMap<N, P> extends OffHeapHashMap<N, P> {
+        private static final int MIN_RECLAIM_THRESHOLD = 64;
+        private static final int SAMPLES = 5;
+
+        private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+        private final int index;
+        private final Readers readers;
+
+        /**
+         * Budget of the segment, or 0.
+         */
+        private final long maxBytes;
+        private final EvictionPolicy policy;
+
+        /**
+         * Insertion order for LRU and FIFO policies, or null.
+         */
+        private final EntryList order;
+
+        /**
+         * Regions of TinyLFU policy, or null.
+         */
+        private final WindowTinyLfu lfu;
+
+        /**
+         * Set by readers, when the read buffer of TinyLFU is full.
+         */
+        private volatile boolean drainReads;
+
+        /**
+         * Offset of access mark in entries: flag for LRU, clock value for sampling.
+         */
+        private final int access;
+
+        /**
+         * Number of puts, it is the time of sampling policy.
+         */
+        private int clock;
+
+        /**
+         * Entry created or resized by current put, it is dropped if it exceeds the budget alone.
+         */
+        private long grown;
+
+        private final Random random;
+
+        private volatile long epoch = 1;
+
+        private final Retired retired = new Retired();
+        private int reclaimThreshold = MIN_RECLAIM_THRESHOLD;
+
+        SegmentMap(int initialCapacity, float loadFactor, Serializer<N> keySerializer, Serializer<P> valueSerializer,
+                   int index, Readers readers, long maxBytes, EvictionPolicy policy) {
+            super(initialCapacity, loadFactor, keySerializer, valueSerializer, UnsafeAllocator.INSTANCE,
+                    policy == null ? 0 : policy.headerExtension);
+            this.index = index;
+            this.readers = readers;
+            this.maxBytes = maxBytes;
+            this.policy = policy;
+            this.order = policy == EvictionPolicy.LRU || policy == EvictionPolicy.FIFO ? new EntryList(EXTENSION) : null;
+            this.access = policy == EvictionPolicy.LRU ? EXTENSION + 16 : EXTENSION;
+            this.random = policy == EvictionPolicy.SAMPLING ? new Random(index) : null;
+            this.lfu = policy == EvictionPolicy.TINY_LFU ? new WindowTinyLfu(this, EXTENSION, maxBytes) : null;
+            attach(retired);
+        }
+
+        @Override
+        public long init(long h, N k, P v, long n) {
+            long e = super.init(h, k, v, n);
+            if (order != null) {
+                order.linkLast(e);
+            } else if (lfu != null) {
+                lfu.added(e, entrySize(e), (int) h);
+            } else if (policy == EvictionPolicy.SAMPLING) {
+                unsafe.putInt(e + access, clock);
+            }
+            grown = e;
+            return e;
+        }
+
+        @Override
+        long getEntry(Object key, long hash) {
+            long e = super.getEntry(key, hash);
+            if (e > 0) {
+                recordAccess(e);
+            } else if (lfu != null && lfu.missed((int) hash)) {
+                drainReads = true;
+            }
+            return e;
+        }
+
+        @Override
+        void recordAccess(long e) {
+            if (policy == EvictionPolicy.LRU) {
+                unsafe.putInt(e + access, 1);
+            } else if (policy == EvictionPolicy.SAMPLING) {
+                unsafe.putInt(e + access, clock);
+            } else if (lfu != null && lfu.accessed(e, (int) getHash(e))) {
+                drainReads = true;
+            }
+        }
+
+        @Override
+        void recordRemoval(long e) {
+            if (order != null) {
+                order.unlink(e);
+            } else if (lfu != null) {
+                lfu.removed(e, entrySize(e));
+            }
+        }
+
+        @Override
+        long otherBytes() {
+            return super.otherBytes() + (lfu != null ? lfu.bytes() : 0);
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            if (order != null) {
+                order.clear();
+            } else if (lfu != null) {
+                lfu.clear();
+            }
+        }
+
+        /**
+         * Evicts entries, while the segment is over its budget. Called after every put.
+         */
+        void evict() {
+            clock++;
+            long e = grown;
+            grown = 0;
+            if (maxBytes == 0) {
+                return;
+            }
+            if (e != 0 && entrySize(e) > maxBytes) {
+                removeEntry(e);
+            }
+            if (lfu != null) {
+                drainReads = false;
+                lfu.beginEviction(size);
+            }
+            while (entryBytes > maxBytes && size > 0) {
+                long victim = victim();
+                if (victim == 0) {
+                    break;
+                }
+                removeEntry(victim);
+            }
+            if (lfu != null) {
+                lfu.endEviction();
+            }
+        }
+
+        private long victim() {
+            if (lfu != null) {
+                return lfu.victim(size);
+            }
+            if (policy == EvictionPolicy.FIFO) {
+                return order.head;
+            }
+            if (policy == EvictionPolicy.LRU) {
+                // second chance, bounded, as readers may mark entries all the time
+                for (long n = size; n > 0; n--) {
+                    long e = order.head;
+                    if (unsafe.getInt(e + access) == 0) {
+                        return e;
+                    }
+                    unsafe.putInt(e + access, 0);
+                    order.moveToTail(e);
+                }
+                return order.head;
+            }
+            return sample();
+        }
+
+        /**
+         * The least recently accessed entry of chains in a few random buckets.
+         */
+        private long sample() {
+            // tables of segments are at most MAXIMUM_CAPACITY long
+            int buckets = (int) bucketCount();
+            long victim = 0;
+            int victimClock = 0;
+            for (int n = 0; n < SAMPLES; n++) {
+                int i = random.nextInt(buckets);
+                long e = bucketAt(i);
+                for (int probes = 1; e == 0 && probes < buckets; probes++) {
+                    i = i + 1 == buckets ? 0 : i + 1;
+                    e = bucketAt(i);
+                }
+                for (; e > 0; e = getNext(e)) {
+                    int c = unsafe.getInt(e + access);
+                    if (victim == 0 || c - victimClock < 0) {
+                        victim = e;
+                        victimClock = c;
+                    }
+                }
+            }
+            return victim;
+        }
+
+        /**
+         * Announces the reader in current epoch. Epoch is rechecked after the announcement,
+         * so a writer, which advances it, either sees the reader or the reader sees new epoch.
+         */
+        void enter(Reader reader) {
+            long e;
+            do {
+                e = epoch;
+                reader.state = (e << Readers.SEGMENT_BITS) | index;
+            } while (epoch != e);
+        }
+
+        void exit(Reader reader) {
+            reader.state = 0;
+        }
+
+        @Override
+        public void free(long position) {
+            if (position > 0) {
+                retire(position, false);
+            }
+        }
+
+        @Override
+        void freeTable(long table) {
+            retire(table, true);
+        }
+
+        @Override
+        long resizeEntry(long position, int oldSize, int newSize) {
+            // old entry may be read right now
+            long moved = relocateEntry(position, oldSize, newSize);
+            if (order != null) {
+                order.relocated(moved);
+            } else if (lfu != null) {
+                lfu.relocated(position, moved, newSize - oldSize);
+            }
+            grown = moved;
+            return moved;
+        }
+
+        private void retire(long address, boolean table) {
+            if (retired.add(address, epoch, table) >= reclaimThreshold) {
+                reclaim();
+            }
+        }
+
+        /**
+         * Advances epoch and frees memory retired before the oldest epoch of readers,
+         * which are inside the segment.
+         */
+        private void reclaim() {
+            long current = epoch;
+            epoch = current + 1;
+            long oldest = readers.oldestEpoch(index);
+            Retired r = retired;
+            int kept = 0;
+            for (int i = 0; i < r.count; i++) {
+                if (r.epochs[i] < oldest) {
+                    if (r.tables[i]) {
+                        super.freeTable(r.addresses[i]);
+                    } else {
+                        super.free(r.addresses[i]);
+                    }
+                } else {
+                    r.addresses[kept] = r.addresses[i];
+                    r.epochs[kept] = r.epochs[i];
+                    r.tables[kept] = r.tables[i];
+                    kept++;
+                }
+            }
+            r.count = kept;
+            // a long reader must not make every retirement scan the readers
+            reclaimThreshold = Math.max(MIN_RECLAIM_THRESHOLD, kept << 1);
+        }
+
+        /**
+         * Waits for optimistic readers, which entered the segment before it was closed.
+         * Readers, which enter later, see the flag: both sides write their volatile field
+         * first and read the other one then.
+         */
+        @Override
+        void release() {
+            while (readers.oldestEpoch(index) != Long.MAX_VALUE) {
+                Thread.yield();
+            }
+            super.release();
+        }
+
+        /**
+         * Memory retired by the segment. It is attached to memory of the map, so it is freed
+         * on close or by the cleaner too: segments allocate entries with {@link UnsafeAllocator},
+         * every block is freed directly then.
+         */
+        private static final class Retired implements Runnable {
+            long[] addresses = new long[MIN_RECLAIM_THRESHOLD];
+            long[] epochs = new long[MIN_RECLAIM_THRESHOLD];
+            boolean[] tables = new boolean[MIN_RECLAIM_THRESHOLD];
+            int count;
+
+            /**
+             * Returns number of retired blocks.
+             */
+            int add(long address, long epoch, boolean table) {
+                if (count == addresses.length) {
+                    addresses = Arrays.copyOf(addresses, count << 1);
+                    epochs = Arrays.copyOf(epochs, count << 1);
+                    tables = Arrays.copyOf(tables, count << 1);
+                }
+                addresses[count] = address;
+                epochs[count] = epoch;
+                tables[count] = table;
+                return ++count;
+            }
+
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    unsafe.freeMemory(addresses[i]);
+                }
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Registry of optimistic readers, one record per thread. Record holds epoch and index of
+     * the segment, which the thread reads now, or 0. Records are written only by their
+     * threads and padded against false sharing.
+     */
+    static final class Readers {
+        static final int SEGMENT_BITS = 16;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+        private volatile Reader[] all = new Reader[0];
+
+        private final ThreadLocal<Reader> local = new ThreadLocal<Reader>() {
+            @Override
+            protected Reader initialValue() {
+                return register();
+            }
+        };
+
+        Reader get() {
+            return local.get();
+        }
+
+        private synchronized Reader register() {
+            Reader reader = new Reader(Thread.currentThread());
+            List<Reader> alive = new ArrayList<Reader>(all.length + 1);
+            for (Reader r : all) {
+                Thread owner = r.owner.get();
+                if (owner != null && owner.isAlive()) {
+                    alive.add(r);
+                }
+            }
+            alive.add(reader);
+            all = alive.toArray(new Reader[alive.size()]);
+            return reader;
+        }
+
+        /**
+         * The oldest epoch of readers inside the segment, or Long.MAX_VALUE.
+         */
+        long oldestEpoch(int segment) {
+            long oldest = Long.MAX_VALUE;
+            for (Reader reader : all) {
+                long state = reader.state;
+                if (state != 0 && (state & SEGMENT_MASK) == segment) {
+                    oldest = Math.min(oldest, state >>> SEGMENT_BITS);
+                }
             }
+            return oldest;
+        }
+    }
+
+    static final class Reader {
+        long p0, p1, p2, p3, p4, p5, p6;
+        volatile long state;
+        long q0, q1, q2, q3, q4, q5, q6;
+        final WeakReference<Thread> owner;
+
+        Reader(Thread owner) {
+            this.owner = new WeakReference<Thread>(owner);
+        }
+    }
+
+    /**
+     * Entries of a partition of a parallel load, which go to one segment, with their hashes.
+     */
+    static final class LoadBatch<N, P> {
+        final N[] keys;
+        final P[] values;
+        final int[] hashes;
+        int count;
+
+        @SuppressWarnings("unchecked")
+        LoadBatch(int capacity) {
+            keys = (N[]) new Object[capacity];
+            values = (P[]) new Object[capacity];
+            hashes = new int[capacity];
+        }
+
+        /**
+         * Returns true, if the batch is full.
+         */
+        boolean add(N key, P value, int hash) {
+            keys[count] = key;
+            values[count] = value;
+            hashes[count] = hash;
+            return ++count == keys.length;
+        }
+
+        void clear() {
+            Arrays.fill(keys, 0, count, null);
+            Arrays.fill(values, 0, count, null);
+            count = 0;
         }
     }
 
@@ -202,6 +1003,13 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
         return h ^ (h >>> 16);
     }
 
+    /**
+     * All segments hash keys the same way, so any of them gives the hash.
+     */
+    final int hashOf(Object key) {
+        return segments[0].hashOf(key);
+    }
+
     final Segment<K,V> segmentFor(int hash) {
         return segments[(hash >>> segmentShift) & segmentMask];
     }
@@ -212,8 +1020,23 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
 
     public ConcurrentOffHeapMap(int initialCapacity,
                                 float loadFactor, int concurrencyLevel, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(initialCapacity, loadFactor, concurrencyLevel, 0, null, keySerializer, valueSerializer);
+    }
+
+    /**
+     * Creates map bounded by <tt>maxBytes</tt> of entries (header, key and value). Every segment
+     * gets equal share of the budget and evicts its own entries chosen by <tt>policy</tt>,
+     * when it exceeds the share, so eviction never locks other segments. Entry larger than
+     * the share is not kept at all.
+     *
+     * @param maxBytes budget of entries, or 0, if the map is not bounded
+     */
+    public ConcurrentOffHeapMap(int initialCapacity, float loadFactor, int concurrencyLevel, long maxBytes,
+                                EvictionPolicy policy, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
         if (!(loadFactor > 0) || initialCapacity < 0 || concurrencyLevel <= 0 || keySerializer == null || valueSerializer == null)
             throw new IllegalArgumentException();
+        if (maxBytes < 0 || (maxBytes > 0 && policy == null))
+            throw new IllegalArgumentException("Illegal budget: " + maxBytes + " bytes, policy " + policy);
 
         if (concurrencyLevel > MAX_SEGMENTS)
             concurrencyLevel = MAX_SEGMENTS;
@@ -227,7 +1050,9 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
         }
         segmentShift = 32 - sshift;
         segmentMask = ssize - 1;
-        segments = new Segment[ssize];
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[ssize];
+        this.segments = segments;
         //this.segments = Segment.newArray(ssize);
 
         if (initialCapacity > MAXIMUM_CAPACITY)
@@ -239,23 +1064,250 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
         while (cap < c)
             cap <<= 1;
 
+        long segmentBytes = maxBytes == 0 ? 0 : Math.max(maxBytes / ssize, 1);
         for (int i = 0; i < this.segments.length; ++i)
-            this.segments[i] = new Segment<K,V>(cap, loadFactor, keySerializer, valueSerializer);
+            this.segments[i] = new Segment<K,V>(cap, loadFactor, keySerializer, valueSerializer, i, readers,
+                    segmentBytes, maxBytes == 0 ? null : policy);
+    }
+
+    /**
+     * Enables or disables comparison of keys by serialized bytes in all segments.
+     * See {@link OffHeapHashMap#setKeyBytesComparison(boolean)}.
+     */
+    public void setKeyBytesComparison(boolean keyBytesComparison) {
+        for (Segment<K, V> segment : segments) {
+            segment.setKeyBytesComparison(keyBytesComparison);
+        }
+    }
+
+    /**
+     * Hashes keys by their serialized bytes in all segments, e.g. by
+     * {@link com.jad.offheap.collections.hash.XxHash64} with random seed against hash flooding.
+     * The hash picks the segment as well. See {@link OffHeapHashMap#setHashFunction(HashFunction)},
+     * it has to be set before the map is shared.
+     *
+     * @throws IllegalStateException if the map is not empty
+     */
+    public void setHashFunction(HashFunction hashFunction) {
+        if (!isEmpty())
+            throw new IllegalStateException("Hash function can be changed only while the map is empty");
+        for (Segment<K, V> segment : segments) {
+            segment.setHashFunction(hashFunction);
+        }
+    }
+
+    public HashFunction getHashFunction() {
+        return segments[0].getHashFunction();
+    }
+
+    /**
+     * Enables or disables histogram of chain lengths of segments in {@link #getMetrics()},
+     * see {@link OffHeapHashMap#setChainHistogram(boolean)}.
+     */
+    public void setChainHistogram(boolean enabled) {
+        for (Segment<K, V> segment : segments) {
+            segment.setChainHistogram(enabled);
+        }
+    }
+
+    /**
+     * Enables incremental rehash of segments, see {@link OffHeapHashMap#setIncrementalRehash(int)}.
+     * Readers do not wait for the whole transfer of a growing segment then, only for a step of it.
+     */
+    public void setIncrementalRehash(int bucketsPerStep) {
+        for (Segment<K, V> segment : segments) {
+            segment.setIncrementalRehash(bucketsPerStep);
+        }
+    }
+
+    /**
+     * Migrates up to <tt>buckets</tt> buckets in every segment, which is being rehashed and
+     * is not locked now. It is meant for a background helper, e.g. a task scheduled with
+     * {@link java.util.concurrent.ScheduledExecutorService}, which finishes rehash of segments
+     * rarely written to.
+     *
+     * @return true, if some segment is still being rehashed
+     */
+    public boolean rehashStep(int buckets) {
+        boolean rehashing = false;
+        for (Segment<K, V> segment : segments) {
+            rehashing |= segment.rehashStep(buckets);
+        }
+        return rehashing;
+    }
+
+    /**
+     * Sets default time to live of entries after write in all segments,
+     * see {@link OffHeapHashMap#setExpireAfterWrite(long, TimeUnit)}.
+     *
+     * @throws IllegalStateException if expiry is not enabled yet and a segment is not empty
+     */
+    public void setExpireAfterWrite(long duration, TimeUnit unit) {
+        for (Segment<K, V> segment : segments) {
+            segment.setExpireAfterWrite(duration, unit);
+        }
+    }
+
+    /**
+     * Sets time to live of entries after the last access in all segments,
+     * see {@link OffHeapHashMap#setExpireAfterAccess(long, TimeUnit)}. Optimistic readers
+     * only write time of access into the entry.
+     *
+     * @throws IllegalStateException if expiry is not enabled yet and a segment is not empty
+     */
+    public void setExpireAfterAccess(long duration, TimeUnit unit) {
+        for (Segment<K, V> segment : segments) {
+            segment.setExpireAfterAccess(duration, unit);
+        }
+    }
+
+    /**
+     * Parallel bulk load, see {@link #load(List, long, boolean, ExecutorService)}. Expected size is
+     * the total size of partitions, which are collections, other partitions are not counted.
+     */
+    public void load(List<? extends Iterable<? extends Entry<? extends K, ? extends V>>> partitions,
+                     boolean uniqueKeys, ExecutorService executor) throws InterruptedException, ExecutionException {
+        long expectedSize = 0;
+        for (Iterable<? extends Entry<? extends K, ? extends V>> partition : partitions) {
+            if (partition instanceof Collection) {
+                expectedSize += ((Collection<?>) partition).size();
+            }
+        }
+        load(partitions, expectedSize, uniqueKeys, executor);
+    }
+
+    /**
+     * Parallel bulk load. Tables of segments are sized once for their share of
+     * <tt>expectedSize</tt>, then every partition of the input is streamed by its own task:
+     * the task hashes every entry once and collects entries of every segment in a batch of
+     * {@link #LOAD_BATCH} entries, which it puts under one write lock, instead of a lock per put.
+     * So the load keeps at most a batch per segment for every partition on heap, not the input.
+     * Readers see entries of a segment batch by batch; for a map, which is not shared yet,
+     * all entries are visible to the calling thread after return.
+     * Load time scales with the number of threads of the executor up to the number of segments.
+     * <p>
+     * Segments are not filled by tasks of their own into unpublished tables: such a task would
+     * have to iterate all partitions, or the input would have to be split by segments on heap
+     * first. Partition tasks share segments instead, taking the write lock once per batch, and
+     * there is no atomic publication of the whole map.
+     *
+     * @param partitions input, split by the caller (e.g. files of a dump), every partition is
+     *                   iterated by one thread
+     * @param expectedSize number of mappings to load, more or less is allowed
+     * @param uniqueKeys if true, the caller guarantees that keys are distinct and absent in the map,
+     *                   so entries are added without looking keys up
+     *                   (see {@link OffHeapHashMap#putAll(Iterator, long, boolean)})
+     * @throws ExecutionException if a partition can not be read or an entry can not be put,
+     *                            other tasks are stopped and waited for, entries put before
+     *                            that stay in the map
+     */
+    public void load(List<? extends Iterable<? extends Entry<? extends K, ? extends V>>> partitions,
+                     long expectedSize, final boolean uniqueKeys, ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        if (expectedSize > 0) {
+            long share = expectedSize / segments.length;
+            // keys are spread over segments a little unevenly
+            share += share >>> 4;
+            for (Segment<K, V> segment : segments) {
+                segment.reserve(share);
+            }
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        List<Future<?>> loads = new ArrayList<Future<?>>(partitions.size());
+        for (final Iterable<? extends Entry<? extends K, ? extends V>> partition : partitions) {
+            loads.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(partition, uniqueKeys, stop);
+                    } catch (RuntimeException e) {
+                        stop.set(true);
+                        throw e;
+                    } catch (Error e) {
+                        stop.set(true);
+                        throw e;
+                    }
+                }
+            }));
+        }
+        ExecutionException failure = null;
+        try {
+            for (Future<?> future : loads) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            // interrupted caller does not wait, but stops the tasks anyway
+            stop.set(true);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Streams a partition of {@link #load(List, long, boolean, ExecutorService)} into segments,
+     * until it ends or <tt>stop</tt> is set by a failed task.
+     */
+    private void load(Iterable<? extends Entry<? extends K, ? extends V>> partition, boolean uniqueKeys,
+                      AtomicBoolean stop) {
+        @SuppressWarnings("unchecked")
+        LoadBatch<K, V>[] batches = (LoadBatch<K, V>[]) new LoadBatch<?, ?>[segments.length];
+        for (Entry<? extends K, ? extends V> e : partition) {
+            if (stop.get()) {
+                return;
+            }
+            K key = e.getKey();
+            int hash = hashOf(key);
+            int i = (hash >>> segmentShift) & segmentMask;
+            LoadBatch<K, V> batch = batches[i];
+            if (batch == null) {
+                batch = batches[i] = new LoadBatch<K, V>(LOAD_BATCH);
+            }
+            if (batch.add(key, e.getValue(), hash)) {
+                segments[i].load(batch, uniqueKeys);
+                batch.clear();
+            }
+        }
+        for (int i = 0; i < batches.length && !stop.get(); i++) {
+            if (batches[i] != null && batches[i].count > 0) {
+                segments[i].load(batches[i], uniqueKeys);
+            }
+        }
     }
 
     public V get(Object key) {
-        int hash = hash(key.hashCode());
+        int hash = hashOf(key);
         return segmentFor(hash).get(key, hash);
     }
 
     public V put(K key, V value) {
-        int hash = hash(key.hashCode());
-        return segmentFor(hash).put(key, value, hash);
+        int hash = hashOf(key);
+        return segmentFor(hash).put(key, value, hash, 0);
+    }
+
+    /**
+     * Puts entry, which expires after given time to live, see
+     * {@link OffHeapHashMap#put(Object, Object, long, TimeUnit)}. Expiry of the segment is
+     * enabled, if it is still empty.
+     *
+     * @throws IllegalStateException if expiry is not enabled and the segment is not empty
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        if (ttl <= 0)
+            throw new IllegalArgumentException("Illegal time to live: " + ttl);
+        int hash = hashOf(key);
+        return segmentFor(hash).put(key, value, hash, Math.max(unit.toMillis(ttl), 1));
     }
 
     @Override
     public boolean containsKey(Object key) {
-        int hash = hash(key.hashCode());
+        int hash = hashOf(key);
         return segmentFor(hash).contains(key, hash);
     }
 
@@ -264,15 +1316,100 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
         for (Segment<K, V> segment : segments) {
             segment.clear();
         }
-        segments = null;
+    }
+
+    /**
+     * Releases native memory of all segments, see {@link OffHeapHashMap#close()}. Segment
+     * waits for optimistic readers, which are inside it, before release. The map can not
+     * be used after that.
+     */
+    public void close() {
+        for (Segment<K, V> segment : segments) {
+            segment.close();
+        }
     }
 
     @Override
     public V remove(Object key) {
-        int hash = hash(key.hashCode());
+        int hash = hashOf(key);
         return segmentFor(hash).remove(key, hash);
     }
 
+    /*
+     * Atomic operations: every one is done under one write lock of the segment with one walk
+     * of the chain, see OffHeapHashMap#putIfAbsent(Object, Object) and the following methods.
+     * Values are compared by serialized bytes. Functions are called under the lock, so they
+     * MUST be short and MUST NOT access the map.
+     */
+
+    public V putIfAbsent(K key, V value) {
+        int hash = hashOf(key);
+        return segmentFor(hash).putIfAbsent(key, value, hash);
+    }
+
+    public V replace(K key, V value) {
+        int hash = hashOf(key);
+        return segmentFor(hash).replace(key, value, hash);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        int hash = hashOf(key);
+        return segmentFor(hash).replace(key, oldValue, newValue, hash);
+    }
+
+    public boolean remove(Object key, Object value) {
+        int hash = hashOf(key);
+        return segmentFor(hash).remove(key, value, hash);
+    }
+
+    /**
+     * Atomic operations hold the segment lock during the whole call, unlike defaults of Java 8
+     * <tt>ConcurrentMap</tt>, see {@link OffHeapHashMap#computeIfAbsentAtomic(Object, Function)}.
+     */
+    public V computeIfAbsentAtomic(K key, Function<? super K, ? extends V> function) {
+        int hash = hashOf(key);
+        return segmentFor(hash).computeIfAbsentAtomic(key, function, hash);
+    }
+
+    public V computeIfPresentAtomic(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        int hash = hashOf(key);
+        return segmentFor(hash).computeIfPresentAtomic(key, function, hash);
+    }
+
+    public V mergeAtomic(K key, V value, BiFunction<? super V, ? super V, ? extends V> function) {
+        int hash = hashOf(key);
+        return segmentFor(hash).mergeAtomic(key, value, function, hash);
+    }
+
+    /*
+     * In-place counters, see OffHeapHashMap#addAndGet(Object, long): values MUST be serialized by
+     * Serializers.LONG_SERIALIZER. The update holds the write lock of the segment only for the
+     * chain walk and 8 bytes write, nothing is serialized or allocated for present keys.
+     */
+
+    public long addAndGet(K key, long delta) {
+        int hash = hashOf(key);
+        return segmentFor(hash).updateLong(key, hash, delta, true) + delta;
+    }
+
+    public long getAndAdd(K key, long delta) {
+        int hash = hashOf(key);
+        return segmentFor(hash).updateLong(key, hash, delta, true);
+    }
+
+    public long incrementAndGet(K key) {
+        return addAndGet(key, 1);
+    }
+
+    public long decrementAndGet(K key) {
+        return addAndGet(key, -1);
+    }
+
+    public long getAndSet(K key, long value) {
+        int hash = hashOf(key);
+        return segmentFor(hash).updateLong(key, hash, value, false);
+    }
+
     private class EntrySet extends AbstractSet<Entry<K, V>> {
 
         @Override
@@ -337,9 +1474,9 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
             if (!(o instanceof Entry)) {
                 return false;
             }
-            Entry obj = (Entry) o;
+            Entry<?, ?> obj = (Entry<?, ?>) o;
             V v = get(obj.getKey());
-            Object v1 = ((Entry) o).getValue();
+            Object v1 = obj.getValue();
             if (v == null) {
                 return v1 == null;
             } else {
@@ -409,13 +1546,54 @@ public class ConcurrentOffHeapMap<K, V> extends AbstractMap<K, V> {
         return new KeySet();
     }
 
+    /**
+     * Bytes of entries (header, key and value) in all segments.
+     */
+    public long getBytes() {
+        long sum = 0;
+        for (Segment<K, V> segment : segments) {
+            sum += segment.bytes();
+        }
+        return sum;
+    }
+
+    /**
+     * Metrics of all segments together. Segments are locked one by one, so the sum is not
+     * an atomic snapshot under concurrent modifications.
+     */
+    public CollectionMetrics getMetrics() {
+        return CollectionMetrics.sum(getSegmentMetrics());
+    }
+
+    /**
+     * Metrics of every segment, e.g. to see if entries are spread evenly.
+     */
+    public CollectionMetrics[] getSegmentMetrics() {
+        CollectionMetrics[] metrics = new CollectionMetrics[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            metrics[i] = segments[i].metrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the number of mappings, or <tt>Integer.MAX_VALUE</tt> if there are more.
+     *
+     * @see #sizeLong()
+     */
     @Override
     public int size() {
-        int sum = 0;
+        return (int) Math.min(sizeLong(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of mappings, which may exceed <tt>Integer.MAX_VALUE</tt>.
+     */
+    public long sizeLong() {
+        long sum = 0;
         for (Segment<K, V> segment : segments) {
             sum += segment.size();
         }
         return sum;
-
     }
 }
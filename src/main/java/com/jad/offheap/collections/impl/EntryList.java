@@ -0,0 +1,92 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.UnsafeWrapper;
+
+/**
+ * Intrusive doubly linked list of off-heap entries: links are stored in the entries
+ * at given offsets, only head and tail are on heap. Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 03/22/14
+ */
+
+final class EntryList {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    private final int before;
+    private final int after;
+
+    /**
+     * The first (eldest) entry, or 0.
+     */
+    long head;
+
+    /**
+     * The last (youngest) entry, or 0.
+     */
+    long tail;
+
+    /**
+     * @param before offset of the link to previous entry, the next link follows it
+     */
+    EntryList(int before) {
+        this.before = before;
+        this.after = before + 8;
+    }
+
+    void linkLast(long e) {
+        unsafe.putLong(e + before, tail);
+        unsafe.putLong(e + after, 0);
+        if (tail == 0) {
+            head = e;
+        } else {
+            unsafe.putLong(tail + after, e);
+        }
+        tail = e;
+    }
+
+    void unlink(long e) {
+        long prev = unsafe.getLong(e + before);
+        long next = unsafe.getLong(e + after);
+        if (prev == 0) {
+            head = next;
+        } else {
+            unsafe.putLong(prev + after, next);
+        }
+        if (next == 0) {
+            tail = prev;
+        } else {
+            unsafe.putLong(next + before, prev);
+        }
+    }
+
+    void moveToTail(long e) {
+        if (e != tail) {
+            unlink(e);
+            linkLast(e);
+        }
+    }
+
+    /**
+     * Entry is copied to <tt>moved</tt> with its links, neighbours are pointed to the copy.
+     */
+    void relocated(long moved) {
+        long prev = unsafe.getLong(moved + before);
+        long next = unsafe.getLong(moved + after);
+        if (prev == 0) {
+            head = moved;
+        } else {
+            unsafe.putLong(prev + after, moved);
+        }
+        if (next == 0) {
+            tail = moved;
+        } else {
+            unsafe.putLong(next + before, moved);
+        }
+    }
+
+    void clear() {
+        head = 0;
+        tail = 0;
+    }
+}
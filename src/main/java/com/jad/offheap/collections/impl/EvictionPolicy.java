@@ -0,0 +1,48 @@
+package com.jad.offheap.collections.impl;
+
+/**
+ * Policy, which chooses entries to evict from a segment of byte budgeted
+ * {@link ConcurrentOffHeapMap}. Readers of the map do not lock segments, so they only
+ * mark entries as accessed; order is maintained by writers.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 03/22/14
+ */
+
+public enum EvictionPolicy {
+    /**
+     * Least recently used, approximated by second chance: the eldest entry is evicted,
+     * unless it was accessed since it became the eldest, then it is moved to the tail.
+     * Costs 20 bytes per entry.
+     */
+    LRU(20),
+
+    /**
+     * The eldest inserted entry is evicted, access is not tracked. Costs 16 bytes per entry.
+     */
+    FIFO(16),
+
+    /**
+     * Least recently used of a few randomly sampled entries is evicted. No list is kept,
+     * costs 4 bytes per entry.
+     */
+    SAMPLING(4),
+
+    /**
+     * W-TinyLFU: new entries pass a small LRU window, then they are admitted to segmented LRU
+     * main region only if they are estimated to be more frequent than the main victim.
+     * Frequencies of hits and misses are counted by a 4-bit count-min sketch off-heap, which
+     * takes a few percent of the budget, so a scan does not flush popular entries.
+     * Costs 24 bytes per entry. See {@link WindowTinyLfu}.
+     */
+    TINY_LFU(WindowTinyLfu.HEADER_EXTENSION);
+
+    /**
+     * Bytes of entry header extension.
+     */
+    final int headerExtension;
+
+    EvictionPolicy(int headerExtension) {
+        this.headerExtension = headerExtension;
+    }
+}
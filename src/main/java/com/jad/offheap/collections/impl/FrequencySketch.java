@@ -0,0 +1,129 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.UnsafeWrapper;
+
+/**
+ * Count-min sketch of 4-bit counters, which estimates how often hashes were seen recently.
+ * Counters are packed by 16 into longs of off-heap table, every hash has one counter in each
+ * of 4 longs. When number of increments reaches the sample size, all counters are halved,
+ * so old popularity fades out.
+ *
+ * Not thread safe: plain read-modify-write of a long, racing with halving, would write the
+ * word back un-halved and overwrite other increments. Concurrent readers record hits into
+ * {@link ReadBuffer}, which the owner of the sketch drains into it, and the owner ages it.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/05/14
+ */
+
+final class FrequencySketch implements Runnable {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_LONGS = 1 << 24;
+
+    private final long table;
+    private final int mask;
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param expectedEntries number of entries, which popularity is compared; table takes
+     *                        about 2 bytes per entry
+     * @param owner           owner of the table for {@link com.jad.offheap.AllocationTracker}
+     */
+    FrequencySketch(int expectedEntries, String owner) {
+        int longs = 1;
+        while (longs < MAX_LONGS && (longs << 2) < expectedEntries) {
+            longs <<= 1;
+        }
+        mask = longs - 1;
+        // ten additions per entry, bounded by int counter of additions
+        sampleSize = (int) Math.min((long) Math.max(expectedEntries, 16) * 10, Integer.MAX_VALUE);
+        long size = (long) longs << 3;
+        table = unsafe.allocateMemory(size, owner);
+        if (table <= 0) {
+            throw new OutOfMemoryError();
+        }
+        unsafe.setMemory(table, size, (byte) 0);
+    }
+
+    void increment(int hash) {
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long address = table + ((long) indexOf(h, i) << 3);
+            int offset = (start + i) << 2;
+            long word = unsafe.getLong(address);
+            if (((word >>> offset) & 0xfL) != 0xfL) {
+                unsafe.putLong(address, word + (1L << offset));
+                added = true;
+            }
+        }
+        if (added) {
+            additions++;
+        }
+    }
+
+    /**
+     * Estimated number of recent increments of the hash, up to 15.
+     */
+    int frequency(int hash) {
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            long word = unsafe.getLong(table + ((long) indexOf(h, i) << 3));
+            frequency = Math.min(frequency, (int) ((word >>> ((start + i) << 2)) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * Halves all counters, if sample size is reached. Called by the owner.
+     */
+    void age() {
+        if (additions < sampleSize) {
+            return;
+        }
+        for (int i = 0; i <= mask; i++) {
+            long address = table + ((long) i << 3);
+            unsafe.putLong(address, (unsafe.getLong(address) >>> 1) & RESET_MASK);
+        }
+        additions >>>= 1;
+    }
+
+    void clear() {
+        unsafe.setMemory(table, (long) (mask + 1) << 3, (byte) 0);
+        additions = 0;
+    }
+
+    long bytes() {
+        return (long) (mask + 1) << 3;
+    }
+
+    /**
+     * Releases the table, the sketch is attached to memory of the map (see
+     * {@link OffHeapHashMap#attach(Runnable)}).
+     */
+    @Override
+    public void run() {
+        unsafe.freeMemory(table);
+    }
+
+    private int indexOf(int h, int i) {
+        long hash = (h + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return (int) hash & mask;
+    }
+
+    private static int spread(int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
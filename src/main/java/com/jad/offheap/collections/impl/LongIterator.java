@@ -0,0 +1,25 @@
+package com.jad.offheap.collections.impl;
+
+/**
+ * Iterator over primitive <tt>long</tt> values without boxing.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/05/14
+ */
+
+public interface LongIterator {
+
+    boolean hasNext();
+
+    /**
+     * @throws java.util.NoSuchElementException if there are no more values
+     */
+    long next();
+
+    /**
+     * Removes the value returned by the last {@link #next()}.
+     *
+     * @throws IllegalStateException if {@link #next()} was not called or the value is removed already
+     */
+    void remove();
+}
@@ -1,11 +1,29 @@
 package com.jad.offheap.collections.impl;
 
 
+import com.jad.offheap.AllocationTracker;
+import com.jad.offheap.UnsafeProvider;
 import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.allocator.MemoryAllocator;
+import com.jad.offheap.allocator.UnsafeAllocator;
+import com.jad.offheap.collections.function.BiFunction;
+import com.jad.offheap.collections.function.Function;
+import com.jad.offheap.collections.hash.HashFunction;
+import com.jad.offheap.collections.hash.XxHash64;
+import com.jad.offheap.collections.metrics.CollectionMetrics;
+import com.jad.offheap.collections.metrics.MetricsSource;
+import com.jad.offheap.collections.serializer.DirectSerializer;
 import com.jad.offheap.collections.serializer.Serializer;
+import com.jad.offheap.collections.serializer.Serializers;
+import com.jad.offheap.collections.utils.Utils;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -14,10 +32,15 @@ import java.util.*;
  */
 
 public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
-        implements Map<K,V>, Cloneable {
+        implements Map<K,V>, Cloneable, Closeable, MetricsSource {
     private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
     private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
     private static final byte[] NULL_ARR = new byte[]{};
+    /**
+     * Marker of a probe key, which is compared by equals (not by serialized bytes).
+     */
+    private static final byte[] BY_EQUALS = new byte[]{};
     
     /**
      * The default initial capacity - MUST be a power of two.
@@ -31,6 +54,11 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      */
     static final int MAXIMUM_CAPACITY = 1 << 30;
 
+    /**
+     * The maximum capacity of large map (see {@link #setLargeMap(boolean)}), 8 TB of buckets.
+     */
+    static final long LARGE_MAXIMUM_CAPACITY = 1L << 40;
+
     /**
      * The load factor used when none specified in constructor.
      */
@@ -38,25 +66,109 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
 
     /**
      * The table, resized as necessary. Length MUST Always be a power of two.
+     * Both fields are volatile for optimistic readers of {@link ConcurrentOffHeapMap},
+     * see {@link #setTable(long, long)}.
+     */
+    transient volatile long table;
+
+    transient volatile long tableLength;
+
+    /**
+     * The table, which is being migrated by incremental rehash, or 0. Buckets are moved
+     * to {@link #table} in order from {@link #rehashIndex}, and out of order, when a writer
+     * is going to modify the chain. Moved bucket stays empty, so a key is in the old table
+     * if its bucket there is not empty, and in the new table otherwise.
      */
-    transient long table;
+    transient volatile long oldTable;
 
-    transient int tableLength;
+    transient volatile long oldTableLength;
+
+    /**
+     * Next bucket of the old table to migrate.
+     */
+    transient long rehashIndex;
 
     /**
-     * The number of key-value mappings contained in this map.
+     * Number of buckets migrated by every put and remove, or 0, if the table is
+     * rehashed at once.
      */
-    transient int size;
+    private int rehashBuckets;
+
+    /**
+     * The number of key-value mappings contained in this map. It is long, as with load
+     * factor above 1 the map holds more than <tt>Integer.MAX_VALUE</tt> mappings,
+     * see {@link #sizeLong()}.
+     */
+    transient long size;
 
     /**
      * The next size value at which to resize (capacity * load factor).
-     * @serial
      */
-    int threshold;
+    transient long threshold;
 
     private Serializer<K> keySerializer;
     private Serializer<V> valueSerializer;
 
+    /**
+     * Serializers, which write off-heap memory directly, or null.
+     */
+    private DirectSerializer<K> directKeySerializer;
+    private DirectSerializer<V> directValueSerializer;
+
+    /**
+     * Allocator of entries memory. Table is always allocated directly.
+     */
+    private MemoryAllocator allocator;
+
+    /**
+     * Owner of native memory of the map for {@link AllocationTracker}.
+     */
+    transient String owner = AllocationTracker.ownerOf(this);
+
+    /**
+     * If true, lookups compare serialized probe key with stored key bytes
+     * instead of deserializing every candidate entry.
+     */
+    private boolean keyBytesComparison;
+
+    /**
+     * Hash function of serialized keys, null if keys are hashed by <tt>hashCode()</tt>.
+     */
+    private HashFunction hashFunction;
+
+    /**
+     * If true, entries store 64-bit hashes and the table grows up to {@link #LARGE_MAXIMUM_CAPACITY},
+     * see {@link #setLargeMap(boolean)}. Hashes of compact map are ints, widened to long.
+     */
+    private boolean largeMap;
+
+    /**
+     * Offset of key in entries, after the header, its extension and expiry fields.
+     * It changes only when expiry or large map is enabled, while the map is empty.
+     */
+    private int keyStart;
+
+    /**
+     * Offset of expiry fields in entries (see {@link #WRITE_DEADLINE}), after the extension.
+     */
+    private final int expiryStart;
+
+    /**
+     * Schedule of entries, which may expire, or null, if expiry is not enabled.
+     */
+    private transient TimerWheel wheel;
+
+    /**
+     * Default time to live after write and after the last read, in ms, or 0.
+     */
+    private long writeTtl;
+    private long accessTtl;
+
+    /**
+     * {@link System#nanoTime()} of the beginning of expiry time, see {@link #currentTime()}.
+     */
+    private transient long origin;
+
 
     /**
      * The load factor for the hash table.
@@ -74,6 +186,30 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      */
     transient volatile int modCount;
 
+    /**
+     * Number of buckets by length of chains for {@link #getMetrics()}, null unless it is
+     * enabled by {@link #setChainHistogram(boolean)}: keeping it costs an update of the
+     * length of the chain per insert and removal.
+     */
+    transient ChainHistogram chains;
+
+    /**
+     * Histogram attached to memory of the map, it is reused when histogram is enabled again.
+     */
+    private transient ChainHistogram attachedChains;
+
+    transient long entryBytes;
+
+    transient int resizeCount;
+
+    /**
+     * Native memory of the map, it is released by {@link #close()}, or by the cleaner,
+     * if the map becomes unreachable without close.
+     */
+    private transient Memory memory;
+    private transient Runnable cleaner;
+    private transient volatile boolean closed;
+
     /**
      * Constructs an empty <tt>HashMap</tt> with the specified initial
      * capacity and load factor.
@@ -84,6 +220,33 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      *         or the load factor is nonpositive
      */
     public OffHeapHashMap(int initialCapacity, float loadFactor, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(initialCapacity, loadFactor, keySerializer, valueSerializer, UnsafeAllocator.INSTANCE);
+    }
+
+    /**
+     * Constructs an empty <tt>HashMap</tt> with the specified initial
+     * capacity, load factor and allocator of entries memory.
+     * Map becomes the owner of the allocator, so it should not be shared
+     * with other collections (except stateless {@link UnsafeAllocator}).
+     *
+     * @param  initialCapacity the initial capacity
+     * @param  loadFactor      the load factor
+     * @param  allocator       allocator of entries, e.g. {@link com.jad.offheap.allocator.SlabAllocator}
+     * @throws IllegalArgumentException if the initial capacity is negative
+     *         or the load factor is nonpositive
+     */
+    public OffHeapHashMap(int initialCapacity, float loadFactor, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                          MemoryAllocator allocator) {
+        this(initialCapacity, loadFactor, keySerializer, valueSerializer, allocator, 0);
+    }
+
+    /**
+     * Constructor for subclasses, which keep <tt>headerExtension</tt> bytes in every entry
+     * at {@link #EXTENSION} offset (e.g. links of access order). Extension is zeroed when
+     * entry is created.
+     */
+    OffHeapHashMap(int initialCapacity, float loadFactor, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                   MemoryAllocator allocator, int headerExtension) {
         if (initialCapacity < 0)
             throw new IllegalArgumentException("Illegal initial capacity: " +
                     initialCapacity);
@@ -99,25 +262,156 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
             capacity <<= 1;
 
         this.loadFactor = loadFactor;
-        threshold = (int)(capacity * loadFactor);
+        threshold = (long) (capacity * loadFactor);
 
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
-
-        table = newTable(capacity);
+        this.allocator = AllocationTracker.owned(allocator, owner);
+        if (headerExtension < 0)
+            throw new IllegalArgumentException("Illegal header extension: " + headerExtension);
+        this.keyStart = headerExtension == 0 ? KEY_START : EXTENSION + headerExtension;
+        this.expiryStart = (EXTENSION + headerExtension + 7) & ~7;
+        initDirectSerializers();
+
+        openMemory();
+        setTable(newTable(capacity), capacity);
         init();
     }
 
-    private long newTable(int capacity) {
-        tableLength = capacity;
-        long l = unsafe.allocateMemory(capacity << 3);
+    private long newTable(long capacity) {
+        long l = unsafe.allocateMemory(capacity << 3, owner);
         if (l <= 0) {
             throw new OutOfMemoryError();
         }
-        unsafe.setMemory(l, ((long)capacity) << 3, (byte)0);
+        unsafe.setMemory(l, capacity << 3, (byte)0);
         return l;
     }
 
+    /**
+     * Publishes the table. Table is written before its length, so a reader, which reads
+     * length first, never indexes beyond the table it reads then (tables only grow).
+     */
+    private void setTable(long table, long tableLength) {
+        this.table = table;
+        this.tableLength = tableLength;
+        memory.table = table;
+        memory.tableLength = tableLength;
+    }
+
+    /**
+     * Publishes the table under incremental rehash, in the same order as {@link #setTable(long, long)}.
+     */
+    private void setOldTable(long oldTable, long oldTableLength) {
+        this.oldTable = oldTable;
+        this.oldTableLength = oldTableLength;
+        memory.oldTable = oldTable;
+        memory.oldTableLength = oldTableLength;
+    }
+
+    /**
+     * Releases memory of replaced table.
+     */
+    void freeTable(long table) {
+        unsafe.freeMemory(table);
+    }
+
+    private void openMemory() {
+        memory = new Memory(allocator, keyStart);
+        cleaner = UnsafeProvider.registerCleaner(this, memory);
+    }
+
+    /**
+     * Native memory of the map: tables, entries and memory of attached structures.
+     * It does not refer the map, so the cleaner can release it after the map is collected.
+     */
+    private static final class Memory implements Runnable {
+        private final MemoryAllocator allocator;
+        private int keyStart;
+        private long table;
+        private long tableLength;
+        private long oldTable;
+        private long oldTableLength;
+        private Runnable[] attached = new Runnable[0];
+
+        Memory(MemoryAllocator allocator, int keyStart) {
+            this.allocator = allocator;
+            this.keyStart = keyStart;
+        }
+
+        @Override
+        public void run() {
+            if (!allocator.releaseAll()) {
+                freeEntries(table, tableLength);
+                freeEntries(oldTable, oldTableLength);
+            }
+            unsafe.freeMemory(table);
+            if (oldTable != 0) {
+                unsafe.freeMemory(oldTable);
+            }
+            for (Runnable release : attached) {
+                release.run();
+            }
+            table = 0;
+            oldTable = 0;
+        }
+
+        private void freeEntries(long table, long length) {
+            if (table == 0) {
+                return;
+            }
+            for (long i = 0; i < length; i++) {
+                long e = unsafe.getLong(table + (i << 3));
+                while (e > 0) {
+                    long next = unsafe.getLong(e + NEXT);
+                    allocator.free(e, keyStart + unsafe.getInt(e + KEY_LENGTH) + unsafe.getInt(e + VAL_LENGTH));
+                    e = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Attaches release of native memory of a structure, which the map owns (e.g. timer wheel).
+     * It runs once, when the map is closed or collected, and MUST NOT refer the map.
+     */
+    final void attach(Runnable release) {
+        Runnable[] attached = Arrays.copyOf(memory.attached, memory.attached.length + 1);
+        attached[attached.length - 1] = release;
+        memory.attached = attached;
+    }
+
+    /**
+     * Releases all native memory of the map: entries, tables and structures of expiry.
+     * The map can not be used after that, its operations throw {@link IllegalStateException}.
+     * Map, which is not closed, is released after it becomes unreachable, but native memory
+     * does not make GC run, so long living applications should close maps explicitly.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        size = 0;
+        release();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Releases native memory after the map is marked closed.
+     */
+    void release() {
+        cleaner.run();
+    }
+
+    final void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
     /**
      * Constructs an empty <tt>HashMap</tt> with the specified initial
      * capacity and the default load factor (0.75).
@@ -135,10 +429,15 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      */
     public OffHeapHashMap(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
         this.loadFactor = DEFAULT_LOAD_FACTOR;
-        threshold = (int)(DEFAULT_INITIAL_CAPACITY * DEFAULT_LOAD_FACTOR);
-        table = newTable(DEFAULT_INITIAL_CAPACITY);
+        threshold = (long) (DEFAULT_INITIAL_CAPACITY * DEFAULT_LOAD_FACTOR);
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
+        this.allocator = AllocationTracker.owned(UnsafeAllocator.INSTANCE, owner);
+        this.keyStart = KEY_START;
+        this.expiryStart = EXTENSION;
+        initDirectSerializers();
+        openMemory();
+        setTable(newTable(DEFAULT_INITIAL_CAPACITY), DEFAULT_INITIAL_CAPACITY);
         init();
     }
 
@@ -157,8 +456,38 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         putAllForCreate(m);
     }
 
+    private void initDirectSerializers() {
+        if (keySerializer instanceof DirectSerializer) {
+            directKeySerializer = (DirectSerializer<K>) keySerializer;
+        }
+        if (valueSerializer instanceof DirectSerializer) {
+            directValueSerializer = (DirectSerializer<V>) valueSerializer;
+        }
+    }
+
     // internal utilities
 
+    /**
+     * Hook for subclasses, called when existing entry is read by get or replaced by put.
+     */
+    void recordAccess(long e) {
+    }
+
+    /**
+     * Hook for subclasses, called when entry is unlinked from the table, before it is freed.
+     */
+    void recordRemoval(long e) {
+    }
+
+    /**
+     * Hook for subclasses, called when a write, which may add an entry or grow it, is done with
+     * the entry: after put (with or without time to live), putIfAbsent, replace, compute and merge,
+     * counters and bulk loads. <tt>e</tt> is the current position of the written entry.
+     * Bounded maps evict here, so every mutator respects their limits.
+     */
+    void afterWrite(long e) {
+    }
+
     /**
      * Initialization hook for subclasses. This method is called
      * in all constructors and pseudo-constructors (clone, readObject)
@@ -189,16 +518,451 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
     /**
      * Returns index for hash code h.
      */
-    protected int indexFor(int h, int length) {
+    protected long indexFor(long h, long length) {
         return h & (length-1);
     }
 
     /**
-     * Returns the number of key-value mappings in this map.
+     * Enables or disables comparison of keys by serialized bytes.
+     * It avoids deserialization of every entry with the same hash, but it is correct
+     * only if key serializer produces equal bytes for equal keys (true for
+     * serializers from {@link com.jad.offheap.collections.serializer.Serializers},
+     * except <tt>SerializableSerializer</tt> for classes with unordered state).
+     */
+    public void setKeyBytesComparison(boolean keyBytesComparison) {
+        this.keyBytesComparison = keyBytesComparison;
+    }
+
+    public boolean isKeyBytesComparison() {
+        return keyBytesComparison;
+    }
+
+    /**
+     * Hashes keys by their serialized bytes instead of <tt>hashCode()</tt>, e.g. by
+     * {@link com.jad.offheap.collections.hash.XxHash64}. Such hashes are stable across JVM restarts
+     * and do not cluster for weak <tt>hashCode()</tt> implementations; function with random seed
+     * defends against hash flooding. Every lookup serializes the key, so keys are compared by bytes
+     * as well (see {@link #setKeyBytesComparison(boolean)}, the serializer must produce equal bytes
+     * for equal keys). Stored hashes depend on the function, so it can be changed only while
+     * the map is empty. Null disables it, except in large map mode (see {@link #setLargeMap(boolean)}).
+     *
+     * @throws IllegalStateException if the map is not empty, or it is a large map and the function is null
+     */
+    public void setHashFunction(HashFunction hashFunction) {
+        if (size > 0)
+            throw new IllegalStateException("Hash function can be changed only while the map is empty");
+        if (hashFunction == null && largeMap)
+            throw new IllegalStateException("Large map requires a hash function");
+        this.hashFunction = hashFunction;
+        if (hashFunction != null) {
+            keyBytesComparison = true;
+        }
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    /**
+     * Hash of serialized key, as stored in entries: 64-bit hash as is for large map,
+     * folded to int otherwise. Empty bytes (null key) hash to 0.
+     */
+    static long hashBytes(HashFunction hashFunction, byte[] bytes, boolean largeMap) {
+        if (bytes.length == 0) {
+            return 0;
+        }
+        long h = hashFunction.hash(bytes, 0, bytes.length);
+        return largeMap ? h : (int) (h ^ (h >>> 32));
+    }
+
+    private long hashMemory(long address, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        long h = hashFunction.hashMemory(address, length);
+        return largeMap ? h : (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Enables large map mode for billions of mappings. 32-bit hashes of a compact map collide
+     * often at that size (every key shares its hash with about one other key at 5 billion keys),
+     * so every collision costs key comparison, and the table is capped at {@link #MAXIMUM_CAPACITY}
+     * buckets, so chains grow with load factor. Large map stores 64-bit hashes (4 bytes more
+     * per entry, unless entries have header extension or expiry fields) and grows the table
+     * up to {@link #LARGE_MAXIMUM_CAPACITY} buckets.
+     *
+     * 64-bit hashes are produced by a hash function of serialized keys: <tt>hashCode()</tt> has only
+     * 2^32 distinct values, so most buckets above that could never be reached. If the map has no
+     * function yet, large mode sets <tt>XxHash64</tt> with seed 0 (see
+     * {@link #setHashFunction(HashFunction)}), which stays when the mode is turned off. Stored hashes
+     * and entry layout depend on the mode, so it can be changed only while the map is empty.
+     *
+     * @throws IllegalStateException if the map is not empty
+     */
+    public void setLargeMap(boolean largeMap) {
+        ensureOpen();
+        if (size > 0)
+            throw new IllegalStateException("Large map mode can be changed only while the map is empty");
+        if (largeMap && hashFunction == null) {
+            setHashFunction(new XxHash64(0));
+        }
+        this.largeMap = largeMap;
+        if (keyStart == KEY_START || keyStart == EXTENSION) {
+            // plain entries, hash is the last field of the header
+            keyStart = largeMap ? EXTENSION : KEY_START;
+            memory.keyStart = keyStart;
+        }
+    }
+
+    public boolean isLargeMap() {
+        return largeMap;
+    }
+
+    /**
+     * The maximum number of buckets in the current mode.
+     */
+    final long maximumCapacity() {
+        return largeMap ? LARGE_MAXIMUM_CAPACITY : MAXIMUM_CAPACITY;
+    }
+
+    /**
+     * Enables incremental rehash: when the map grows, the new table is allocated, but entries
+     * are not transferred at once. Both tables stay live, every put and remove migrates the
+     * bucket of its key and up to <tt>bucketsPerStep</tt> other buckets, so no single
+     * operation pays for the whole transfer. Migration may also be driven by
+     * {@link #rehashStep(int)}. With 2 or more buckets per step rehash finishes before
+     * the next growth. 0 (default) disables it, rehash in progress is finished then.
+     */
+    public void setIncrementalRehash(int bucketsPerStep) {
+        if (bucketsPerStep < 0)
+            throw new IllegalArgumentException("Illegal buckets per step: " + bucketsPerStep);
+        rehashBuckets = bucketsPerStep;
+        if (bucketsPerStep == 0) {
+            finishRehash();
+        }
+    }
+
+    public int getIncrementalRehash() {
+        return rehashBuckets;
+    }
+
+    public boolean isRehashing() {
+        return oldTable != 0;
+    }
+
+    /**
+     * Migrates up to <tt>buckets</tt> non-empty buckets of incremental rehash in progress.
+     *
+     * @return true, if rehash is not finished yet
+     */
+    public boolean rehashStep(int buckets) {
+        ensureOpen();
+        long old = oldTable;
+        if (old == 0) {
+            return false;
+        }
+        long oldLength = oldTableLength;
+        // empty buckets are cheap, but their number is bounded too
+        long visits = (long) buckets * 10;
+        while (buckets > 0 && visits-- > 0 && rehashIndex < oldLength) {
+            if (migrateBucket(rehashIndex++)) {
+                buckets--;
+            }
+        }
+        if (rehashIndex < oldLength) {
+            return true;
+        }
+        setOldTable(0, oldLength);
+        if (chains != null) {
+            chains.rehashFinished();
+        }
+        freeTable(old);
+        return false;
+    }
+
+    private void finishRehash() {
+        while (rehashStep(Integer.MAX_VALUE))
+            ;
+    }
+
+    /**
+     * Moves chain of the old table bucket to the new table. Returns false, if bucket is empty.
+     */
+    private boolean migrateBucket(long j) {
+        long bucket = oldTable + (j << 3);
+        long e = unsafe.getLong(bucket);
+        if (e <= 0) {
+            return false;
+        }
+        modCount++;
+        long length = tableLength;
+        do {
+            long next = getNext(e);
+            long i = indexFor(getHash(e), length);
+            long head = getFromTable(i);
+            chainGrown(i);
+            setNext(head, e);
+            putToTable(i, e);
+            e = next;
+        } while (e > 0);
+        unsafe.putLong(bucket, 0);
+        if (chains != null) {
+            chains.migrated(j);
+        }
+        return true;
+    }
+
+    /**
+     * Step of incremental rehash before modification of the chain of the hash. The chain is
+     * in the new table after it, so callers index {@link #table} as usual.
+     */
+    private void rehashFor(long hash) {
+        if (oldTable != 0) {
+            migrateBucket(indexFor(hash, oldTableLength));
+            rehashStep(rehashBuckets);
+        }
+    }
+
+    /**
+     * Sets default time to live of entries after they are put. Entry expires then, even if it
+     * is read. Expiry costs 32 bytes per entry: deadlines and links of the timer wheel are kept
+     * in the entry header, so it can be enabled only while the map is empty. 0 means that
+     * entries do not expire after write, unless they are put with own time to live
+     * (see {@link #put(Object, Object, long, TimeUnit)}), but expiry is enabled still.
+     *
+     * Expired entry is not visible for get, containsKey and iterators. It is removed lazily,
+     * when its key is written, or by a bounded batch of expired entries, which every put and
+     * remove collects, so {@link #size()} may count expired entries, which are not removed yet.
+     *
+     * @throws IllegalStateException if expiry is not enabled yet and the map is not empty
+     */
+    public void setExpireAfterWrite(long duration, TimeUnit unit) {
+        if (duration < 0)
+            throw new IllegalArgumentException("Illegal duration: " + duration);
+        enableExpiry();
+        writeTtl = unit.toMillis(duration);
+    }
+
+    /**
+     * Sets time to live of entries after the last get or put. Readers only write the time of
+     * access into the entry, entry is rescheduled when its previous deadline comes.
+     * See {@link #setExpireAfterWrite(long, TimeUnit)}.
+     *
+     * @throws IllegalStateException if expiry is not enabled yet and the map is not empty
+     */
+    public void setExpireAfterAccess(long duration, TimeUnit unit) {
+        if (duration < 0)
+            throw new IllegalArgumentException("Illegal duration: " + duration);
+        enableExpiry();
+        accessTtl = unit.toMillis(duration);
+    }
+
+    public long getExpireAfterWrite(TimeUnit unit) {
+        return unit.convert(writeTtl, TimeUnit.MILLISECONDS);
+    }
+
+    public long getExpireAfterAccess(TimeUnit unit) {
+        return unit.convert(accessTtl, TimeUnit.MILLISECONDS);
+    }
+
+    private void enableExpiry() {
+        if (wheel != null) {
+            return;
+        }
+        if (size > 0)
+            throw new IllegalStateException("Expiry can be enabled only while the map is empty");
+        keyStart = expiryStart + EXPIRY_FIELDS;
+        memory.keyStart = keyStart;
+        startWheel();
+    }
+
+    private void startWheel() {
+        origin = System.nanoTime();
+        wheel = new TimerWheel(expiryStart + EXPIRY_LINKS, currentTime(), owner);
+        attach(wheel);
+    }
+
+    /**
+     * Time of expiry in ms, it never goes back. Overridden by tests.
+     */
+    long currentTime() {
+        return (System.nanoTime() - origin) / 1000000;
+    }
+
+    /**
+     * The earliest of deadlines after write and after access, or Long.MAX_VALUE.
+     */
+    private long deadline(long e) {
+        long deadline = unsafe.getLong(e + expiryStart + WRITE_DEADLINE);
+        if (accessTtl > 0) {
+            deadline = Math.min(deadline, later(unsafe.getLong(e + expiryStart + ACCESSED), accessTtl));
+        }
+        return deadline;
+    }
+
+    private static long later(long time, long ttl) {
+        return time > Long.MAX_VALUE - ttl ? Long.MAX_VALUE : time + ttl;
+    }
+
+    /**
+     * True, if expiry is enabled and the entry has expired. Entry is not modified, so it is
+     * safe for optimistic readers.
+     */
+    final boolean isExpired(long e) {
+        return wheel != null && deadline(e) <= currentTime();
+    }
+
+    /**
+     * Writes time of access of live entry, if it may expire after access.
+     */
+    private void touch(long e) {
+        if (wheel != null && accessTtl > 0) {
+            unsafe.putLong(e + expiryStart + ACCESSED, currentTime());
+        }
+    }
+
+    /**
+     * Starts life of new or rewritten entry: sets deadline after write (<tt>ttl</tt> in ms,
+     * or default one, if it is 0) and reschedules the entry.
+     */
+    private void renew(long e, long ttl) {
+        long now = currentTime();
+        if (ttl == 0) {
+            ttl = writeTtl;
+        }
+        unsafe.putLong(e + expiryStart + WRITE_DEADLINE, ttl > 0 ? later(now, ttl) : Long.MAX_VALUE);
+        unsafe.putLong(e + expiryStart + ACCESSED, now);
+        wheel.unlink(e);
+        long deadline = deadline(e);
+        if (deadline != Long.MAX_VALUE) {
+            wheel.schedule(e, deadline);
+        }
+    }
+
+    /**
+     * Removes up to {@link #EXPIRY_BATCH} due entries, which have expired, and reschedules
+     * due entries, which were read since they were scheduled. Called before put and remove.
+     */
+    private void expireEntries() {
+        if (wheel == null) {
+            return;
+        }
+        long now = currentTime();
+        wheel.advance(now);
+        for (int n = 0; n < EXPIRY_BATCH; n++) {
+            long e = wheel.pollDue();
+            if (e == 0) {
+                return;
+            }
+            long deadline = deadline(e);
+            if (deadline <= now) {
+                removeEntry(e);
+            } else {
+                wheel.schedule(e, deadline);
+            }
+        }
+    }
+
+    /**
+     * Called when entry is unlinked from the chain of the bucket, before it is freed.
+     */
+    private void entryRemoved(long e, long bucket) {
+        if (chains != null) {
+            if (bucket >= table && bucket < table + (tableLength << 3)) {
+                chains.removed((bucket - table) >>> 3);
+            } else {
+                chains.removedOld((bucket - oldTable) >>> 3);
+            }
+        }
+        entryBytes -= entrySize(e);
+        if (wheel != null) {
+            wheel.unlink(e);
+        }
+        recordRemoval(e);
+    }
+
+    /**
+     * Address of the bucket, which holds the chain of the hash. Lengths are read before
+     * tables, so an optimistic reader stays inside the tables it reads (see {@link #setTable(long, long)}).
+     */
+    private long bucketFor(long hash) {
+        ensureOpen();
+        long oldLength = oldTableLength;
+        long old = oldTable;
+        if (old != 0 && oldLength > 0) {
+            long bucket = old + (indexFor(hash, oldLength) << 3);
+            if (unsafe.getLong(bucket) > 0) {
+                return bucket;
+            }
+        }
+        long length = tableLength;
+        return table + (indexFor(hash, length) << 3);
+    }
+
+    /**
+     * Number of buckets in both tables, see {@link #bucketAt(long)}.
+     */
+    final long bucketCount() {
+        return oldTable != 0 ? oldTableLength + tableLength : tableLength;
+    }
+
+    /**
+     * Head of the chain in the bucket, buckets of the old table go first while rehash
+     * is in progress.
+     */
+    final long bucketAt(long i) {
+        ensureOpen();
+        if (oldTable != 0) {
+            if (i < oldTableLength) {
+                return unsafe.getLong(oldTable + (i << 3));
+            }
+            i -= oldTableLength;
+        }
+        return getFromTable(i);
+    }
+
+    /**
+     * Serializes probe key once per operation, if keys are compared by bytes.
+     * Returns {@link #BY_EQUALS} marker otherwise.
+     */
+    private byte[] probeKey(Object key) {
+        if (!keyBytesComparison || key == null) {
+            return BY_EQUALS;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            return toArrayK(k);
+        } catch (ClassCastException e) {
+            return BY_EQUALS;
+        }
+    }
+
+    private boolean keyMatches(long e, Object key, byte[] keyArr) {
+        if (keyArr == BY_EQUALS) {
+            Object k = getKey(e);
+            return k == key || (key != null && key.equals(k));
+        }
+        return unsafe.getInt(e + KEY_LENGTH) == keyArr.length && Utils.memoryEquals(e + keyStart, keyArr);
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map. If the map contains
+     * more than <tt>Integer.MAX_VALUE</tt> elements, returns <tt>Integer.MAX_VALUE</tt>.
      *
      * @return the number of key-value mappings in this map
+     * @see #sizeLong()
      */
     public int size() {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map, which may exceed
+     * <tt>Integer.MAX_VALUE</tt>: with load factor above 1, or in large map mode,
+     * see {@link #setLargeMap(boolean)}.
+     */
+    public long sizeLong() {
         return size;
     }
 
@@ -231,38 +995,69 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
     public V get(Object key) {
         if (key == null)
             return getForNullKey();
-        int hash = hash(key.hashCode());
+        long hash = hashOf(key);
         return get(key, hash);
     }
 
-    V get(Object key, int hash) {
-        for (long e = getFromTable(indexFor(hash, tableLength));
+    V get(Object key, long hash) {
+        byte[] keyArr = null;
+        for (long e = unsafe.getLong(bucketFor(hash));
              e > 0l;
              e = getNext(e)) {
-            Object k;
-            if (getHash(e) == hash && ((k = getKey(e)) == key || key.equals(k))) {
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
+                if (isExpired(e)) {
+                    return null;
+                }
+                touch(e);
+                recordAccess(e);
                 return getValue(e);
             }
         }
         return null;
     }
 
-    private long getFromTable(int num) {
+    /**
+     * Like {@link #get(Object, long)}, but returns copy of serialized value
+     * (empty for null value) or null, if there is no mapping for the key.
+     * Value is deserialized later by {@link #valueFromBytes(byte[])}, so
+     * optimistic reader can validate the copy first.
+     */
+    final byte[] getValueBytes(Object key, long hash) {
+        long e = getEntry(key, hash);
+        if (e <= 0) {
+            return null;
+        }
+        touch(e);
+        int length = unsafe.getInt(e + VAL_LENGTH);
+        if (length < 1) {
+            return NULL_ARR;
+        }
+        byte[] val = new byte[length];
+        unsafe.copyMemory(null, e + keyStart + unsafe.getInt(e + KEY_LENGTH), val, BYTE_ARRAY_OFFSET, length);
+        return val;
+    }
+
+    final V valueFromBytes(byte[] arr) {
+        return arr.length == 0 ? null : fromArrayV(arr);
+    }
+
+    private long getFromTable(long num) {
+        ensureOpen();
         return getFromTable(num, table, tableLength);
     }
 
-    private long getFromTable(int num, long table, int tableLength) {
+    private long getFromTable(long num, long table, long tableLength) {
         if (num >= 0) {
             if (num < tableLength) {
                 return unsafe.getLong(table + (num << 3));
             }
-            throw new ArrayIndexOutOfBoundsException(num);
+            throw new ArrayIndexOutOfBoundsException("Bucket " + num);
         } else {
             return 0;
         }
     }
 
-    private void putToTable(int num, long entry) {
+    private void putToTable(long num, long entry) {
         unsafe.putLong(table + (num << 3), entry);
     }
 
@@ -274,9 +1069,15 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * others.
      */
     private V getForNullKey() {
-        for (long e = getFromTable(0); e > 0; e = getNext(e)) {
-            if (getKey(e) == null)
+        for (long e = unsafe.getLong(bucketFor(0)); e > 0; e = getNext(e)) {
+            if (getKey(e) == null) {
+                if (isExpired(e)) {
+                    return null;
+                }
+                touch(e);
+                recordAccess(e);
                 return getValue(e);
+            }
         }
         return null;
     }
@@ -299,18 +1100,17 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * for the key.
      */
     final long getEntry(Object key) {
-        int hash = (key == null) ? 0 : hash(key.hashCode());
+        long hash = hashOf(key);
         return getEntry(key, hash);
     }
 
-    long getEntry(Object key, int hash) {
-        for (long e = getFromTable(indexFor(hash, tableLength));
+    long getEntry(Object key, long hash) {
+        byte[] keyArr = null;
+        for (long e = unsafe.getLong(bucketFor(hash));
              e > 0;
              e = getNext(e)) {
-            Object k;
-            if (getHash(e) == hash &&
-                    ((k = getKey(e)) == key || (key != null && key.equals(k))))
-                return e;
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key))))
+                return isExpired(e) ? 0 : e;
         }
         return 0;
     }
@@ -332,18 +1132,47 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
     public V put(K key, V value) {
         if (key == null)
             return putForNullKey(value);
-        int hash = hash(key.hashCode());
+        long hash = hashOf(key);
         return put(key, value, hash);
     }
 
-    V put(K key, V value, int hash) {
-        int i = indexFor(hash, tableLength);
+    /**
+     * Like {@link #put(Object, Object)}, but the entry expires after given time to live,
+     * instead of the default one (see {@link #setExpireAfterWrite(long, TimeUnit)}).
+     * It enables expiry, if the map is still empty.
+     *
+     * @throws IllegalStateException if expiry is not enabled and the map is not empty
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        if (ttl <= 0)
+            throw new IllegalArgumentException("Illegal time to live: " + ttl);
+        // at least 1 ms, 0 stands for the default
+        long ttlMillis = Math.max(unit.toMillis(ttl), 1);
+        if (key == null)
+            return putForNullKey(value, ttlMillis);
+        return put(key, value, hashOf(key), ttlMillis);
+    }
+
+    V put(K key, V value, long hash) {
+        return put(key, value, hash, 0);
+    }
+
+    /**
+     * @param ttl time to live in ms, or 0 for the default one; positive one enables expiry
+     */
+    V put(K key, V value, long hash, long ttl) {
+        if (ttl > 0) {
+            enableExpiry();
+        }
+        expireEntries();
+        rehashFor(hash);
+        long i = indexFor(hash, tableLength);
         long prev = -1;
+        byte[] keyArr = null;
         for (long e = getFromTable(i); e > 0; e = getNext(e)) {
-            Object k;
-            if (getHash(e) == hash && ((k = getKey(e)) == key || key.equals(k))) {
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
                 long oldEntryPointer = e;
-                V oldValue = getValue(e);
+                V oldValue = isExpired(e) ? null : getValue(e);
                 e = setValue(value, e);
                 if (oldEntryPointer != e) {
                      if (prev == -1) {
@@ -352,14 +1181,22 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
                          setNext(e, prev);
                      }
                 }
-                //e.recordAccess(this);
+                if (wheel != null) {
+                    renew(e, ttl);
+                }
+                recordAccess(e);
+                afterWrite(e);
                 return oldValue;
             }
             prev = e;
         }
 
         modCount++;
-        addEntry(hash, key, value, i);
+        long e = addEntry(hash, key, value, i);
+        if (ttl > 0) {
+            renew(e, ttl);
+        }
+        afterWrite(e);
         return null;
     }
 
@@ -367,12 +1204,21 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * Offloaded version of put for null keys
      */
     private V putForNullKey(V value) {
+        return putForNullKey(value, 0);
+    }
+
+    private V putForNullKey(V value, long ttl) {
+        if (ttl > 0) {
+            enableExpiry();
+        }
+        expireEntries();
+        rehashFor(0);
         long e = 0;
             long prev = -1;
             for (e = getFromTable(0); e > 0; e = getNext(e)) {
                 if (getKey(e) == null) {
                     long oldEntryPointer = e;
-                    V oldValue = getValue(e);
+                    V oldValue = isExpired(e) ? null : getValue(e);
                     e = setValue(value, e);
                     if (oldEntryPointer != e) {
                         if (prev == -1) {
@@ -381,13 +1227,22 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
                             setNext(e, prev);
                         }
                     }
+                    if (wheel != null) {
+                        renew(e, ttl);
+                    }
+                    recordAccess(e);
+                    afterWrite(e);
                     return oldValue;
                 }
                 prev = e;
             }
 
         modCount++;
-        addEntry(0, null, value, 0);
+        e = addEntry(0, null, value, 0);
+        if (ttl > 0) {
+            renew(e, ttl);
+        }
+        afterWrite(e);
         return null;
     }
 
@@ -398,22 +1253,21 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * addEntry.
      */
     private void putForCreate(K key, V value) {
-        int hash = (key == null) ? 0 : hash(key.hashCode());
-        int i = indexFor(hash, tableLength);
+        long hash = hashOf(key);
+        long i = indexFor(hash, tableLength);
 
         /**
          * Look for preexisting entry for key.  This will never happen for
          * clone or deserialize.  It will only happen for construction if the
          * input Map is a sorted map whose ordering is inconsistent w/ equals.
          */
+        byte[] keyArr = null;
         for (long e = getFromTable(i); e > 0; e = getNext(e)) {
-            Object k;
-            if (getHash(e) == hash &&
-                    ((k = getKey(e)) == key || (key != null && key.equals(k)))) {
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
                 setValue(value, e);
                 return;
             }
-        }                                    
+        }
 
         createEntry(hash, key, value, i);
     }
@@ -429,9 +1283,10 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * Rehashes the contents of this map into a new array with a
      * larger capacity.  This method is called automatically when the
      * number of keys in this map reaches its threshold.
+     * In incremental mode it only starts the rehash (finishing the previous one).
      *
      * If current capacity is MAXIMUM_CAPACITY, this method does not
-     * resize the map, but sets threshold to Integer.MAX_VALUE.
+     * resize the map, but sets threshold to Long.MAX_VALUE.
      * This has the effect of preventing future calls.
      *
      * @param newCapacity the new capacity, MUST be a power of two;
@@ -439,31 +1294,98 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      *        capacity is MAXIMUM_CAPACITY (in which case value
      *        is irrelevant).
      */
-    void resize(int newCapacity) {
-        int oldCapacity = tableLength;
-        if (oldCapacity == MAXIMUM_CAPACITY) {
-            threshold = Integer.MAX_VALUE;
-            return;
+    void resize(long newCapacity) {
+        finishRehash();
+        long oldCapacity = tableLength;
+        if (oldCapacity >= maximumCapacity()) {
+            threshold = Long.MAX_VALUE;
+            return;
+        }
+
+        long oldTable = table;
+        long newTable = newTable(newCapacity);
+
+        if (rehashBuckets > 0) {
+            // entries are migrated by following operations
+            rehashIndex = 0;
+            setOldTable(oldTable, oldCapacity);
+            setTable(newTable, newCapacity);
+            if (chains != null) {
+                chains.rehashStarted(newCapacity);
+            }
+        } else {
+            //Entry[] newTable = new Entry[newCapacity];
+            transfer(oldCapacity, oldTable, newTable, newCapacity);
+            setTable(newTable, newCapacity);
+            freeTable(oldTable);
+            recountChains();
+        }
+        resizeCount++;
+        threshold = (long) (newCapacity * loadFactor);
+    }
+
+    /**
+     * Counts chains of the table anew, after all entries were moved anyway.
+     */
+    private void recountChains() {
+        if (chains == null) {
+            return;
+        }
+        chains.reset(tableLength);
+        for (long i = 0; i < tableLength; i++) {
+            for (long e = getFromTable(i); e > 0; e = getNext(e)) {
+                chains.added(i);
+            }
+        }
+    }
+
+    /**
+     * Counts entry, linked to the chain of bucket <tt>i</tt>, in the histogram, if it is kept.
+     */
+    private void chainGrown(long i) {
+        if (chains != null) {
+            chains.added(i);
         }
+    }
 
-        long newTable = newTable(newCapacity);
+    /**
+     * Enables or disables histogram of chain lengths in {@link #getMetrics()}. It costs an
+     * update of the length of the chain (4 bytes per bucket) on every insert and removal,
+     * so it is off by default, and chain lengths of metrics are unavailable then.
+     * Enabling counts the chains of the whole table once.
+     */
+    public void setChainHistogram(boolean enabled) {
+        ensureOpen();
+        if (!enabled) {
+            if (chains != null) {
+                chains.run();
+                chains = null;
+            }
+        } else if (chains == null) {
+            finishRehash();
+            if (attachedChains == null) {
+                attachedChains = new ChainHistogram(tableLength, owner);
+                attach(attachedChains);
+            }
+            chains = attachedChains;
+            recountChains();
+        }
+    }
 
-        //Entry[] newTable = new Entry[newCapacity];
-        transfer(oldCapacity, table, newTable, newCapacity);
-        table = newTable;
-        threshold = (int)(newCapacity * loadFactor);
+    public boolean isChainHistogram() {
+        return chains != null;
     }
 
     /**
      * Transfers all entries from current table to newTable.
      */
-    void transfer(int oldCapacity, long oldTable, long newTable,int newCapacity) {
-        for (int j = 0; j < oldCapacity; j++) {
+    void transfer(long oldCapacity, long oldTable, long newTable, long newCapacity) {
+        for (long j = 0; j < oldCapacity; j++) {
             long e = getFromTable(j, oldTable, oldCapacity);
             if (e > 0) {
                 unsafe.putLong(oldTable + (j << 3), 0);
                 do {
-                    int i = indexFor(getHash(e), newCapacity);
+                    long i = indexFor(getHash(e), newCapacity);
                     long next = getNext(e);
                     setNext(unsafe.getLong(newTable + (i << 3)), e);
                     unsafe.putLong(newTable + (i << 3), e);
@@ -496,10 +1418,10 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
          * to at most one extra resize.
          */
         if (numKeysToBeAdded > threshold) {
-            int targetCapacity = (int)(numKeysToBeAdded / loadFactor + 1);
-            if (targetCapacity > MAXIMUM_CAPACITY)
-                targetCapacity = MAXIMUM_CAPACITY;
-            int newCapacity = tableLength;
+            long targetCapacity = (long)(numKeysToBeAdded / loadFactor + 1);
+            if (targetCapacity > maximumCapacity())
+                targetCapacity = maximumCapacity();
+            long newCapacity = tableLength;
             while (newCapacity < targetCapacity)
                 newCapacity <<= 1;
             if (newCapacity > tableLength)
@@ -512,6 +1434,65 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         }
     }
 
+    /**
+     * Bulk load: puts all mappings of the iterator, resizing the table once for
+     * <tt>expectedSize</tt> more mappings instead of doubling it on the way.
+     *
+     * If <tt>uniqueKeys</tt> is true, the caller guarantees that keys are distinct and absent
+     * in the map, so entries are linked without looking the key up: no chain walk and no key
+     * comparison. If the guarantee is broken, the map keeps duplicate keys.
+     * Entries are allocated by the allocator of the map, {@link com.jad.offheap.allocator.SlabAllocator}
+     * places them contiguously.
+     *
+     * @param expectedSize number of mappings, more or less is allowed
+     */
+    public void putAll(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, long expectedSize,
+                       boolean uniqueKeys) {
+        ensureOpen();
+        ensureCapacity(size + expectedSize);
+        while (entries.hasNext()) {
+            Map.Entry<? extends K, ? extends V> e = entries.next();
+            K key = e.getKey();
+            if (uniqueKeys) {
+                putUnique(key, e.getValue(), hashOf(key));
+            } else {
+                put(key, e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds entry for the key, which is known to be absent, without looking it up.
+     * Bounded maps evict after it as after put.
+     */
+    void putUnique(K key, V value, long hash) {
+        expireEntries();
+        rehashFor(hash);
+        modCount++;
+        afterWrite(addEntry(hash, key, value, indexFor(hash, tableLength)));
+    }
+
+    /**
+     * Resizes the table at once (even in incremental rehash mode), so that it holds
+     * <tt>mappings</tt> without further resizes.
+     */
+    public void ensureCapacity(long mappings) {
+        ensureOpen();
+        long targetCapacity = (long) (mappings / loadFactor) + 1;
+        long newCapacity = tableLength;
+        while (newCapacity < targetCapacity && newCapacity < maximumCapacity())
+            newCapacity <<= 1;
+        if (newCapacity > tableLength) {
+            int buckets = rehashBuckets;
+            rehashBuckets = 0;
+            try {
+                resize(newCapacity);
+            } finally {
+                rehashBuckets = buckets;
+            }
+        }
+    }
+
     /**
      * Removes the mapping for the specified key from this map if present.
      *
@@ -527,39 +1508,358 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         
     }
 
-    V remove(Object key, int hash) {
+    V remove(Object key, long hash) {
+        expireEntries();
+        rehashFor(hash);
         long e = removeEntryForKey(key, hash);
         return (e < 1 ? null : getValueAndFree(e));
        
     }
 
+    // Atomic operations of ConcurrentMap: one chain walk per operation. A key mapped to
+    // null value is treated as absent. Functions MUST NOT modify the map.
+
+    /**
+     * If the key is not mapped to a value, maps it to the given one.
+     *
+     * @return the current value, or null, if the value was put
+     */
+    public V putIfAbsent(K key, V value) {
+        return putIfAbsent(key, value, hashOf(key));
+    }
+
+    /**
+     * Replaces the value only if the key is mapped to a value.
+     *
+     * @return the previous value, or null, if nothing was replaced
+     */
+    public V replace(K key, V value) {
+        return replace(key, value, hashOf(key));
+    }
+
+    /**
+     * Replaces the value only if the key is mapped to <tt>oldValue</tt>. Values are compared
+     * by serialized bytes, so <tt>oldValue</tt> is not deserialized.
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        return replace(key, oldValue, newValue, hashOf(key));
+    }
+
+    /**
+     * Removes the mapping only if the key is mapped to <tt>value</tt>, compared by serialized bytes.
+     */
+    public boolean remove(Object key, Object value) {
+        return remove(key, value, hashOf(key));
+    }
+
+    /**
+     * If the key is not mapped to a value, maps it to the value computed by the function,
+     * unless it is null. Named apart from <tt>computeIfAbsent</tt> of Java 8 <tt>Map</tt>, whose
+     * default is not atomic, so that lambdas are not ambiguous; same for the other atomic operations.
+     *
+     * @return the current (existing or computed) value
+     */
+    public V computeIfAbsentAtomic(K key, Function<? super K, ? extends V> function) {
+        return computeIfAbsentAtomic(key, function, hashOf(key));
+    }
+
+    /**
+     * If the key is mapped to a value, maps it to the value computed from the key and the old
+     * value, or removes the mapping, if the function returns null.
+     *
+     * @return the new value, or null
+     */
+    public V computeIfPresentAtomic(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        return computeIfPresentAtomic(key, function, hashOf(key));
+    }
+
+    /**
+     * If the key is not mapped to a value, maps it to the given one, otherwise maps it to the value
+     * computed from the old and the given values, or removes the mapping, if the function returns null.
+     *
+     * @return the new value, or null
+     */
+    public V mergeAtomic(K key, V value, BiFunction<? super V, ? super V, ? extends V> function) {
+        return mergeAtomic(key, value, function, hashOf(key));
+    }
+
+    final long hashOf(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        if (hashFunction != null) {
+            try {
+                @SuppressWarnings("unchecked")
+                K k = (K) key;
+                return hashBytes(hashFunction, toArrayK(k), largeMap);
+            } catch (ClassCastException e) {
+                // key of foreign type is not in the map anyway
+                return 0;
+            }
+        }
+        // large map always has a hash function
+        return hash(key.hashCode());
+    }
+
+    V putIfAbsent(K key, V value, long hash) {
+        long e = lookup(key, hash);
+        V current = getLiveValue(e);
+        if (current == null) {
+            setOrAdd(e, key, value, hash);
+        } else {
+            recordAccess(e);
+        }
+        return current;
+    }
+
+    V replace(K key, V value, long hash) {
+        long e = lookup(key, hash);
+        V current = getLiveValue(e);
+        if (current != null) {
+            replaceFound(e, value);
+        }
+        return current;
+    }
+
+    boolean replace(K key, V oldValue, V newValue, long hash) {
+        long e = lookup(key, hash);
+        if (e == 0 || !valueMatches(e, oldValue)) {
+            return false;
+        }
+        replaceFound(e, newValue);
+        return true;
+    }
+
+    boolean remove(Object key, Object value, long hash) {
+        long e = lookup(key, hash);
+        if (e == 0 || !valueMatches(e, value)) {
+            return false;
+        }
+        removeFound(e);
+        return true;
+    }
+
+    V computeIfAbsentAtomic(K key, Function<? super K, ? extends V> function, long hash) {
+        long e = lookup(key, hash);
+        V current = getLiveValue(e);
+        if (current != null) {
+            recordAccess(e);
+            return current;
+        }
+        V value = function.apply(key);
+        if (value != null) {
+            setOrAdd(e, key, value, hash);
+        }
+        return value;
+    }
+
+    V computeIfPresentAtomic(K key, BiFunction<? super K, ? super V, ? extends V> function, long hash) {
+        long e = lookup(key, hash);
+        V current = getLiveValue(e);
+        if (current == null) {
+            return null;
+        }
+        return remap(e, function.apply(key, current));
+    }
+
+    V mergeAtomic(K key, V value, BiFunction<? super V, ? super V, ? extends V> function, long hash) {
+        long e = lookup(key, hash);
+        V current = getLiveValue(e);
+        if (current == null) {
+            setOrAdd(e, key, value, hash);
+            return value;
+        }
+        return remap(e, function.apply(current, value));
+    }
+
+    /**
+     * Bucket and previous entry (or 0 for the head) of the entry found by {@link #lookup}.
+     */
+    private transient long lookupBucket;
+    private transient long lookupPrev;
+
+    /**
+     * Finds live entry of the key for an update, remembers its place in the chain.
+     * Entry, which has expired, is removed. Returns 0, if there is no entry.
+     */
+    private long lookup(Object key, long hash) {
+        expireEntries();
+        rehashFor(hash);
+        long bucket = bucketFor(hash);
+        long prev = 0;
+        byte[] keyArr = null;
+        for (long e = unsafe.getLong(bucket); e > 0; prev = e, e = getNext(e)) {
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
+                if (isExpired(e)) {
+                    removeEntry(e);
+                    return 0;
+                }
+                lookupBucket = bucket;
+                lookupPrev = prev;
+                return e;
+            }
+        }
+        return 0;
+    }
+
+    private V getLiveValue(long e) {
+        return e == 0 ? null : getValue(e);
+    }
+
+    private boolean valueMatches(long e, Object value) {
+        int length = unsafe.getInt(e + VAL_LENGTH);
+        if (value == null) {
+            return length == 0;
+        }
+        byte[] valArr;
+        try {
+            @SuppressWarnings("unchecked")
+            V v = (V) value;
+            valArr = toArrayV(v);
+        } catch (ClassCastException ex) {
+            return false;
+        }
+        return length == valArr.length
+                && Utils.memoryEquals(e + keyStart + unsafe.getInt(e + KEY_LENGTH), valArr);
+    }
+
+    private void setOrAdd(long e, K key, V value, long hash) {
+        if (e != 0) {
+            replaceFound(e, value);
+        } else {
+            modCount++;
+            afterWrite(addEntry(hash, key, value, indexFor(hash, tableLength)));
+        }
+    }
+
+    /**
+     * Replaces value of the entry found by {@link #lookup}, or removes it, if the value is null.
+     */
+    private V remap(long e, V value) {
+        if (value == null) {
+            removeFound(e);
+        } else {
+            replaceFound(e, value);
+        }
+        return value;
+    }
+
+    private void replaceFound(long e, V value) {
+        long moved = setValue(value, e);
+        if (moved != e) {
+            if (lookupPrev == 0) {
+                unsafe.putLong(lookupBucket, moved);
+            } else {
+                setNext(moved, lookupPrev);
+            }
+        }
+        if (wheel != null) {
+            renew(moved, 0);
+        }
+        recordAccess(moved);
+        afterWrite(moved);
+    }
+
+    private void removeFound(long e) {
+        modCount++;
+        size--;
+        if (lookupPrev == 0) {
+            unsafe.putLong(lookupBucket, getNext(e));
+        } else {
+            setNext(getNext(e), lookupPrev);
+        }
+        entryRemoved(e, lookupBucket);
+        free(e);
+    }
+
+    // In-place counters: values of the map MUST be serialized by Serializers.LONG_SERIALIZER.
+    // The 8 value bytes are updated where they are, nothing is serialized or allocated,
+    // unless the key is absent. Absent key counts as 0.
+
+    public long addAndGet(K key, long delta) {
+        return updateLong(key, hashOf(key), delta, true) + delta;
+    }
+
+    public long getAndAdd(K key, long delta) {
+        return updateLong(key, hashOf(key), delta, true);
+    }
+
+    public long incrementAndGet(K key) {
+        return addAndGet(key, 1);
+    }
+
+    public long decrementAndGet(K key) {
+        return addAndGet(key, -1);
+    }
+
+    /**
+     * Sets the counter, returns the previous value.
+     */
+    public long getAndSet(K key, long value) {
+        return updateLong(key, hashOf(key), value, false);
+    }
+
+    /**
+     * Adds <tt>operand</tt> to the counter of the key, or sets it, if <tt>add</tt> is false.
+     * Returns the previous value.
+     */
+    long updateLong(K key, long hash, long operand, boolean add) {
+        if (valueSerializer != Serializers.LONG_SERIALIZER) {
+            throw new UnsupportedOperationException("Values are not serialized by LONG_SERIALIZER");
+        }
+        long e = lookup(key, hash);
+        if (e == 0 || unsafe.getInt(e + VAL_LENGTH) != 8) {
+            // values are serialized by LONG_SERIALIZER, so V is Long
+            @SuppressWarnings("unchecked")
+            V value = (V) Long.valueOf(operand);
+            setOrAdd(e, key, value, hash);
+            return 0;
+        }
+        long address = e + keyStart + unsafe.getInt(e + KEY_LENGTH);
+        long stored = unsafe.getLong(address);
+        long old = BIG_ENDIAN ? stored : Long.reverseBytes(stored);
+        long value = add ? old + operand : operand;
+        unsafe.putLong(address, BIG_ENDIAN ? value : Long.reverseBytes(value));
+        if (wheel != null) {
+            renew(e, 0);
+        }
+        recordAccess(e);
+        return old;
+    }
+
     /**
      * Removes and returns the entry associated with the specified key
      * in the HashMap.  Returns null if the HashMap contains no mapping
      * for this key.
      */
     final long removeEntryForKey(Object key) {
-        int hash = (key == null) ? 0 : hash(key.hashCode());
+        long hash = hashOf(key);
+        expireEntries();
+        rehashFor(hash);
         return removeEntryForKey(key, hash);
     }
 
-    long removeEntryForKey(Object key, int hash) {
-        int i = indexFor(hash, tableLength);
-        long prev = getFromTable(i);
+    /**
+     * Does not make a step of incremental rehash, so buckets are not moved under iterators.
+     */
+    long removeEntryForKey(Object key, long hash) {
+        long bucket = bucketFor(hash);
+        long prev = unsafe.getLong(bucket);
         long e = prev;
+        byte[] keyArr = null;
 
         while (e > 0) {
             long next = getNext(e);
-            if (getHash(e) == hash &&
-                    (key != null && key.equals(getKey(e)))) {
+            if (getHash(e) == hash && key != null
+                    && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
                 modCount++;
                 size--;
                 if (prev == e) {
-                    putToTable(i, next);
+                    unsafe.putLong(bucket, next);
                 } else {
                     setNext(next, prev);
                 }
-                // TODO recordRemoval(this);
+                entryRemoved(e, bucket);
                 return e;
             }
             prev = e;
@@ -575,16 +1875,18 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         if (!(o instanceof Map.Entry))
             return 0;
 
-        Map.Entry entry = (Map.Entry<K,V>) o;
+        Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
         Object key = entry.getKey();
-        int hash = (key == null) ? 0 : hash(key.hashCode());
-        int i = indexFor(hash, tableLength);
+        long hash = hashOf(key);
+        expireEntries();
+        rehashFor(hash);
+        long i = indexFor(hash, tableLength);
         long prev = getFromTable(i);
         long e = prev;
 
         while (e > 0) {
             long next = getNext(e);
-            if (getHash(e) == hash && equalsEntry(e, entry)) {
+            if (getHash(e) == hash && equalsEntry(e, entry) && !isExpired(e)) {
                 modCount++;
                 size--;
                 if (prev == e) {
@@ -592,6 +1894,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
                 } else {
                     setNext(next, prev);
                 }
+                entryRemoved(e, table + (i << 3));
                 free(e);
                 return e;
             }
@@ -602,19 +1905,58 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         return e;
     }
 
+    /**
+     * Removes the entry found by its position, without deserialization of the key.
+     */
+    final void removeEntry(long entry) {
+        long bucket = bucketFor(getHash(entry));
+        long prev = 0;
+        for (long e = unsafe.getLong(bucket); e > 0; prev = e, e = getNext(e)) {
+            if (e == entry) {
+                modCount++;
+                size--;
+                if (prev == 0) {
+                    unsafe.putLong(bucket, getNext(e));
+                } else {
+                    setNext(getNext(e), prev);
+                }
+                entryRemoved(e, bucket);
+                free(e);
+                return;
+            }
+        }
+    }
+
     /**
      * Removes all of the mappings from this map.
      * The map will be empty after this call returns.
      */
     public void clear() {
+        ensureOpen();
         modCount++;
-        for (int i = 0; i < tableLength; i++) {
-            long entry = getFromTable(i);
-            if (entry > 0) {
-                recursiveClear(entry);
-                putToTable(i, 0);
+        long old = oldTable;
+        if (allocator.releaseAll()) {
+            unsafe.setMemory(table, tableLength << 3, (byte) 0);
+        } else {
+            for (long i = 0; i < bucketCount(); i++) {
+                long entry = bucketAt(i);
+                if (entry > 0) {
+                    recursiveClear(entry);
+                }
             }
+            unsafe.setMemory(table, tableLength << 3, (byte) 0);
+        }
+        if (old != 0) {
+            setOldTable(0, oldTableLength);
+            freeTable(old);
+        }
+        if (wheel != null) {
+            wheel.clear();
+        }
+        if (chains != null) {
+            chains.reset(tableLength);
         }
+        entryBytes = 0;
         size = 0;
     }
 
@@ -631,9 +1973,9 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
             return containsNullValue();
 
         //Entry[] tab = table;
-        for (int i = 0; i < tableLength ; i++)
-            for (long e = getFromTable(i) ; e > 0 ; e = getNext(e))
-                if (value.equals(getValue(e)))
+        for (long i = 0; i < bucketCount() ; i++)
+            for (long e = bucketAt(i) ; e > 0 ; e = getNext(e))
+                if (value.equals(getValue(e)) && !isExpired(e))
                     return true;
         return false;
     }
@@ -642,9 +1984,9 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * Special-case code for containsValue with null argument
      */
     private boolean containsNullValue() {
-        for (int i = 0; i < tableLength ; i++)
-            for (long e = getFromTable(i) ; e > 0 ; e = getNext(e))
-                if (getValue(e) == null)
+        for (long i = 0; i < bucketCount() ; i++)
+            for (long e = bucketAt(i) ; e > 0 ; e = getNext(e))
+                if (getValue(e) == null && !isExpired(e))
                     return true;
         return false;
     }
@@ -656,43 +1998,103 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * @return a shallow copy of this map
      */
     public Object clone() {
+        ensureOpen();
         OffHeapHashMap<K,V> result = null;
         try {
-            result = (OffHeapHashMap<K,V>)super.clone();
+            @SuppressWarnings("unchecked")
+            OffHeapHashMap<K,V> copy = (OffHeapHashMap<K,V>)super.clone();
+            result = copy;
         } catch (CloneNotSupportedException e) {
             // assert false;
         }
-        result.table = newTable(tableLength);
+        result.owner = AllocationTracker.ownerOf(result);
+        result.allocator = AllocationTracker.owned(allocator.newInstance(), result.owner);
+        result.openMemory();
+        result.setTable(result.newTable(tableLength), tableLength);
+        result.setOldTable(0, 0);
+        result.rehashIndex = 0;
         result.entrySet = null;
         result.modCount = 0;
         result.size = 0;
+        result.chains = null;
+        result.attachedChains = null;
+        if (chains != null) {
+            result.setChainHistogram(true);
+        }
+        result.entryBytes = 0;
+        result.resizeCount = 0;
+        if (wheel != null) {
+            // live entries are copied, they expire after write as new ones
+            result.startWheel();
+        }
         result.init();
         result.putAllForCreate(this);
 
         return result;
     }
-    private static final long DEF_POS = unsafe.allocateMemory(36);
+    private static final long DEF_POS = unsafe.allocateMemory(36, OffHeapHashMap.class.getName());
     static {
         unsafe.setMemory(DEF_POS, 36, (byte)0);
     }
 
     private static final int KEY_START = 20;
+    /**
+     * Offset of header extension of subclasses, aligned for pointers.
+     * Key of a large map entry without extension starts here.
+     */
+    static final int EXTENSION = 24;
     private static final int KEY_LENGTH = 0;
     private static final int VAL_LENGTH = 4;
-    private static final int HASH = 8;
-    private static final int NEXT = 12;
+    /**
+     * Aligned, so concurrent readers never see a torn pointer.
+     */
+    private static final int NEXT = 8;
+    /**
+     * Int hash of compact map, or long hash of large map.
+     */
+    private static final int HASH = 16;
 
-    public long init(int h, K k, V v, long n) {
-        byte[] keyArr = toArrayK(k);
-        byte[] valArr = toArrayV(v);
+    /**
+     * Offsets of expiry fields from {@link #expiryStart}: absolute deadline after write and
+     * time of the last access (in ms of {@link #currentTime()}), links of the timer wheel.
+     */
+    private static final int WRITE_DEADLINE = 0;
+    private static final int ACCESSED = 8;
+    private static final int EXPIRY_LINKS = 16;
+    private static final int EXPIRY_FIELDS = 32;
 
-        int size = KEY_START + keyArr.length + valArr.length;
-        long position = unsafe.allocateMemory(size);
-        unsafe.setMemory(position, size, (byte) 0);
-        unsafe.putInt(position + HASH, h);
+    /**
+     * Maximum number of due entries handled by a put or remove.
+     */
+    private static final int EXPIRY_BATCH = 16;
+
+    public long init(long h, K k, V v, long n) {
+        byte[] keyArr = directKeySerializer == null ? toArrayK(k) : null;
+        byte[] valArr = directValueSerializer == null ? toArrayV(v) : null;
+        int keyLength = keyArr != null ? keyArr.length : (k == null ? 0 : directKeySerializer.sizeOf(k));
+        int valLength = valArr != null ? valArr.length : (v == null ? 0 : directValueSerializer.sizeOf(v));
+
+        int size = keyStart + keyLength + valLength;
+        long position = allocator.allocate(size);
+        entryBytes += size;
+        unsafe.setMemory(position, keyStart, (byte) 0);
+        putHash(position, h);
         setNext(n, position);
-        setKey(keyArr, position, true);
-        setValueFirst(valArr, keyArr.length, position);
+        if (keyArr != null) {
+            setKey(keyArr, position, true);
+        } else if (keyLength > 0) {
+            unsafe.putInt(position + KEY_LENGTH, keyLength);
+            directKeySerializer.write(k, position + keyStart);
+        }
+        if (valArr != null) {
+            setValueFirst(valArr, keyLength, position);
+        } else if (valLength > 0) {
+            unsafe.putInt(position + VAL_LENGTH, valLength);
+            directValueSerializer.write(v, position + keyStart + keyLength);
+        }
+        if (wheel != null) {
+            renew(position, 0);
+        }
         return position;
     }
 
@@ -723,7 +2125,10 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         if (length < 1) {
             return null;
         }
-        long keyAddr = position + KEY_START;
+        long keyAddr = position + keyStart;
+        if (directKeySerializer != null) {
+            return directKeySerializer.read(keyAddr, length);
+        }
         byte[] key = new byte[length];
         unsafe.copyMemory(null, keyAddr, key, BYTE_ARRAY_OFFSET, length);
         return fromArrayK(key);
@@ -738,18 +2143,29 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         if (length < 1) {
             return null;
         }
-        long valAddr = position + KEY_START + unsafe.getInt(position + KEY_LENGTH);
+        long valAddr = position + keyStart + unsafe.getInt(position + KEY_LENGTH);
         return getValue0(valAddr, length);
     }
 
     protected V getValue0(long valAddr, int length) {
+        if (directValueSerializer != null) {
+            return directValueSerializer.read(valAddr, length);
+        }
         byte[] val = new byte[length];
         unsafe.copyMemory(null, valAddr, val, BYTE_ARRAY_OFFSET, length);
         return fromArrayV(val);
     }
 
-    protected int getHash(long position) {
-        return unsafe.getInt(position + HASH);
+    protected long getHash(long position) {
+        return largeMap ? unsafe.getLong(position + HASH) : unsafe.getInt(position + HASH);
+    }
+
+    private void putHash(long position, long hash) {
+        if (largeMap) {
+            unsafe.putLong(position + HASH, hash);
+        } else {
+            unsafe.putInt(position + HASH, (int) hash);
+        }
     }
 
     protected long getNext(long position) {
@@ -761,22 +2177,32 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
 
     protected final long setValue(V newValue, long position) {
         int keyLength = unsafe.getInt(position + KEY_LENGTH);
-        long valAddr = position + KEY_START + keyLength;
+        long valAddr = position + keyStart + keyLength;
         int valLength = unsafe.getInt(position + VAL_LENGTH);
-        byte[] arr = toArrayV(newValue);
-        int newValLength = arr.length;
-        unsafe.putInt(position + VAL_LENGTH, newValLength);
+        byte[] arr = directValueSerializer == null ? toArrayV(newValue) : null;
+        int newValLength = arr != null ? arr.length : (newValue == null ? 0 : directValueSerializer.sizeOf(newValue));
         if (newValLength != valLength) {
-            position = unsafe.reallocateMemory(position, KEY_START + keyLength + newValLength);
-            valAddr = position + KEY_START + keyLength;
+            entryBytes += newValLength - valLength;
+            long moved = resizeEntry(position, keyStart + keyLength + valLength,
+                    keyStart + keyLength + newValLength);
+            if (wheel != null && moved != position) {
+                wheel.relocated(moved);
+            }
+            position = moved;
+            valAddr = position + keyStart + keyLength;
+        }
+        unsafe.putInt(position + VAL_LENGTH, newValLength);
+        if (arr != null) {
+            unsafe.copyMemory(arr, BYTE_ARRAY_OFFSET, null, valAddr, newValLength);
+        } else if (newValLength > 0) {
+            directValueSerializer.write(newValue, valAddr);
         }
-        unsafe.copyMemory(arr, BYTE_ARRAY_OFFSET, null, valAddr, newValLength);
         return position;
     }
 
     protected final void setValueFirst(byte[] newVal, int keyLength, long position) {
         if (newVal != NULL_ARR) {
-            long valAddr = position + KEY_START + keyLength;
+            long valAddr = position + keyStart + keyLength;
             int length = newVal.length;
             unsafe.putInt(position + VAL_LENGTH, length);
             unsafe.copyMemory(newVal, BYTE_ARRAY_OFFSET, null, valAddr, length);
@@ -785,7 +2211,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
 
     protected void setKey(byte[] newKey, long position, boolean first) {
         if (newKey != NULL_ARR) {
-            long keyAddr = position + KEY_START;
+            long keyAddr = position + keyStart;
             int length = newKey.length;
             unsafe.putInt(position + KEY_LENGTH, length);
             unsafe.copyMemory(newKey, BYTE_ARRAY_OFFSET, null, keyAddr, length);
@@ -796,17 +2222,42 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         if (position == 0) {
             return null;
         }
-        V ret = getValue(position);
+        V ret = isExpired(position) ? null : getValue(position);
         free(position);
         return ret;
     }
 
     public void free(long position) {
         if(position > 0) {
-            unsafe.freeMemory(position);
+            allocator.free(position, entrySize(position));
         }
     }
 
+    /**
+     * Changes size of the entry memory block, keeping its content. Returns new position.
+     */
+    long resizeEntry(long position, int oldSize, int newSize) {
+        return allocator.reallocate(position, oldSize, newSize);
+    }
+
+    /**
+     * Moves the entry to a new block and frees the old one with {@link #free(long)},
+     * instead of reallocation in place.
+     */
+    final long relocateEntry(long position, int oldSize, int newSize) {
+        long moved = allocator.allocate(newSize);
+        unsafe.copyMemory(position, moved, Math.min(oldSize, newSize));
+        free(position);
+        return moved;
+    }
+
+    /**
+     * Size of the entry memory block: header, key and value.
+     */
+    protected final int entrySize(long position) {
+        return keyStart + unsafe.getInt(position + KEY_LENGTH) + unsafe.getInt(position + VAL_LENGTH);
+    }
+
     private void setNext(long value, long position) {
         unsafe.putLong(position + NEXT, value);
     }
@@ -831,7 +2282,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
     public final boolean equalsEntry(long entry, Object o) {
         if (!(o instanceof Map.Entry))
             return false;
-        Map.Entry e = (Map.Entry)o;
+        Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
         Object k1 = getKey(entry);
         Object k2 = e.getKey();
         if (k1 == k2 || (k1 != null && k1.equals(k2))) {
@@ -860,11 +2311,13 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
 
         @Override
         public K getKey() {
+            ensureOpen();
             return OffHeapHashMap.this.getKey(position);
         }
 
         @Override
         public V getValue() {
+            ensureOpen();
             return OffHeapHashMap.this.getValue(position);
         }
 
@@ -908,13 +2361,13 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
          */
     }
 
-    int getTableLength() {
+    long getTableLength() {
         return tableLength;
     }
 
-    Entry getEntryAtPosition(int tabPosition, int num) {
-        if (tabPosition >= 0 && tabPosition < tableLength) {
-            long ret = getFromTable(tabPosition);
+    Entry getEntryAtPosition(long tabPosition, int num) {
+        if (tabPosition >= 0 && tabPosition < bucketCount()) {
+            long ret = bucketAt(tabPosition);
             while (ret > 0 && num-- > 0) {
                 ret = getNext(ret);
             }
@@ -930,16 +2383,15 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
 
     private void updateEntry(long oldPos, long newPos) {
         long prev = -1;
-        int hash = getHash(newPos);
-        int num = indexFor(hash, tableLength);
-        for (long e = getFromTable(num); e > 0; e = getNext(e)) {
+        long bucket = bucketFor(getHash(newPos));
+        for (long e = unsafe.getLong(bucket); e > 0; e = getNext(e)) {
             if (e == oldPos) {
                 if (prev > -1) {
-                    setNext(newPos, e);
-                    break;
+                    setNext(newPos, prev);
                 } else {
-                    putToTable(num, newPos);
+                    unsafe.putLong(bucket, newPos);
                 }
+                break;
             }
             prev = e;
         }
@@ -951,13 +2403,16 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * method to resize the table if appropriate.
      *
      * Subclass overrides this to alter the behavior of put method.
+     * Returns the new entry.
      */
-    void addEntry(int hash, K key, V value, int bucketIndex) {
+    long addEntry(long hash, K key, V value, long bucketIndex) {
         long e = getFromTable(bucketIndex);
+        chainGrown(bucketIndex);
         long entry = init(hash, key, value, e);
         putToTable(bucketIndex, entry);
         if (size++ >= threshold)
             resize(2 * tableLength);
+        return entry;
     }
 
     /**
@@ -968,8 +2423,9 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
      * Subclass overrides this to alter the behavior of HashMap(Map),
      * clone, and readObject.
      */
-    void createEntry(int hash, K key, V value, int bucketIndex) {
+    void createEntry(long hash, K key, V value, long bucketIndex) {
         long e = getFromTable(bucketIndex);
+        chainGrown(bucketIndex);
         long entry = init(hash, key, value, e);
         putToTable(bucketIndex, entry);
         size++;
@@ -978,15 +2434,26 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
     private abstract class HashIterator<E> implements Iterator<E> {
         long next;	// next entry to return
         int expectedModCount;	// For fast-fail
-        int index;		// current slot
+        long index;		// current slot
         long current;	// current entry
 
         HashIterator() {
+            ensureOpen();
             expectedModCount = modCount;
             if (size > 0) { // advance to first entry
                 //Entry[] t = table;
-                while (index < tableLength && (next = getFromTable(index++)) == 0)
+                while (index < bucketCount() && (next = bucketAt(index++)) == 0)
                     ;
+                skipExpired();
+            }
+        }
+
+        private void skipExpired() {
+            while (next > 0 && isExpired(next)) {
+                if ((next = getNext(next)) == 0) {
+                    while (index < bucketCount() && (next = bucketAt(index++)) == 0)
+                        ;
+                }
             }
         }
 
@@ -995,6 +2462,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         }
 
         final long nextEntry() {
+            ensureOpen();
             if (modCount != expectedModCount)
                 throw new ConcurrentModificationException();
             long e = next;
@@ -1002,9 +2470,10 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
                 throw new NoSuchElementException();
 
             if ((next = getNext(e)) == 0) {
-                while (index < tableLength && (next = getFromTable(index++)) == 0)
+                while (index < bucketCount() && (next = bucketAt(index++)) == 0)
                     ;
             }
+            skipExpired();
             current = e;
             return e;
         }
@@ -1015,7 +2484,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
             if (modCount != expectedModCount)
                 throw new ConcurrentModificationException();
             Object k = getKey(current);
-            free(OffHeapHashMap.this.removeEntryForKey(k));
+            free(OffHeapHashMap.this.removeEntryForKey(k, getHash(current)));
             expectedModCount = modCount;
         }
 
@@ -1077,7 +2546,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
             return newKeyIterator();
         }
         public int size() {
-            return size;
+            return OffHeapHashMap.this.size();
         }
         public boolean contains(Object o) {
             return containsKey(o);
@@ -1116,7 +2585,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
             return newValueIterator();
         }
         public int size() {
-            return size;
+            return OffHeapHashMap.this.size();
         }
         public boolean contains(Object o) {
             return containsValue(o);
@@ -1158,7 +2627,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         public boolean contains(Object o) {
             if (!(o instanceof Map.Entry))
                 return false;
-            Map.Entry e = (Map.Entry<K,V>) o;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
             long candidate = getEntry(e.getKey());
             return candidate > 0 && OffHeapHashMap.this.equalsEntry(candidate ,e);
         }
@@ -1166,7 +2635,7 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
             return removeMapping(o) > 0;
         }
         public int size() {
-            return size;
+            return OffHeapHashMap.this.size();
         }
         public void clear() {
             OffHeapHashMap.this.clear();
@@ -1190,19 +2659,29 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
         Iterator<Map.Entry<K,V>> i =
                 (size > 0) ? entrySet0().iterator() : null;
 
-        // Write out the threshold, loadfactor, and any hidden stuff
+        // Write out the loadfactor, and any hidden stuff
         s.defaultWriteObject();
 
-        // Write out number of buckets
-        s.writeInt(tableLength);
+        // Write out number of buckets, -1 and long number if it does not fit int
+        if (tableLength > Integer.MAX_VALUE) {
+            s.writeInt(-1);
+            s.writeLong(tableLength);
+        } else {
+            s.writeInt((int) tableLength);
+        }
 
-        // Write out size (number of Mappings)
-        s.writeInt(size);
+        // Write out size (number of Mappings), -1 and long size if it does not fit int
+        if (size > Integer.MAX_VALUE) {
+            s.writeInt(-1);
+            s.writeLong(size);
+        } else {
+            s.writeInt((int) size);
+        }
 
         // Write out keys and values (alternating)
         if (i != null) {
             while (i.hasNext()) {
-                Map.Entry e = i.next();
+                Map.Entry<K,V> e = i.next();
                 s.writeObject(e.getKey());
                 s.writeObject(e.getValue());
             }
@@ -1216,28 +2695,151 @@ public class OffHeapHashMap<K, V> extends AbstractMap<K,V>
     private void readObject(java.io.ObjectInputStream s)
             throws IOException, ClassNotFoundException
     {
-        // Read in the threshold, loadfactor, and any hidden stuff
+        // Read in the loadfactor, and any hidden stuff
         s.defaultReadObject();
 
         // Read in number of buckets and allocate the bucket array;
-        int numBuckets = s.readInt();
-        table = newTable(numBuckets);
+        int intBuckets = s.readInt();
+        long numBuckets = intBuckets < 0 ? s.readLong() : intBuckets;
+        owner = AllocationTracker.ownerOf(this);
+        openMemory();
+        setTable(newTable(numBuckets), numBuckets);
+        threshold = (long) (numBuckets * loadFactor);
+        if (keyStart > expiryStart) {
+            // expiry was enabled, entries expire after write as new ones
+            startWheel();
+        }
 
         init();  // Give subclass a chance to do its thing.
 
         // Read in size (number of Mappings)
-        int size = s.readInt();
+        int intSize = s.readInt();
+        long size = intSize < 0 ? s.readLong() : intSize;
 
         // Read the keys and values, and put the mappings in the HashMap
-        for (int i=0; i<size; i++) {
+        for (long i=0; i<size; i++) {
+            @SuppressWarnings("unchecked")
             K key = (K) s.readObject();
+            @SuppressWarnings("unchecked")
             V value = (V) s.readObject();
             putForCreate(key, value);
         }
     }
 
+    /**
+     * Writes raw snapshot of the map. Entries are copied from off-heap memory to the channel
+     * as they are (lengths, hash, key and value bytes), nothing is deserialized.
+     * Snapshot keeps hashes of keys, so it is valid only for keys with <tt>hashCode()</tt>
+     * stable between JVM runs (e.g. strings or boxed primitives), unless the map, which reads it,
+     * hashes key bytes (see {@link #setHashFunction(HashFunction)}).
+     */
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        Snapshot.Writer writer = new Snapshot.Writer(channel);
+        writer.writeHeader(Snapshot.MAP, largeMap, tableLength, size);
+        for (long i = 0; i < bucketCount(); i++) {
+            for (long e = bucketAt(i); e > 0; e = getNext(e)) {
+                int keyLength = unsafe.getInt(e + KEY_LENGTH);
+                int valLength = unsafe.getInt(e + VAL_LENGTH);
+                writer.writeInt(keyLength);
+                writer.writeInt(valLength);
+                writer.writeHash(getHash(e));
+                writer.write(e + keyStart, keyLength + valLength);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Replaces content of the map with snapshot, written by {@link #writeSnapshot(WritableByteChannel)}.
+     * Entries are copied to off-heap memory as they are, serializers are not invoked.
+     * If the map has a hash function, stored hashes are ignored, keys bytes are hashed again,
+     * so snapshot may be written with other function or seed. Otherwise keys are deserialized
+     * and hashed again only if snapshot of large map is read by compact one, or vice versa.
+     * If reading fails, the map is left empty.
+     */
+    public void readSnapshot(ReadableByteChannel channel) throws IOException {
+        Snapshot.Reader reader = new Snapshot.Reader(channel);
+        reader.readHeader(Snapshot.MAP);
+        clear();
+        long tableLength = Math.min(reader.tableLength, maximumCapacity());
+        if (tableLength > this.tableLength) {
+            long oldTable = table;
+            setTable(newTable(tableLength), tableLength);
+            freeTable(oldTable);
+            if (chains != null) {
+                chains.reset(tableLength);
+            }
+            resizeCount++;
+            threshold = (long) (tableLength * loadFactor);
+        }
+        boolean loaded = false;
+        try {
+            for (long n = 0; n < reader.size; n++) {
+                int keyLength = reader.readInt();
+                int valLength = reader.readInt();
+                long hash = reader.readHash();
+                if (keyLength < 0 || valLength < 0) {
+                    throw new IOException("Corrupted snapshot entry");
+                }
+                long position = allocator.allocate(keyStart + keyLength + valLength);
+                entryBytes += keyStart + keyLength + valLength;
+                unsafe.setMemory(position, keyStart, (byte) 0);
+                unsafe.putInt(position + KEY_LENGTH, keyLength);
+                unsafe.putInt(position + VAL_LENGTH, valLength);
+                try {
+                    reader.read(position + keyStart, keyLength + valLength);
+                } catch (IOException e) {
+                    // not linked yet, clear() would miss it
+                    free(position);
+                    throw e;
+                }
+                if (hashFunction != null) {
+                    hash = hashMemory(position + keyStart, keyLength);
+                } else if (reader.largeHashes != largeMap) {
+                    hash = hashOf(getKey(position));
+                }
+                putHash(position, hash);
+                long i = indexFor(hash, tableLength);
+                long head = getFromTable(i);
+                chainGrown(i);
+                setNext(head, position);
+                putToTable(i, position);
+                size++;
+                if (wheel != null) {
+                    renew(position, 0);
+                }
+            }
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                clear();
+            }
+        }
+        while (size >= threshold && this.tableLength < maximumCapacity()) {
+            resize(2 * this.tableLength);
+        }
+    }
+
+    /**
+     * Native memory and structure of the map. Numbers are maintained by modifications,
+     * the table is not walked. Chain histogram is empty, unless it is enabled by
+     * {@link #setChainHistogram(boolean)}.
+     */
+    public CollectionMetrics getMetrics() {
+        long buckets = bucketCount();
+        return new CollectionMetrics(size, buckets, buckets << 3, entryBytes, otherBytes(), resizeCount,
+                chains != null ? chains.toArray() : new long[0]);
+    }
+
+    /**
+     * Native memory of auxiliary structures.
+     */
+    long otherBytes() {
+        return wheel != null ? wheel.bytes() : 0;
+    }
+
     // These methods are used when serializing HashSets
-    int   capacity()     { return tableLength; }
+    long  capacity()     { return tableLength; }
     float loadFactor()   { return loadFactor;   }
 
 
@@ -1,10 +1,19 @@
 package com.jad.offheap.collections.impl;
 
 
+import com.jad.offheap.AllocationTracker;
+import com.jad.offheap.UnsafeProvider;
 import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.collections.metrics.CollectionMetrics;
+import com.jad.offheap.collections.metrics.MetricsSource;
+import com.jad.offheap.collections.serializer.DirectSerializer;
 import com.jad.offheap.collections.serializer.Serializer;
+import com.jad.offheap.collections.utils.Utils;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 
@@ -14,10 +23,14 @@ import java.util.*;
  */
 
 public class OffHeapHashSet<K> extends AbstractSet<K>
-        implements Set<K>, Cloneable {
+        implements Set<K>, Cloneable, Closeable, MetricsSource {
     private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
     private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
     private static final byte[] NULL_ARR = new byte[]{};
+    /**
+     * Marker of a probe key, which is compared by equals (not by serialized bytes).
+     */
+    private static final byte[] BY_EQUALS = new byte[]{};
 
     /**
      * The default initial capacity - MUST be a power of two.
@@ -56,6 +69,17 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
 
     private Serializer<K> keySerializer;
 
+    /**
+     * Key serializer, if it writes off-heap memory directly, or null.
+     */
+    private DirectSerializer<K> directKeySerializer;
+
+    /**
+     * If true, lookups compare serialized probe key with stored key bytes
+     * instead of deserializing every candidate entry.
+     */
+    private boolean keyBytesComparison;
+
 
     /**
      * The load factor for the hash table.
@@ -73,6 +97,29 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
      */
     transient volatile int modCount;
 
+    /**
+     * Number of buckets by length of chains for {@link #getMetrics()}, null unless it is
+     * enabled by {@link #setChainHistogram(boolean)}.
+     */
+    transient ChainHistogram chains;
+
+    transient long entryBytes;
+
+    transient int resizeCount;
+
+    /**
+     * Native memory of the set, it is released by {@link #close()}, or by the cleaner,
+     * if the set becomes unreachable without close.
+     */
+    private transient Memory memory;
+    private transient Runnable cleaner;
+    private transient volatile boolean closed;
+
+    /**
+     * Owner of native memory of the set for {@link AllocationTracker}.
+     */
+    private transient String owner = AllocationTracker.ownerOf(this);
+
     private boolean containNull = false; //TODO null not support on iterator
 
     /**
@@ -103,14 +150,81 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         threshold = (int)(capacity * loadFactor);
 
         this.keySerializer = keySerializer;
+        initDirectSerializer();
 
-        table = newTable(capacity);
+        openMemory();
+        setTable(newTable(capacity));
         init();
     }
 
+    private void setTable(long table) {
+        this.table = table;
+        memory.table = table;
+        memory.tableLength = tableLength;
+    }
+
+    private void openMemory() {
+        memory = new Memory();
+        cleaner = UnsafeProvider.registerCleaner(this, memory);
+    }
+
+    /**
+     * Native memory of the set: the table and entries. It does not refer the set,
+     * so the cleaner can release it after the set is collected.
+     */
+    private static final class Memory implements Runnable {
+        private long table;
+        private int tableLength;
+        private ChainHistogram chains;
+
+        @Override
+        public void run() {
+            for (int i = 0; i < tableLength; i++) {
+                long e = unsafe.getLong(table + ((long) i << 3));
+                while (e > 0) {
+                    long next = unsafe.getLong(e + NEXT);
+                    unsafe.freeMemory(e);
+                    e = next;
+                }
+            }
+            unsafe.freeMemory(table);
+            table = 0;
+            tableLength = 0;
+            if (chains != null) {
+                chains.run();
+            }
+        }
+    }
+
+    /**
+     * Releases all native memory of the set. The set can not be used after that,
+     * its operations throw {@link IllegalStateException}. Set, which is not closed,
+     * is released after it becomes unreachable, but native memory does not make GC run,
+     * so long living applications should close sets explicitly.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        size = 0;
+        containNull = false;
+        cleaner.run();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Set is closed");
+        }
+    }
+
     private long newTable(int capacity) {
         tableLength = capacity;
-        long l = unsafe.allocateMemory(capacity << 3);
+        long l = unsafe.allocateMemory(((long) capacity) << 3, owner);
         if (l <= 0) {
             throw new OutOfMemoryError();
         }
@@ -136,8 +250,10 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
     public OffHeapHashSet(Serializer<K> keySerializer) {
         this.loadFactor = DEFAULT_LOAD_FACTOR;
         threshold = (int)(DEFAULT_INITIAL_CAPACITY * DEFAULT_LOAD_FACTOR);
-        table = newTable(DEFAULT_INITIAL_CAPACITY);
+        openMemory();
+        setTable(newTable(DEFAULT_INITIAL_CAPACITY));
         this.keySerializer = keySerializer;
+        initDirectSerializer();
         init();
     }
 
@@ -160,6 +276,12 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         return keySerializer;
     }
 
+    private void initDirectSerializer() {
+        if (keySerializer instanceof DirectSerializer) {
+            directKeySerializer = (DirectSerializer<K>) keySerializer;
+        }
+    }
+
     // internal utilities
 
     /**
@@ -196,6 +318,44 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         return h & (length-1);
     }
 
+    /**
+     * Enables or disables comparison of keys by serialized bytes.
+     * It avoids deserialization of every entry with the same hash, but it is correct
+     * only if key serializer produces equal bytes for equal keys.
+     */
+    public void setKeyBytesComparison(boolean keyBytesComparison) {
+        this.keyBytesComparison = keyBytesComparison;
+    }
+
+    public boolean isKeyBytesComparison() {
+        return keyBytesComparison;
+    }
+
+    /**
+     * Serializes probe key once per operation, if keys are compared by bytes.
+     * Returns {@link #BY_EQUALS} marker otherwise.
+     */
+    private byte[] probeKey(Object key) {
+        if (!keyBytesComparison || key == null) {
+            return BY_EQUALS;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            return toArrayK(k);
+        } catch (ClassCastException e) {
+            return BY_EQUALS;
+        }
+    }
+
+    private boolean keyMatches(long e, Object key, byte[] keyArr) {
+        if (keyArr == BY_EQUALS) {
+            Object k = getKey(e);
+            return k == key || (key != null && key.equals(k));
+        }
+        return unsafe.getInt(e + KEY_LENGTH) == keyArr.length && Utils.memoryEquals(e + KEY_START, keyArr);
+    }
+
     /**
      * Returns the number of key-value mappings in this map.
      *
@@ -215,13 +375,14 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
     }
 
     private long getFromTable(int num) {
+        ensureOpen();
         return getFromTable(num, table, tableLength);
     }
 
     private long getFromTable(int num, long table, int tableLength) {
         if (num >= 0) {
             if (num < tableLength) {
-                return unsafe.getLong(table + (num << 3));
+                return unsafe.getLong(table + ((long) num << 3));
             }
             throw new ArrayIndexOutOfBoundsException(num);
         } else {
@@ -230,7 +391,7 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
     }
 
     private void putToTable(int num, long entry) {
-        unsafe.putLong(table + (num << 3), entry);
+        unsafe.putLong(table + ((long) num << 3), entry);
     }
 
 
@@ -247,6 +408,10 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         return getEntry(key) > 0;
     }
 
+    public boolean contains(Object o) {
+        return containsKey(o);
+    }
+
     /**
      * Returns the entry associated with the specified key in the
      * HashMap.  Returns null if the HashMap contains no mapping
@@ -258,12 +423,11 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
     }
 
     long getEntry(Object key, int hash) {
+        byte[] keyArr = null;
         for (long e = getFromTable(indexFor(hash, tableLength));
              e > 0;
              e = getNext(e)) {
-            Object k;
-            if (getHash(e) == hash &&
-                    ((k = getKey(e)) == key || (key != null && key.equals(k))))
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key))))
                 return e;
         }
         return 0;
@@ -284,8 +448,9 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
 
     boolean add(K key, int hash) {
         int i = indexFor(hash, tableLength);
+        byte[] keyArr = null;
         for (long e = getFromTable(i); e > 0; e = getNext(e)) {
-            if (getHash(e) == hash && key.equals(getKey(e))) {
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
                 return false;
             }
         }
@@ -310,10 +475,9 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
          * clone or deserialize.  It will only happen for construction if the
          * input Map is a sorted map whose ordering is inconsistent w/ equals.
          */
+        byte[] keyArr = null;
         for (long e = getFromTable(i); e > 0; e = getNext(e)) {
-            Object k;
-            if (getHash(e) == hash &&
-                    ((k = getKey(e)) == key || (key != null && key.equals(k)))) {
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
                 return;
             }
         }
@@ -349,14 +513,67 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
             return;
         }
 
+        long oldTable = table;
         long newTable = newTable(newCapacity);
 
         //Entry[] newTable = new Entry[newCapacity];
-        transfer(oldCapacity, table, newTable, newCapacity);
-        table = newTable;
+        transfer(oldCapacity, oldTable, newTable, newCapacity);
+        setTable(newTable);
+        unsafe.freeMemory(oldTable);
+        recountChains();
+        resizeCount++;
         threshold = (int)(newCapacity * loadFactor);
     }
 
+    /**
+     * Counts chains of the table anew, after all entries were moved anyway.
+     */
+    private void recountChains() {
+        if (chains == null) {
+            return;
+        }
+        chains.reset(tableLength);
+        for (int i = 0; i < tableLength; i++) {
+            for (long e = getFromTable(i); e > 0; e = getNext(e)) {
+                chains.added(i);
+            }
+        }
+    }
+
+    /**
+     * Counts entry, linked to the chain of bucket <tt>i</tt>, in the histogram, if it is kept.
+     */
+    private void chainGrown(int i) {
+        if (chains != null) {
+            chains.added(i);
+        }
+    }
+
+    /**
+     * Enables or disables histogram of chain lengths in {@link #getMetrics()}, see
+     * {@link OffHeapHashMap#setChainHistogram(boolean)}.
+     */
+    public void setChainHistogram(boolean enabled) {
+        ensureOpen();
+        if (!enabled) {
+            if (chains != null) {
+                chains.run();
+                chains = null;
+            }
+        } else if (chains == null) {
+            if (memory.chains == null) {
+                // released with the memory of the set, reused when enabled again
+                memory.chains = new ChainHistogram(tableLength, owner);
+            }
+            chains = memory.chains;
+            recountChains();
+        }
+    }
+
+    public boolean isChainHistogram() {
+        return chains != null;
+    }
+
     /**
      * Transfers all entries from current table to newTable.
      */
@@ -364,12 +581,12 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         for (int j = 0; j < oldCapacity; j++) {
             long e = getFromTable(j, oldTable, oldCapacity);
             if (e > 0) {
-                unsafe.putLong(oldTable + (j << 3), 0);
+                unsafe.putLong(oldTable + ((long) j << 3), 0);
                 do {
                     int i = indexFor(getHash(e), newCapacity);
                     long next = getNext(e);
-                    setNext(unsafe.getLong(newTable + (i << 3)), e);
-                    unsafe.putLong(newTable + (i << 3), e);
+                    setNext(unsafe.getLong(newTable + ((long) i << 3)), e);
+                    unsafe.putLong(newTable + ((long) i << 3), e);
                     e = next;
                 } while (e > 0);
             }
@@ -419,6 +636,43 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         return mod;
     }
 
+    /**
+     * Bulk load: adds all keys of the iterator, resizing the table once for
+     * <tt>expectedSize</tt> more keys instead of doubling it on the way.
+     *
+     * If <tt>uniqueKeys</tt> is true, the caller guarantees that keys are distinct and absent
+     * in the set, so entries are linked without looking the key up. If the guarantee is broken,
+     * the set keeps duplicate keys.
+     *
+     * @param expectedSize number of keys, more or less is allowed
+     */
+    public void addAll(Iterator<? extends K> keys, int expectedSize, boolean uniqueKeys) {
+        ensureCapacity(size + expectedSize);
+        while (keys.hasNext()) {
+            K key = keys.next();
+            if (uniqueKeys && key != null) {
+                int hash = hash(key.hashCode());
+                modCount++;
+                addEntry(hash, key, indexFor(hash, tableLength));
+            } else {
+                add(key);
+            }
+        }
+    }
+
+    /**
+     * Resizes the table at once, so that it holds <tt>keys</tt> without further resizes.
+     */
+    public void ensureCapacity(int keys) {
+        ensureOpen();
+        long targetCapacity = (long) (keys / loadFactor) + 1;
+        int newCapacity = tableLength;
+        while (newCapacity < targetCapacity && newCapacity < MAXIMUM_CAPACITY)
+            newCapacity <<= 1;
+        if (newCapacity > tableLength)
+            resize(newCapacity);
+    }
+
     /**
      * Removes the mapping for the specified key from this map if present.
      *
@@ -430,6 +684,9 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
      */
     public boolean remove(Object key) {
         long e = removeEntryForKey(key);
+        if (e > 1) {
+            free(e);
+        }
         return (e > 0);
 
     }
@@ -446,17 +703,19 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
 
     long removeEntryForKey(Object key, int hash) {
         if (key == null) {
+            // null key has no entry, 1 only marks that it was removed
+            boolean contained = containNull;
             containNull = false;
-            return 1;
+            return contained ? 1 : 0;
         }
         int i = indexFor(hash, tableLength);
         long prev = getFromTable(i);
         long e = prev;
+        byte[] keyArr = null;
 
         while (e > 0) {
             long next = getNext(e);
-            Object k;
-            if (getHash(e) == hash && key.equals(getKey(e))) {
+            if (getHash(e) == hash && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
                 modCount++;
                 size--;
                 if (prev == e) {
@@ -464,6 +723,10 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
                 } else {
                     setNext(next, prev);
                 }
+                if (chains != null) {
+                    chains.removed(i);
+                }
+                entryBytes -= KEY_START + unsafe.getInt(e + KEY_LENGTH);
                 return e;
             }
             prev = e;
@@ -478,6 +741,7 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
      * The map will be empty after this call returns.
      */
     public void clear() {
+        ensureOpen();
         modCount++;
         for (int i = 0; i < tableLength; i++) {
             long entry = getFromTable(i);
@@ -486,6 +750,10 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
                 putToTable(i, 0);
             }
         }
+        if (chains != null) {
+            chains.reset(tableLength);
+        }
+        entryBytes = 0;
         size = 0;
     }
 
@@ -497,13 +765,24 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
      * @return a shallow copy of this map
      */
     public Object clone() {
+        ensureOpen();
         OffHeapHashSet<K> result = null;
         try {
-            result = (OffHeapHashSet<K>)super.clone();
+            @SuppressWarnings("unchecked")
+            OffHeapHashSet<K> copy = (OffHeapHashSet<K>)super.clone();
+            result = copy;
         } catch (CloneNotSupportedException e) {
             // assert false;
         }
-        result.table = newTable(tableLength);
+        result.owner = AllocationTracker.ownerOf(result);
+        result.openMemory();
+        result.setTable(result.newTable(tableLength));
+        result.chains = null;
+        if (chains != null) {
+            result.setChainHistogram(true);
+        }
+        result.entryBytes = 0;
+        result.resizeCount = 0;
         result.modCount = 0;
         result.size = 0;
         result.init();
@@ -511,7 +790,7 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
 
         return result;
     }
-    private static final long DEF_POS = unsafe.allocateMemory(36);
+    private static final long DEF_POS = unsafe.allocateMemory(36, OffHeapHashSet.class.getName());
     static {
         unsafe.setMemory(DEF_POS, 36, (byte)0);
     }
@@ -522,10 +801,22 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
     private static final int NEXT = 8;
 
     public long init(int h, K k, long n) {
+        if (directKeySerializer != null && k != null) {
+            int keyLength = directKeySerializer.sizeOf(k);
+            long position = unsafe.allocateMemory(KEY_START + keyLength, owner);
+            entryBytes += KEY_START + keyLength;
+            unsafe.setMemory(position, KEY_START, (byte) 0);
+            unsafe.putInt(position + HASH, h);
+            setNext(n, position);
+            unsafe.putInt(position + KEY_LENGTH, keyLength);
+            directKeySerializer.write(k, position + KEY_START);
+            return position;
+        }
         byte[] keyArr = toArrayK(k);
 
         int size = KEY_START + keyArr.length;
-        long position = unsafe.allocateMemory(size);
+        long position = unsafe.allocateMemory(size, owner);
+        entryBytes += size;
         unsafe.setMemory(position, size, (byte) 0);
         unsafe.putInt(position + HASH, h);
         setNext(n, position);
@@ -550,6 +841,9 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
             return null;
         }
         long keyAddr = position + KEY_START;
+        if (directKeySerializer != null) {
+            return directKeySerializer.read(keyAddr, length);
+        }
         byte[] key = new byte[length];
         unsafe.copyMemory(null, keyAddr, key, BYTE_ARRAY_OFFSET, length);
         return fromArrayK(key);
@@ -604,6 +898,7 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
      */
     void addEntry(int hash, K key, int bucketIndex) {
         long e = getFromTable(bucketIndex);
+        chainGrown(bucketIndex);
         long entry = init(hash, key, e);
         putToTable(bucketIndex, entry);
         if (size++ >= threshold)
@@ -620,6 +915,7 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
      */
     void createEntry(int hash, K key, int bucketIndex) {
         long e = getFromTable(bucketIndex);
+        chainGrown(bucketIndex);
         long entry = init(hash, key, e);
         putToTable(bucketIndex, entry);
         size++;
@@ -632,6 +928,7 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         long current;	// current entry
 
         HashIterator() {
+            ensureOpen();
             expectedModCount = modCount;
             if (size > 0) { // advance to first entry
                 while (index < tableLength && (next = getFromTable(index++)) == 0)
@@ -644,6 +941,7 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
         }
 
         final long nextEntry() {
+            ensureOpen();
             if (modCount != expectedModCount)
                 throw new ConcurrentModificationException();
             long e = next;
@@ -728,7 +1026,9 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
 
         // Read in number of buckets and allocate the bucket array;
         int numBuckets = s.readInt();
-        table = newTable(numBuckets);
+        owner = AllocationTracker.ownerOf(this);
+        openMemory();
+        setTable(newTable(numBuckets));
 
         init();  // Give subclass a chance to do its thing.
 
@@ -737,11 +1037,97 @@ public class OffHeapHashSet<K> extends AbstractSet<K>
 
         // Read the keys and values, and put the mappings in the HashMap
         for (int i=0; i<size; i++) {
+            @SuppressWarnings("unchecked")
             K key = (K) s.readObject();
             putForCreate(key);
         }
     }
 
+    /**
+     * Writes raw snapshot of the set. Entries are copied from off-heap memory to the channel
+     * as they are (length, hash and key bytes), nothing is deserialized.
+     * Snapshot keeps hashes of keys, so it is valid only for keys with <tt>hashCode()</tt>
+     * stable between JVM runs (e.g. strings or boxed primitives).
+     */
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        Snapshot.Writer writer = new Snapshot.Writer(channel);
+        writer.writeHeader(Snapshot.SET, false, tableLength, size);
+        for (int i = 0; i < tableLength; i++) {
+            for (long e = getFromTable(i); e > 0; e = getNext(e)) {
+                int keyLength = unsafe.getInt(e + KEY_LENGTH);
+                writer.writeInt(keyLength);
+                writer.writeInt(getHash(e));
+                writer.write(e + KEY_START, keyLength);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Replaces content of the set with snapshot, written by {@link #writeSnapshot(WritableByteChannel)}.
+     * Entries are copied to off-heap memory as they are, serializer is not invoked.
+     * If reading fails, the set is left empty.
+     */
+    public void readSnapshot(ReadableByteChannel channel) throws IOException {
+        Snapshot.Reader reader = new Snapshot.Reader(channel);
+        reader.readHeader(Snapshot.SET);
+        if (reader.largeHashes || reader.tableLength > MAXIMUM_CAPACITY) {
+            // sets always write int hashes
+            throw new IOException("Corrupted snapshot header");
+        }
+        clear();
+        if (reader.tableLength > tableLength) {
+            long oldTable = table;
+            setTable(newTable((int) reader.tableLength));
+            unsafe.freeMemory(oldTable);
+            if (chains != null) {
+                chains.reset(tableLength);
+            }
+            resizeCount++;
+            threshold = (int)(tableLength * loadFactor);
+        }
+        boolean loaded = false;
+        try {
+            for (long n = 0; n < reader.size; n++) {
+                int keyLength = reader.readInt();
+                int hash = reader.readInt();
+                if (keyLength < 0) {
+                    throw new IOException("Corrupted snapshot entry");
+                }
+                long position = unsafe.allocateMemory(KEY_START + keyLength, owner);
+                entryBytes += KEY_START + keyLength;
+                unsafe.setMemory(position, KEY_START, (byte) 0);
+                unsafe.putInt(position + KEY_LENGTH, keyLength);
+                unsafe.putInt(position + HASH, hash);
+                int i = indexFor(hash, tableLength);
+                long head = getFromTable(i);
+                chainGrown(i);
+                setNext(head, position);
+                putToTable(i, position);
+                size++;
+                reader.read(position + KEY_START, keyLength);
+            }
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                clear();
+            }
+        }
+        while (size >= threshold && tableLength < MAXIMUM_CAPACITY) {
+            resize(2 * tableLength);
+        }
+    }
+
+    /**
+     * Native memory and structure of the set. Numbers are maintained by modifications,
+     * the table is not walked. Chain histogram is empty, unless it is enabled by
+     * {@link #setChainHistogram(boolean)}.
+     */
+    public CollectionMetrics getMetrics() {
+        return new CollectionMetrics(size, tableLength, (long) tableLength << 3, entryBytes, 0, resizeCount,
+                chains != null ? chains.toArray() : new long[0]);
+    }
+
     // These methods are used when serializing HashSets
     int   capacity()     { return tableLength; }
     float loadFactor()   { return loadFactor;   }
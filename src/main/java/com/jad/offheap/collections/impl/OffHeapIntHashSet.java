@@ -0,0 +1,97 @@
+package com.jad.offheap.collections.impl;
+
+/**
+ * Off-heap set of primitive <tt>int</tt> values without boxing.
+ *
+ * Values are stored inline in the open-addressed table (4 bytes per slot, so about
+ * <tt>4 / loadFactor</tt> bytes per value), no Java objects are allocated by add, contains
+ * and remove, iterator allocates only itself. The table has at most
+ * 2<sup>40</sup> slots. Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/05/14
+ */
+
+public class OffHeapIntHashSet extends OffHeapPrimitiveTable {
+
+    public OffHeapIntHashSet() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    public OffHeapIntHashSet(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param initialCapacity expected number of values
+     * @param loadFactor      the load factor, MUST be less than 1
+     */
+    public OffHeapIntHashSet(int initialCapacity, float loadFactor) {
+        super(initialCapacity, loadFactor, 4, 0);
+    }
+
+    /**
+     * Set for more than 2<sup>31</sup> values.
+     */
+    public OffHeapIntHashSet(long initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * Set for more than 2<sup>31</sup> values.
+     *
+     * @param initialCapacity expected number of values
+     * @param loadFactor      the load factor, MUST be less than 1
+     */
+    public OffHeapIntHashSet(long initialCapacity, float loadFactor) {
+        super(initialCapacity, loadFactor, 4, 0);
+    }
+
+    /**
+     * @return <tt>true</tt> if the set did not contain the value
+     */
+    public boolean add(int value) {
+        insert(value);
+        return inserted;
+    }
+
+    public boolean contains(int value) {
+        return find(value) != 0;
+    }
+
+    /**
+     * @return <tt>true</tt> if the set contained the value
+     */
+    public boolean remove(int value) {
+        long slot = find(value);
+        if (slot == 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Returns iterator of values in no particular order. The set MUST NOT be modified
+     * during iteration, except by {@link IntIterator#remove()}.
+     */
+    public IntIterator iterator() {
+        final Cursor cursor = new Cursor();
+        return new IntIterator() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public int next() {
+                return (int) readKey(cursor.nextSlot());
+            }
+
+            @Override
+            public void remove() {
+                cursor.remove();
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.AllocationTracker;
+import com.jad.offheap.allocator.MemoryAllocator;
+import com.jad.offheap.allocator.UnsafeAllocator;
+import com.jad.offheap.collections.serializer.Serializer;
+
+/**
+ * Off-heap map of primitive <tt>int</tt> keys to serialized values.
+ *
+ * Raw key and pointer to the value are stored inline in the table slot, only value
+ * bytes are stored out of line (block of value length and value bytes), so keys are
+ * never boxed, hashed by <tt>hashCode()</tt> or deserialized. Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/09/14
+ */
+
+public class OffHeapIntObjectMap<V> extends OffHeapPrimitiveTable {
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+
+    private static final int VALUE = 4;
+
+    private static final int VAL_LENGTH = 0;
+    private static final int VAL_START = 4;
+
+    private final Serializer<V> valueSerializer;
+
+    private final MemoryAllocator allocator;
+
+    public OffHeapIntObjectMap(Serializer<V> valueSerializer) {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, valueSerializer);
+    }
+
+    public OffHeapIntObjectMap(int initialCapacity, Serializer<V> valueSerializer) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, valueSerializer);
+    }
+
+    public OffHeapIntObjectMap(int initialCapacity, float loadFactor, Serializer<V> valueSerializer) {
+        this(initialCapacity, loadFactor, valueSerializer, UnsafeAllocator.INSTANCE);
+    }
+
+    /**
+     * @param allocator allocator of value blocks, map becomes its owner
+     */
+    public OffHeapIntObjectMap(int initialCapacity, float loadFactor, Serializer<V> valueSerializer, MemoryAllocator allocator) {
+        super(initialCapacity, loadFactor, 4, 8);
+        this.valueSerializer = valueSerializer;
+        this.allocator = AllocationTracker.owned(allocator, owner);
+        ownValues(this.allocator, VALUE);
+    }
+
+    public Serializer<V> getValueSerializer() {
+        return valueSerializer;
+    }
+
+    public V get(int key) {
+        long slot = find(key);
+        return slot == 0 ? null : readValue(unsafe.getLong(slot + VALUE));
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) != 0;
+    }
+
+    /**
+     * Associates value with the key.
+     *
+     * @return the previous value of the key, or <tt>null</tt>
+     */
+    public V put(int key, V value) {
+        long slot = insert(key);
+        long block = unsafe.getLong(slot + VALUE);
+        V previous = inserted ? null : readValue(block);
+        unsafe.putLong(slot + VALUE, writeValue(value, block));
+        return previous;
+    }
+
+    /**
+     * Removes mapping of the key.
+     *
+     * @return the removed value, or <tt>null</tt>
+     */
+    public V remove(int key) {
+        long slot = find(key);
+        if (slot == 0) {
+            return null;
+        }
+        long block = unsafe.getLong(slot + VALUE);
+        V previous = readValue(block);
+        freeValue(block);
+        removeSlot(slot);
+        return previous;
+    }
+
+    public void clear() {
+        ensureOpen();
+        if (!allocator.releaseAll()) {
+            for (long i = 0; i < capacity; i++) {
+                long slot = slot(i);
+                if (readKey(slot) != 0) {
+                    freeValue(unsafe.getLong(slot + VALUE));
+                }
+            }
+            if (hasZeroKey) {
+                freeValue(unsafe.getLong(zeroSlot + VALUE));
+            }
+        }
+        super.clear();
+    }
+
+    private V readValue(long block) {
+        if (block == 0) {
+            return null;
+        }
+        int length = unsafe.getInt(block + VAL_LENGTH);
+        byte[] val = new byte[length];
+        unsafe.copyMemory(null, block + VAL_START, val, BYTE_ARRAY_OFFSET, length);
+        return valueSerializer.deserialize(val);
+    }
+
+    /**
+     * Writes value to the block, reallocates (or allocates if block is 0) it when length differs.
+     * Null value is stored as 0 block.
+     */
+    private long writeValue(V value, long block) {
+        if (value == null) {
+            freeValue(block);
+            return 0;
+        }
+        byte[] arr = valueSerializer.serialize(value);
+        int length = arr.length;
+        if (block == 0) {
+            block = allocator.allocate(VAL_START + length);
+        } else {
+            int oldLength = unsafe.getInt(block + VAL_LENGTH);
+            if (oldLength != length) {
+                block = allocator.reallocate(block, VAL_START + oldLength, VAL_START + length);
+            }
+        }
+        unsafe.putInt(block + VAL_LENGTH, length);
+        unsafe.copyMemory(arr, BYTE_ARRAY_OFFSET, null, block + VAL_START, length);
+        return block;
+    }
+
+    private void freeValue(long block) {
+        if (block != 0) {
+            allocator.free(block, VAL_START + unsafe.getInt(block + VAL_LENGTH));
+        }
+    }
+}
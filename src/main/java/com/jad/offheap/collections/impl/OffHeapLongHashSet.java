@@ -0,0 +1,97 @@
+package com.jad.offheap.collections.impl;
+
+/**
+ * Off-heap set of primitive <tt>long</tt> values without boxing.
+ *
+ * Values are stored inline in the open-addressed table (8 bytes per slot, so about
+ * <tt>8 / loadFactor</tt> bytes per value), no Java objects are allocated by add, contains
+ * and remove, iterator allocates only itself. The table has at most
+ * 2<sup>40</sup> slots. Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/05/14
+ */
+
+public class OffHeapLongHashSet extends OffHeapPrimitiveTable {
+
+    public OffHeapLongHashSet() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    public OffHeapLongHashSet(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param initialCapacity expected number of values
+     * @param loadFactor      the load factor, MUST be less than 1
+     */
+    public OffHeapLongHashSet(int initialCapacity, float loadFactor) {
+        super(initialCapacity, loadFactor, 8, 0);
+    }
+
+    /**
+     * Set for more than 2<sup>31</sup> values.
+     */
+    public OffHeapLongHashSet(long initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * Set for more than 2<sup>31</sup> values.
+     *
+     * @param initialCapacity expected number of values
+     * @param loadFactor      the load factor, MUST be less than 1
+     */
+    public OffHeapLongHashSet(long initialCapacity, float loadFactor) {
+        super(initialCapacity, loadFactor, 8, 0);
+    }
+
+    /**
+     * @return <tt>true</tt> if the set did not contain the value
+     */
+    public boolean add(long value) {
+        insert(value);
+        return inserted;
+    }
+
+    public boolean contains(long value) {
+        return find(value) != 0;
+    }
+
+    /**
+     * @return <tt>true</tt> if the set contained the value
+     */
+    public boolean remove(long value) {
+        long slot = find(value);
+        if (slot == 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Returns iterator of values in no particular order. The set MUST NOT be modified
+     * during iteration, except by {@link LongIterator#remove()}.
+     */
+    public LongIterator iterator() {
+        final Cursor cursor = new Cursor();
+        return new LongIterator() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public long next() {
+                return readKey(cursor.nextSlot());
+            }
+
+            @Override
+            public void remove() {
+                cursor.remove();
+            }
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package com.jad.offheap.collections.impl;
+
+/**
+ * Off-heap map of primitive <tt>long</tt> keys to <tt>long</tt> values without boxing.
+ *
+ * Key and value are stored inline in the table slot (16 bytes per mapping),
+ * no Java objects are allocated by any operation. Absent keys are reported by
+ * configurable <tt>noEntryValue</tt>. Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/02/14
+ */
+
+public class OffHeapLongLongMap extends OffHeapPrimitiveTable {
+
+    private static final int VALUE = 8;
+
+    private final long noEntryValue;
+
+    public OffHeapLongLongMap() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, 0);
+    }
+
+    public OffHeapLongLongMap(int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, 0);
+    }
+
+    /**
+     * @param initialCapacity expected number of mappings
+     * @param loadFactor      the load factor, MUST be less than 1
+     * @param noEntryValue    value returned for absent keys
+     */
+    public OffHeapLongLongMap(int initialCapacity, float loadFactor, long noEntryValue) {
+        super(initialCapacity, loadFactor, 8, 8);
+        this.noEntryValue = noEntryValue;
+    }
+
+    public long getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    /**
+     * Returns value of the key or <tt>noEntryValue</tt> if there is no mapping.
+     */
+    public long get(long key) {
+        long slot = find(key);
+        return slot == 0 ? noEntryValue : unsafe.getLong(slot + VALUE);
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) != 0;
+    }
+
+    /**
+     * Associates value with the key.
+     *
+     * @return the previous value of the key, or <tt>noEntryValue</tt>
+     */
+    public long put(long key, long value) {
+        long slot = insert(key);
+        long previous = inserted ? noEntryValue : unsafe.getLong(slot + VALUE);
+        unsafe.putLong(slot + VALUE, value);
+        return previous;
+    }
+
+    /**
+     * Removes mapping of the key.
+     *
+     * @return the removed value, or <tt>noEntryValue</tt>
+     */
+    public long remove(long key) {
+        long slot = find(key);
+        if (slot == 0) {
+            return noEntryValue;
+        }
+        long previous = unsafe.getLong(slot + VALUE);
+        removeSlot(slot);
+        return previous;
+    }
+}
@@ -0,0 +1,136 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.allocator.MemoryAllocator;
+import com.jad.offheap.allocator.UnsafeAllocator;
+import com.jad.offheap.collections.serializer.Serializer;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * {@link OffHeapHashMap} bounded by number of entries and/or bytes, which evicts least
+ * recently used entries.
+ *
+ * Access order is an intrusive doubly linked list: links are kept in the header extension
+ * of off-heap entries, so there are no on-heap nodes, and both access and eviction are O(1).
+ * Access is get or put of existing key; containsKey and iteration do not change the order.
+ * Bytes are counted as memory of entries (header, key and value), tables are not included.
+ * Entry larger than byte limit is not kept at all.
+ * Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 03/16/14
+ */
+
+public class OffHeapLruCache<K, V> extends OffHeapHashMap<K, V> {
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    /**
+     * Access order, from least to most recently used.
+     */
+    private transient EntryList order;
+
+    /**
+     * @param maxEntries maximum number of entries, or 0, if it is not limited
+     * @param maxBytes   maximum bytes of entries, or 0, if it is not limited
+     * @throws IllegalArgumentException if no limit is specified
+     */
+    public OffHeapLruCache(int maxEntries, long maxBytes, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, maxEntries, maxBytes, keySerializer, valueSerializer,
+                UnsafeAllocator.INSTANCE);
+    }
+
+    public OffHeapLruCache(int initialCapacity, float loadFactor, int maxEntries, long maxBytes,
+                           Serializer<K> keySerializer, Serializer<V> valueSerializer, MemoryAllocator allocator) {
+        super(initialCapacity, loadFactor, keySerializer, valueSerializer, allocator, 16);
+        if (maxEntries < 0 || maxBytes < 0 || (maxEntries == 0 && maxBytes == 0))
+            throw new IllegalArgumentException("Illegal limits: " + maxEntries + " entries, " + maxBytes + " bytes");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Bytes of entries, which are compared with the limit.
+     */
+    public long getBytes() {
+        return entryBytes;
+    }
+
+    @Override
+    void init() {
+        order = new EntryList(EXTENSION);
+    }
+
+    @Override
+    public long init(long h, K k, V v, long n) {
+        long e = super.init(h, k, v, n);
+        order.linkLast(e);
+        return e;
+    }
+
+    @Override
+    void recordAccess(long e) {
+        order.moveToTail(e);
+    }
+
+    @Override
+    void recordRemoval(long e) {
+        order.unlink(e);
+    }
+
+    @Override
+    long resizeEntry(long position, int oldSize, int newSize) {
+        long moved = super.resizeEntry(position, oldSize, newSize);
+        if (moved != position) {
+            order.relocated(moved);
+        }
+        return moved;
+    }
+
+    @Override
+    void afterWrite(long e) {
+        if (maxBytes > 0 && entrySize(e) > maxBytes) {
+            // written entry is larger than the whole cache
+            removeEntry(e);
+        }
+        evict();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        order.clear();
+    }
+
+    /**
+     * Snapshot does not keep access order, loaded entries are ordered as they are iterated.
+     * Entries above the limits are evicted.
+     */
+    @Override
+    public void readSnapshot(ReadableByteChannel channel) throws IOException {
+        super.readSnapshot(channel);
+        for (Iterator<Map.Entry<K, V>> i = newEntryIterator(); i.hasNext(); ) {
+            long e = ((Entry) i.next()).getPosition();
+            order.linkLast(e);
+        }
+        evict();
+    }
+
+    private void evict() {
+        while (order.head != 0 && ((maxEntries > 0 && size > maxEntries) || (maxBytes > 0 && entryBytes > maxBytes))) {
+            removeEntry(order.head);
+        }
+    }
+}
@@ -0,0 +1,943 @@
+package com.jad.offheap.collections.impl;
+
+
+import com.jad.offheap.UnsafeProvider;
+import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.collections.hash.HashFunction;
+import com.jad.offheap.collections.hash.XxHash64;
+import com.jad.offheap.collections.serializer.DirectSerializer;
+import com.jad.offheap.collections.serializer.Serializer;
+import com.jad.offheap.collections.utils.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Hash map, which keeps its buckets and entries in a memory-mapped file. It survives
+ * restart of JVM: reopening is mapping of the file and validation of its header,
+ * nothing is reloaded.
+ *
+ * All links (bucket array, next entry in a chain, free lists) are offsets from the start
+ * of the file instead of addresses. File is mapped by regions of <tt>regionSize</tt> bytes,
+ * offset is translated to address of its region plus offset inside the region. Entries never
+ * cross region boundary, bucket array may span several regions. Memory of removed entries
+ * is reused through free lists kept in the header.
+ *
+ * Keys are hashed and compared by serialized bytes, because <tt>hashCode()</tt> of an object is
+ * not stable between JVM runs in general. So key serializer MUST produce the same bytes for
+ * equal keys. Entries store 64-bit hashes (xxHash64 with seed 0), number of buckets and size
+ * are longs, so the map holds billions of keys without colliding 32-bit hashes.
+ *
+ * Changes become durable after {@link #force()} or {@link #close()}. The first change after
+ * them marks the file dirty, the file left dirty (e.g. by crash) is refused on reopen.
+ *
+ * Like {@link OffHeapHashMap}, the map is not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/23/14
+ */
+
+public class OffHeapMappedHashMap<K, V> extends AbstractMap<K,V>
+        implements Map<K,V>, Closeable {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final byte[] NULL_ARR = new byte[]{};
+
+    /**
+     * The default initial capacity - MUST be a power of two.
+     */
+    static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum capacity. MUST be a power of two.
+     */
+    static final long MAXIMUM_CAPACITY = 1L << 40;
+
+    /**
+     * The load factor used when none specified in constructor.
+     */
+    static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    /**
+     * Size of mapped region used when none specified in constructor.
+     */
+    public static final int DEFAULT_REGION_SIZE = 1 << 30;
+
+    static final int MIN_REGION_SIZE = 1 << 12;
+
+    private static final int PAGE_SIZE = 1 << 12;
+
+    // Header
+
+    private static final long MAGIC = 0x4f66664865617048L;
+    private static final int VERSION = 1;
+
+    private static final int STATE_CLEAN = 1;
+    private static final int STATE_DIRTY = 2;
+
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_STATE = 12;
+    private static final int H_REGION_SHIFT = 16;
+    private static final int H_LOAD_FACTOR = 20;
+    private static final int H_TABLE = 24;
+    private static final int H_TABLE_LENGTH = 32;
+    private static final int H_DATA_END = 40;
+    private static final int H_LARGE_FREE = 48;
+    private static final int H_SIZE = 56;
+    private static final int H_FREE_LISTS = 64;
+
+    /**
+     * Freed blocks up to this size are kept in exact size lists (one per 8 bytes),
+     * larger ones - in one first fit list.
+     */
+    private static final int SMALL_BLOCK_LIMIT = 1024;
+
+    private static final int HEADER_SIZE = H_FREE_LISTS + SMALL_BLOCK_LIMIT;
+
+    // Entries
+
+    private static final int NEXT = 0;
+    private static final int HASH = 8;
+    private static final int KEY_LENGTH = 16;
+    private static final int VAL_LENGTH = 20;
+    private static final int KEY_START = 24;
+
+    /**
+     * Hash of serialized keys.
+     */
+    private static final HashFunction HASH_FUNCTION = new XxHash64(0);
+
+    // Free blocks, the size is stored only in large ones
+
+    private static final int FREE_NEXT = 0;
+    private static final int FREE_SIZE = 8;
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    /**
+     * Mapped regions, references keep them from unmapping by GC.
+     */
+    private MappedByteBuffer[] buffers = new MappedByteBuffer[0];
+
+    private long[] addresses = new long[0];
+
+    private int regionShift;
+
+    private long regionMask;
+
+    private long fileLength;
+
+    private float loadFactor;
+
+    /**
+     * Offset of bucket array. Length MUST Always be a power of two.
+     */
+    private long table;
+
+    private long tableLength;
+
+    /**
+     * The number of key-value mappings contained in this map.
+     */
+    private long size;
+
+    /**
+     * The next size value at which to resize (capacity * load factor).
+     */
+    private long threshold;
+
+    /**
+     * Offset of not yet allocated space.
+     */
+    private long dataEnd;
+
+    private boolean dirty;
+
+    private boolean closed;
+
+    private Serializer<K> keySerializer;
+    private Serializer<V> valueSerializer;
+
+    private DirectSerializer<K> directKeySerializer;
+    private DirectSerializer<V> directValueSerializer;
+
+    transient volatile int modCount;
+
+    public OffHeapMappedHashMap(File file, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        this(file, DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, keySerializer, valueSerializer);
+    }
+
+    public OffHeapMappedHashMap(File file, int initialCapacity, float loadFactor,
+                                Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        this(file, initialCapacity, loadFactor, DEFAULT_REGION_SIZE, keySerializer, valueSerializer);
+    }
+
+    /**
+     * Opens the map stored in the file, or creates a new one if the file is absent or empty.
+     * <tt>initialCapacity</tt>, <tt>loadFactor</tt> and <tt>regionSize</tt> are used only for
+     * a new file, existing one keeps its own.
+     *
+     * @param  regionSize size of mapped region, power of two between 4K and 1G
+     * @throws IOException if the file can not be mapped, is not a map file or was not closed properly
+     */
+    public OffHeapMappedHashMap(File file, int initialCapacity, float loadFactor, int regionSize,
+                                Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " +
+                    initialCapacity);
+        if (loadFactor <= 0 || Float.isNaN(loadFactor))
+            throw new IllegalArgumentException("Illegal load factor: " +
+                    loadFactor);
+        if (regionSize < MIN_REGION_SIZE || regionSize > DEFAULT_REGION_SIZE || Integer.bitCount(regionSize) != 1)
+            throw new IllegalArgumentException("Illegal region size: " +
+                    regionSize);
+        this.file = file;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        if (keySerializer instanceof DirectSerializer) {
+            directKeySerializer = (DirectSerializer<K>) keySerializer;
+        }
+        if (valueSerializer instanceof DirectSerializer) {
+            directValueSerializer = (DirectSerializer<V>) valueSerializer;
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        boolean opened = false;
+        try {
+            if (raf.length() == 0) {
+                create(initialCapacity, loadFactor, regionSize);
+            } else {
+                open();
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                release();
+            }
+        }
+    }
+
+    private void create(int initialCapacity, float loadFactor, int regionSize) throws IOException {
+        this.loadFactor = loadFactor;
+        setRegionShift(Integer.numberOfTrailingZeros(regionSize));
+        ensureFile(HEADER_SIZE);
+        unsafe.setMemory(address(0), HEADER_SIZE, (byte) 0);
+        dataEnd = HEADER_SIZE;
+
+        // Find a power of 2 >= initialCapacity
+        long capacity = 1;
+        while (capacity < initialCapacity)
+            capacity <<= 1;
+        newTable(capacity);
+
+        long header = address(0);
+        unsafe.putLong(header + H_MAGIC, MAGIC);
+        unsafe.putInt(header + H_VERSION, VERSION);
+        unsafe.putInt(header + H_REGION_SHIFT, regionShift);
+        unsafe.putFloat(header + H_LOAD_FACTOR, loadFactor);
+        dirty = true;
+        force();
+    }
+
+    private void open() throws IOException {
+        long length = raf.length();
+        ByteBuffer header = ByteBuffer.allocate(H_FREE_LISTS).order(ByteOrder.nativeOrder());
+        if (length < HEADER_SIZE || channel.read(header, 0) != H_FREE_LISTS) {
+            throw new IOException(file + " is not a map file");
+        }
+        long magic = header.getLong(H_MAGIC);
+        if (magic != MAGIC) {
+            throw new IOException(file + (magic == Long.reverseBytes(MAGIC)
+                    ? " was written on a platform with other byte order" : " is not a map file"));
+        }
+        int version = header.getInt(H_VERSION);
+        if (version != VERSION) {
+            throw new IOException(file + " has unsupported version " + version);
+        }
+        if (header.getInt(H_STATE) != STATE_CLEAN) {
+            throw new IOException(file + " was not closed properly, last changes may be lost");
+        }
+        int regionShift = header.getInt(H_REGION_SHIFT);
+        loadFactor = header.getFloat(H_LOAD_FACTOR);
+        table = header.getLong(H_TABLE);
+        tableLength = header.getLong(H_TABLE_LENGTH);
+        size = header.getLong(H_SIZE);
+        dataEnd = header.getLong(H_DATA_END);
+        if (regionShift < Integer.numberOfTrailingZeros(MIN_REGION_SIZE)
+                || regionShift > Integer.numberOfTrailingZeros(DEFAULT_REGION_SIZE)
+                || loadFactor <= 0 || Float.isNaN(loadFactor)
+                || tableLength <= 0 || Long.bitCount(tableLength) != 1 || tableLength > MAXIMUM_CAPACITY
+                || size < 0 || table < HEADER_SIZE || table + (tableLength << 3) > dataEnd || dataEnd > length) {
+            throw new IOException(file + " has corrupted header");
+        }
+        setRegionShift(regionShift);
+        threshold = threshold(tableLength);
+        mapFile(length);
+    }
+
+    private long threshold(long capacity) {
+        return (long) (capacity * (double) loadFactor);
+    }
+
+    private void setRegionShift(int regionShift) {
+        this.regionShift = regionShift;
+        this.regionMask = (1L << regionShift) - 1;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Serializer<K> getKeySerializer() {
+        return keySerializer;
+    }
+
+    public Serializer<V> getValueSerializer() {
+        return valueSerializer;
+    }
+
+    // Mapping
+
+    private long address(long offset) {
+        return addresses[((int) (offset >>> regionShift))] + (offset & regionMask);
+    }
+
+    private void ensureFile(long required) throws IOException {
+        if (required > fileLength) {
+            long newLength = Math.max(required, fileLength << 1);
+            mapFile((newLength + PAGE_SIZE - 1) & -PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Maps all regions of the file, remapping not full last region if the file grows.
+     */
+    private void mapFile(long length) throws IOException {
+        if (raf.length() < length) {
+            raf.setLength(length);
+        }
+        long regionSize = 1L << regionShift;
+        int count = (int) ((length + regionMask) >>> regionShift);
+        MappedByteBuffer[] newBuffers = Arrays.copyOf(buffers, count);
+        long[] newAddresses = Arrays.copyOf(addresses, count);
+        for (int i = 0; i < count; i++) {
+            long start = ((long) i) << regionShift;
+            long regionLength = Math.min(regionSize, length - start);
+            MappedByteBuffer old = newBuffers[i];
+            if (old != null && old.capacity() == regionLength) {
+                continue;
+            }
+            newBuffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, regionLength);
+            newAddresses[i] = UnsafeProvider.getByteBufferAddress(newBuffers[i]);
+            if (old != null) {
+                old.force();
+                UnsafeProvider.unmap(old);
+            }
+        }
+        buffers = newBuffers;
+        addresses = newAddresses;
+        fileLength = length;
+    }
+
+    private void setMemory(long offset, long length, byte value) {
+        while (length > 0) {
+            long chunk = Math.min(length, (offset | regionMask) + 1 - offset);
+            unsafe.setMemory(address(offset), chunk, value);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // Allocation
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static long freeListHead(long size) {
+        return H_FREE_LISTS + size - 8;
+    }
+
+    private long allocate(long size) {
+        size = align(size);
+        if (size <= SMALL_BLOCK_LIMIT) {
+            long head = address(freeListHead(size));
+            long block = unsafe.getLong(head);
+            if (block != 0) {
+                unsafe.putLong(head, unsafe.getLong(address(block) + FREE_NEXT));
+                return block;
+            }
+        } else {
+            long block = takeLarge(size);
+            if (block != 0) {
+                return block;
+            }
+        }
+        try {
+            return allocateAtEnd(size);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Block of <tt>size</tt> bytes must be inside one region, unless it is larger
+     * than region and then it starts from region boundary.
+     */
+    private boolean fits(long offset, long size) {
+        return size > regionMask ? (offset & regionMask) == 0 : (offset & regionMask) + size <= regionMask + 1;
+    }
+
+    private long allocateAtEnd(long size) throws IOException {
+        long start = dataEnd;
+        if (!fits(start, size)) {
+            start = (start + regionMask) & ~regionMask;
+            freeBlock(dataEnd, start - dataEnd);
+        }
+        ensureFile(start + size);
+        dataEnd = start + size;
+        return start;
+    }
+
+    /**
+     * First fit search in the list of large blocks, rest of the block returns to free lists.
+     */
+    private long takeLarge(long size) {
+        long link = H_LARGE_FREE;
+        for (long block = unsafe.getLong(address(link)); block != 0; block = unsafe.getLong(address(link))) {
+            long blockAddress = address(block);
+            long rest = unsafe.getLong(blockAddress + FREE_SIZE) - size;
+            if ((rest == 0 || rest >= 16) && fits(block, size)) {
+                unsafe.putLong(address(link), unsafe.getLong(blockAddress + FREE_NEXT));
+                freeBlock(block + size, rest);
+                return block;
+            }
+            link = block + FREE_NEXT;
+        }
+        return 0;
+    }
+
+    private void freeBlock(long offset, long size) {
+        if (size == 0) {
+            return;
+        }
+        long boundary = (offset | regionMask) + 1;
+        if (size <= SMALL_BLOCK_LIMIT) {
+            if (offset + size > boundary) {
+                // small blocks are reused by entries, which can not cross regions
+                freeBlock(offset, boundary - offset);
+                freeBlock(boundary, offset + size - boundary);
+                return;
+            }
+            long head = address(freeListHead(size));
+            unsafe.putLong(address(offset) + FREE_NEXT, unsafe.getLong(head));
+            unsafe.putLong(head, offset);
+        } else {
+            long head = address(H_LARGE_FREE);
+            long blockAddress = address(offset);
+            unsafe.putLong(blockAddress + FREE_NEXT, unsafe.getLong(head));
+            unsafe.putLong(blockAddress + FREE_SIZE, size);
+            unsafe.putLong(head, offset);
+        }
+    }
+
+    private void newTable(long capacity) {
+        long bytes = capacity << 3;
+        table = allocate(bytes);
+        setMemory(table, bytes, (byte) 0);
+        tableLength = capacity;
+        threshold = threshold(capacity);
+    }
+
+    private long bucket(long hash) {
+        return table + ((hash & (tableLength - 1)) << 3);
+    }
+
+    // Durability
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
+    /**
+     * Marks the file dirty and flushes the mark before the first change after durability point.
+     */
+    private void markDirty() {
+        ensureOpen();
+        if (!dirty) {
+            unsafe.putInt(address(H_STATE), STATE_DIRTY);
+            buffers[0].force();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes all changes to the file. After return the map will be reopened in current state
+     * even if the process crashes.
+     */
+    public void force() {
+        ensureOpen();
+        if (!dirty) {
+            return;
+        }
+        long header = address(0);
+        unsafe.putLong(header + H_TABLE, table);
+        unsafe.putLong(header + H_TABLE_LENGTH, tableLength);
+        unsafe.putLong(header + H_SIZE, size);
+        unsafe.putLong(header + H_DATA_END, dataEnd);
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.force();
+        }
+        unsafe.putInt(header + H_STATE, STATE_CLEAN);
+        buffers[0].force();
+        dirty = false;
+    }
+
+    /**
+     * Forces changes and unmaps the file. The map can not be used after that.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            force();
+        } finally {
+            release();
+        }
+    }
+
+    private void release() throws IOException {
+        closed = true;
+        for (MappedByteBuffer buffer : buffers) {
+            UnsafeProvider.unmap(buffer);
+        }
+        buffers = null;
+        addresses = null;
+        try {
+            channel.close();
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Map operations
+
+    /**
+     * Hash of serialized key, does not depend on platform.
+     */
+    private static long hashOf(byte[] keyArr) {
+        return HASH_FUNCTION.hash(keyArr, 0, keyArr.length);
+    }
+
+    private static long getHash(long a) {
+        return unsafe.getLong(a + HASH);
+    }
+
+    /**
+     * Returns the number of mappings, or <tt>Integer.MAX_VALUE</tt>, if there are more.
+     *
+     * @see #sizeLong()
+     */
+    public int size() {
+        ensureOpen();
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    public long sizeLong() {
+        ensureOpen();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Serialized key or null, if the key has other type.
+     */
+    private byte[] probeKey(Object key) {
+        try {
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            return toArrayK(k);
+        } catch (ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns offset of the link (bucket or next field of previous entry), which points to
+     * entry with the key, or 0.
+     */
+    private long findLink(byte[] keyArr, long hash) {
+        long link = bucket(hash);
+        for (long e = unsafe.getLong(address(link)); e != 0; e = unsafe.getLong(address(link))) {
+            long a = address(e);
+            if (getHash(a) == hash && unsafe.getInt(a + KEY_LENGTH) == keyArr.length
+                    && Utils.memoryEquals(a + KEY_START, keyArr)) {
+                return link;
+            }
+            link = e + NEXT;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns offset of the link, which points to the entry.
+     */
+    private long linkOf(long e) {
+        long link = bucket(getHash(address(e)));
+        for (long current = unsafe.getLong(address(link)); current != e; current = unsafe.getLong(address(link))) {
+            if (current == 0) {
+                throw new ConcurrentModificationException();
+            }
+            link = current + NEXT;
+        }
+        return link;
+    }
+
+    private long getEntry(Object key) {
+        ensureOpen();
+        byte[] keyArr = probeKey(key);
+        if (keyArr == null) {
+            return 0;
+        }
+        long link = findLink(keyArr, hashOf(keyArr));
+        return link == 0 ? 0 : unsafe.getLong(address(link));
+    }
+
+    public V get(Object key) {
+        long e = getEntry(key);
+        return e == 0 ? null : getValue(e);
+    }
+
+    public boolean containsKey(Object key) {
+        return getEntry(key) != 0;
+    }
+
+    public V put(K key, V value) {
+        ensureOpen();
+        byte[] keyArr = toArrayK(key);
+        byte[] valArr = toArrayV(value);
+        long hash = hashOf(keyArr);
+        long link = findLink(keyArr, hash);
+        markDirty();
+        if (link != 0) {
+            long e = unsafe.getLong(address(link));
+            V oldValue = getValue(e);
+            if (setValue(link, e, valArr) != e) {
+                // entry is moved, iterators may point to the old one
+                modCount++;
+            }
+            return oldValue;
+        }
+        modCount++;
+        long e = init(hash, keyArr, valArr);
+        long bucket = address(bucket(hash));
+        unsafe.putLong(address(e) + NEXT, unsafe.getLong(bucket));
+        unsafe.putLong(bucket, e);
+        if (size++ >= threshold && tableLength < MAXIMUM_CAPACITY)
+            resize(tableLength << 1);
+        return null;
+    }
+
+    private void resize(long newCapacity) {
+        long oldTable = table;
+        long oldCapacity = tableLength;
+        newTable(newCapacity);
+        for (long i = 0; i < oldCapacity; i++) {
+            long e = unsafe.getLong(address(oldTable + (i << 3)));
+            while (e != 0) {
+                long a = address(e);
+                long next = unsafe.getLong(a + NEXT);
+                long bucket = address(bucket(getHash(a)));
+                unsafe.putLong(a + NEXT, unsafe.getLong(bucket));
+                unsafe.putLong(bucket, e);
+                e = next;
+            }
+        }
+        freeBlock(oldTable, oldCapacity << 3);
+    }
+
+    public V remove(Object key) {
+        ensureOpen();
+        byte[] keyArr = probeKey(key);
+        if (keyArr == null) {
+            return null;
+        }
+        long link = findLink(keyArr, hashOf(keyArr));
+        if (link == 0) {
+            return null;
+        }
+        long e = unsafe.getLong(address(link));
+        V oldValue = getValue(e);
+        removeEntry(link, e);
+        return oldValue;
+    }
+
+    private void removeEntry(long link, long e) {
+        markDirty();
+        modCount++;
+        size--;
+        unsafe.putLong(address(link), unsafe.getLong(address(e) + NEXT));
+        free(e);
+    }
+
+    /**
+     * Removes all of the mappings. The file keeps its length, space is reused.
+     */
+    public void clear() {
+        markDirty();
+        modCount++;
+        unsafe.setMemory(address(H_LARGE_FREE), HEADER_SIZE - H_LARGE_FREE, (byte) 0);
+        dataEnd = HEADER_SIZE;
+        size = 0;
+        newTable(tableLength);
+    }
+
+    // Entries
+
+    private long allocateEntry(long size) {
+        if (size > regionMask + 1) {
+            throw new IllegalArgumentException("Entry of " + size + " bytes is larger than mapped region");
+        }
+        return allocate(size);
+    }
+
+    private long init(long h, byte[] keyArr, byte[] valArr) {
+        long position = allocateEntry(KEY_START + keyArr.length + valArr.length);
+        long a = address(position);
+        unsafe.putLong(a + HASH, h);
+        unsafe.putInt(a + KEY_LENGTH, keyArr.length);
+        unsafe.putInt(a + VAL_LENGTH, valArr.length);
+        unsafe.copyMemory(keyArr, BYTE_ARRAY_OFFSET, null, a + KEY_START, keyArr.length);
+        unsafe.copyMemory(valArr, BYTE_ARRAY_OFFSET, null, a + KEY_START + keyArr.length, valArr.length);
+        return position;
+    }
+
+    /**
+     * Writes new value, moving the entry to other block if its size changes.
+     * Returns offset of the entry.
+     */
+    private long setValue(long link, long position, byte[] valArr) {
+        long a = address(position);
+        int keyLength = unsafe.getInt(a + KEY_LENGTH);
+        int valLength = unsafe.getInt(a + VAL_LENGTH);
+        if (align(KEY_START + keyLength + valLength) != align(KEY_START + keyLength + valArr.length)) {
+            long moved = allocateEntry(KEY_START + keyLength + valArr.length);
+            long movedAddress = address(moved);
+            unsafe.copyMemory(address(position), movedAddress, KEY_START + keyLength);
+            unsafe.putLong(address(link), moved);
+            free(position);
+            position = moved;
+            a = movedAddress;
+        }
+        unsafe.putInt(a + VAL_LENGTH, valArr.length);
+        unsafe.copyMemory(valArr, BYTE_ARRAY_OFFSET, null, a + KEY_START + keyLength, valArr.length);
+        return position;
+    }
+
+    private void free(long position) {
+        long a = address(position);
+        freeBlock(position, align(KEY_START + unsafe.getInt(a + KEY_LENGTH) + unsafe.getInt(a + VAL_LENGTH)));
+    }
+
+    protected byte[] toArrayV(V newValue) {
+        if (newValue != null) {
+            return valueSerializer.serialize(newValue);
+        }
+        return NULL_ARR;
+    }
+
+    protected byte[] toArrayK(K newKey) {
+        if (newKey != null) {
+            return keySerializer.serialize(newKey);
+        }
+        return NULL_ARR;
+    }
+
+    protected final K getKey(long position) {
+        long a = address(position);
+        int length = unsafe.getInt(a + KEY_LENGTH);
+        if (length < 1) {
+            return null;
+        }
+        if (directKeySerializer != null) {
+            return directKeySerializer.read(a + KEY_START, length);
+        }
+        byte[] key = new byte[length];
+        unsafe.copyMemory(null, a + KEY_START, key, BYTE_ARRAY_OFFSET, length);
+        return keySerializer.deserialize(key);
+    }
+
+    protected final V getValue(long position) {
+        long a = address(position);
+        int length = unsafe.getInt(a + VAL_LENGTH);
+        if (length < 1) {
+            return null;
+        }
+        long valAddr = a + KEY_START + unsafe.getInt(a + KEY_LENGTH);
+        if (directValueSerializer != null) {
+            return directValueSerializer.read(valAddr, length);
+        }
+        byte[] val = new byte[length];
+        unsafe.copyMemory(null, valAddr, val, BYTE_ARRAY_OFFSET, length);
+        return valueSerializer.deserialize(val);
+    }
+
+    class Entry implements Map.Entry<K,V> {
+        private long position;
+
+        Entry(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public K getKey() {
+            ensureOpen();
+            return OffHeapMappedHashMap.this.getKey(position);
+        }
+
+        @Override
+        public V getValue() {
+            ensureOpen();
+            return OffHeapMappedHashMap.this.getValue(position);
+        }
+
+        @Override
+        public V setValue(V value) {
+            V ret = getValue();
+            markDirty();
+            position = OffHeapMappedHashMap.this.setValue(linkOf(position), position, toArrayV(value));
+            return ret;
+        }
+
+        public final boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object k1 = getKey();
+            Object k2 = e.getKey();
+            if (k1 == k2 || (k1 != null && k1.equals(k2))) {
+                Object v1 = getValue();
+                Object v2 = e.getValue();
+                if (v1 == v2 || (v1 != null && v1.equals(v2)))
+                    return true;
+            }
+            return false;
+        }
+
+        public final int hashCode() {
+            K key = getKey();
+            V value = getValue();
+            return (key ==null   ? 0 : key.hashCode()) ^
+                    (value ==null ? 0 : value.hashCode());
+        }
+
+        public final String toString() {
+            return String.valueOf(getKey()) + "=" + String.valueOf(getValue());
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K,V>> {
+        long index;
+        long next;
+        Entry current;
+        int expectedModCount = modCount;
+
+        EntryIterator() {
+            ensureOpen();
+            advance(0);
+        }
+
+        private void advance(long e) {
+            if (e != 0) {
+                e = unsafe.getLong(address(e) + NEXT);
+            }
+            while (e == 0 && index < tableLength) {
+                e = unsafe.getLong(address(table + (index++ << 3)));
+            }
+            next = e;
+        }
+
+        public boolean hasNext() {
+            return next != 0;
+        }
+
+        public Map.Entry<K,V> next() {
+            ensureOpen();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next == 0)
+                throw new NoSuchElementException();
+            current = new Entry(next);
+            advance(next);
+            return current;
+        }
+
+        public void remove() {
+            if (current == null)
+                throw new IllegalStateException();
+            ensureOpen();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeEntry(linkOf(current.position), current.position);
+            current = null;
+            expectedModCount = modCount;
+        }
+    }
+
+    private transient Set<Map.Entry<K,V>> entrySet = null;
+
+    public Set<Map.Entry<K,V>> entrySet() {
+        Set<Map.Entry<K,V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            long candidate = getEntry(e.getKey());
+            return candidate != 0 && new Entry(candidate).equals(e);
+        }
+        public boolean remove(Object o) {
+            if (contains(o)) {
+                OffHeapMappedHashMap.this.remove(((Map.Entry) o).getKey());
+                return true;
+            }
+            return false;
+        }
+        public int size() {
+            return OffHeapMappedHashMap.this.size();
+        }
+        public void clear() {
+            OffHeapMappedHashMap.this.clear();
+        }
+    }
+
+    long capacity() {
+        return tableLength;
+    }
+}
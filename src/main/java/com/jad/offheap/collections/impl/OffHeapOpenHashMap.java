@@ -0,0 +1,712 @@
+package com.jad.offheap.collections.impl;
+
+
+import com.jad.offheap.AllocationTracker;
+import com.jad.offheap.UnsafeProvider;
+import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.allocator.MemoryAllocator;
+import com.jad.offheap.allocator.UnsafeAllocator;
+import com.jad.offheap.collections.serializer.Serializer;
+import com.jad.offheap.collections.utils.Utils;
+
+import java.io.Closeable;
+import java.nio.ByteOrder;
+import java.util.*;
+
+
+/**
+ * Open addressing map in the manner of Swiss table.
+ *
+ * Table consists of two off-heap arrays: control bytes and slots with entry pointers.
+ * Control byte of a full slot holds 7 low bits of the entry hash, so lookup compares
+ * 8 control bytes at once (one 64 bit word, SWAR) and touches entry memory only for
+ * slots with the same tag. Most of misses are resolved without reading any entry.
+ * Slots are probed by aligned groups of 8 in triangular sequence.
+ *
+ * Entries have the same format as {@link OffHeapHashMap} ones, except the pointer to
+ * next entry in a chain.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 01/26/14
+ */
+
+public class OffHeapOpenHashMap<K, V> extends AbstractMap<K,V>
+        implements Map<K,V>, Closeable {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final byte[] NULL_ARR = new byte[]{};
+    private static final byte[] BY_EQUALS = new byte[]{};
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    /**
+     * The default initial capacity - MUST be a power of two.
+     */
+    static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum capacity. MUST be a power of two <= 1<<30.
+     */
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The load factor used when none specified in constructor.
+     */
+    static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    /**
+     * The maximum load factor, at least one slot of each 8 stays free.
+     */
+    static final float MAXIMUM_LOAD_FACTOR = 0.875f;
+
+    private static final int GROUP_SHIFT = 3;
+    private static final int GROUP_WIDTH = 1 << GROUP_SHIFT;
+
+    private static final byte EMPTY = (byte) 0x80;
+    private static final byte DELETED = (byte) 0xFE;
+
+    private static final long LSB = 0x0101010101010101L;
+    private static final long MSB = 0x8080808080808080L;
+
+    /**
+     * Control bytes, one per slot.
+     */
+    transient long ctrl;
+
+    /**
+     * Entry pointers, one per slot.
+     */
+    transient long slots;
+
+    transient int capacity;
+
+    transient int groupMask;
+
+    /**
+     * The number of key-value mappings contained in this map.
+     */
+    transient int size;
+
+    /**
+     * Number of empty slots, which still can be filled before rehash.
+     * Deleted slots do not return to this counter until rehash.
+     */
+    transient int growthLeft;
+
+    final float loadFactor;
+
+    private Serializer<K> keySerializer;
+    private Serializer<V> valueSerializer;
+
+    private MemoryAllocator allocator;
+
+    private boolean keyBytesComparison;
+
+    transient volatile int modCount;
+
+    /**
+     * Native memory of the map, it is released by {@link #close()}, or by the cleaner,
+     * if the map becomes unreachable without close.
+     */
+    private transient Memory memory;
+    private transient Runnable cleaner;
+    private transient volatile boolean closed;
+
+    /**
+     * Owner of native memory of the map for {@link AllocationTracker}.
+     */
+    private final String owner = AllocationTracker.ownerOf(this);
+
+    public OffHeapOpenHashMap(int initialCapacity, float loadFactor, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(initialCapacity, loadFactor, keySerializer, valueSerializer, UnsafeAllocator.INSTANCE);
+    }
+
+    public OffHeapOpenHashMap(int initialCapacity, float loadFactor, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                              MemoryAllocator allocator) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " +
+                    initialCapacity);
+        if (loadFactor <= 0 || Float.isNaN(loadFactor))
+            throw new IllegalArgumentException("Illegal load factor: " +
+                    loadFactor);
+        this.loadFactor = Math.min(loadFactor, MAXIMUM_LOAD_FACTOR);
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.allocator = AllocationTracker.owned(allocator, owner);
+        this.memory = new Memory(this.allocator);
+        this.cleaner = UnsafeProvider.registerCleaner(this, memory);
+        newTable(capacityFor(initialCapacity));
+    }
+
+    public OffHeapOpenHashMap(int initialCapacity, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, keySerializer, valueSerializer);
+    }
+
+    public OffHeapOpenHashMap(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, keySerializer, valueSerializer);
+    }
+
+    public OffHeapOpenHashMap(Map<? extends K, ? extends V> m, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this((int) (m.size() / DEFAULT_LOAD_FACTOR) + 1, DEFAULT_LOAD_FACTOR, keySerializer, valueSerializer);
+        putAll(m);
+    }
+
+    /**
+     * Power of two capacity, which holds <tt>expectedSize</tt> entries within load factor.
+     */
+    private int capacityFor(int expectedSize) {
+        long required = (long) (expectedSize / loadFactor) + 1;
+        int capacity = GROUP_WIDTH;
+        while (capacity < required && capacity < MAXIMUM_CAPACITY)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void newTable(int capacity) {
+        long newCtrl = unsafe.allocateMemory(capacity, owner);
+        long newSlots = unsafe.allocateMemory(((long) capacity) << 3, owner);
+        unsafe.setMemory(newCtrl, capacity, EMPTY);
+        unsafe.setMemory(newSlots, ((long) capacity) << 3, (byte) 0);
+        this.ctrl = newCtrl;
+        this.slots = newSlots;
+        this.capacity = capacity;
+        memory.ctrl = newCtrl;
+        memory.slots = newSlots;
+        memory.capacity = capacity;
+        this.groupMask = (capacity >>> GROUP_SHIFT) - 1;
+        this.growthLeft = maxSize(capacity);
+    }
+
+    /**
+     * Native memory of the map: control bytes, slots and entries. It does not refer the map,
+     * so the cleaner can release it after the map is collected.
+     */
+    private static final class Memory implements Runnable {
+        private final MemoryAllocator allocator;
+        private long ctrl;
+        private long slots;
+        private int capacity;
+
+        Memory(MemoryAllocator allocator) {
+            this.allocator = allocator;
+        }
+
+        @Override
+        public void run() {
+            if (!allocator.releaseAll()) {
+                for (int i = 0; i < capacity; i++) {
+                    if (unsafe.getByte(ctrl + i) >= 0) {
+                        long e = unsafe.getLong(slots + (((long) i) << 3));
+                        allocator.free(e, KEY_START + unsafe.getInt(e + KEY_LENGTH) + unsafe.getInt(e + VAL_LENGTH));
+                    }
+                }
+            }
+            unsafe.freeMemory(ctrl);
+            unsafe.freeMemory(slots);
+            capacity = 0;
+        }
+    }
+
+    /**
+     * Releases all native memory of the map, see {@link OffHeapHashMap#close()}.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        size = 0;
+        cleaner.run();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
+    private int maxSize(int capacity) {
+        return Math.min((int) (capacity * loadFactor), capacity - 1);
+    }
+
+    public Serializer<K> getKeySerializer() {
+        return keySerializer;
+    }
+
+    public Serializer<V> getValueSerializer() {
+        return valueSerializer;
+    }
+
+    /**
+     * See {@link OffHeapHashMap#setKeyBytesComparison(boolean)}.
+     */
+    public void setKeyBytesComparison(boolean keyBytesComparison) {
+        this.keyBytesComparison = keyBytesComparison;
+    }
+
+    public boolean isKeyBytesComparison() {
+        return keyBytesComparison;
+    }
+
+    /**
+     * Spreads hashCode over all bits (murmur3 finalizer), low 7 bits become
+     * control byte tag, others select group.
+     */
+    protected int hash(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tag(int hash) {
+        return hash & 0x7F;
+    }
+
+    private long loadGroup(int group) {
+        ensureOpen();
+        long word = unsafe.getLong(ctrl + (((long) group) << GROUP_SHIFT));
+        return BIG_ENDIAN ? Long.reverseBytes(word) : word;
+    }
+
+    /**
+     * High bit is set in every byte of result, which is equal to tag (may contain
+     * false positives after real match, they are filtered by hash comparison).
+     */
+    private static long matchTag(long group, int tag) {
+        long x = group ^ (LSB * tag);
+        return (x - LSB) & ~x & MSB;
+    }
+
+    private static long matchEmpty(long group) {
+        return group & (~group << 6) & MSB;
+    }
+
+    private static long matchEmptyOrDeleted(long group) {
+        return group & (~group << 7) & MSB;
+    }
+
+    private static int firstIndex(long mask) {
+        return Long.numberOfTrailingZeros(mask) >>> 3;
+    }
+
+    private long getSlot(int slot) {
+        return unsafe.getLong(slots + (((long) slot) << 3));
+    }
+
+    private void putSlot(int slot, long entry) {
+        unsafe.putLong(slots + (((long) slot) << 3), entry);
+    }
+
+    private void setCtrl(int slot, byte value) {
+        unsafe.putByte(ctrl + slot, value);
+    }
+
+    private byte getCtrl(int slot) {
+        ensureOpen();
+        return unsafe.getByte(ctrl + slot);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private byte[] probeKey(Object key) {
+        if (!keyBytesComparison || key == null) {
+            return BY_EQUALS;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            return toArrayK(k);
+        } catch (ClassCastException e) {
+            return BY_EQUALS;
+        }
+    }
+
+    private boolean keyMatches(long e, Object key, byte[] keyArr) {
+        if (keyArr == BY_EQUALS) {
+            Object k = getKey(e);
+            return k == key || (key != null && key.equals(k));
+        }
+        return unsafe.getInt(e + KEY_LENGTH) == keyArr.length && Utils.memoryEquals(e + KEY_START, keyArr);
+    }
+
+    private int hashOf(Object key) {
+        return key == null ? 0 : hash(key.hashCode());
+    }
+
+    /**
+     * Returns slot of the key or -1.
+     */
+    final int findSlot(Object key, int hash) {
+        int tag = tag(hash);
+        int group = (hash >>> 7) & groupMask;
+        byte[] keyArr = null;
+        for (int step = 0; step <= groupMask; ) {
+            long word = loadGroup(group);
+            for (long match = matchTag(word, tag); match != 0; match &= match - 1) {
+                int slot = (group << GROUP_SHIFT) + firstIndex(match);
+                long e = getSlot(slot);
+                if (e != 0 && getHash(e) == hash
+                        && keyMatches(e, key, keyArr != null ? keyArr : (keyArr = probeKey(key)))) {
+                    return slot;
+                }
+            }
+            if (matchEmpty(word) != 0) {
+                return -1;
+            }
+            group = (group + ++step) & groupMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns first empty or deleted slot in probe sequence of the hash.
+     */
+    private int findInsertSlot(int hash) {
+        int group = (hash >>> 7) & groupMask;
+        for (int step = 0; ; ) {
+            long match = matchEmptyOrDeleted(loadGroup(group));
+            if (match != 0) {
+                return (group << GROUP_SHIFT) + firstIndex(match);
+            }
+            group = (group + ++step) & groupMask;
+        }
+    }
+
+    public V get(Object key) {
+        int slot = findSlot(key, hashOf(key));
+        return slot < 0 ? null : getValue(getSlot(slot));
+    }
+
+    public boolean containsKey(Object key) {
+        return findSlot(key, hashOf(key)) >= 0;
+    }
+
+    public V put(K key, V value) {
+        int hash = hashOf(key);
+        int slot = findSlot(key, hash);
+        if (slot >= 0) {
+            long e = getSlot(slot);
+            V oldValue = getValue(e);
+            putSlot(slot, setValue(value, e));
+            return oldValue;
+        }
+        modCount++;
+        insert(hash, init(hash, key, value));
+        return null;
+    }
+
+    private void insert(int hash, long entry) {
+        int slot = findInsertSlot(hash);
+        if (growthLeft == 0 && getCtrl(slot) != DELETED) {
+            rehash();
+            slot = findInsertSlot(hash);
+        }
+        if (getCtrl(slot) == EMPTY) {
+            growthLeft--;
+        }
+        setCtrl(slot, (byte) tag(hash));
+        putSlot(slot, entry);
+        size++;
+    }
+
+    /**
+     * Grows table twice or, if most of used slots are deleted ones, rebuilds it
+     * with the same capacity.
+     */
+    private void rehash() {
+        int newCapacity = capacity;
+        if (size >= maxSize(capacity) / 2) {
+            if (capacity == MAXIMUM_CAPACITY) {
+                throw new IllegalStateException("Map is full");
+            }
+            newCapacity = capacity << 1;
+        }
+        long oldCtrl = ctrl;
+        long oldSlots = slots;
+        int oldCapacity = capacity;
+        newTable(newCapacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            if (unsafe.getByte(oldCtrl + i) >= 0) {
+                long e = unsafe.getLong(oldSlots + (((long) i) << 3));
+                int hash = getHash(e);
+                int slot = findInsertSlot(hash);
+                setCtrl(slot, (byte) tag(hash));
+                putSlot(slot, e);
+                growthLeft--;
+            }
+        }
+        unsafe.freeMemory(oldCtrl);
+        unsafe.freeMemory(oldSlots);
+    }
+
+    public V remove(Object key) {
+        int slot = findSlot(key, hashOf(key));
+        if (slot < 0) {
+            return null;
+        }
+        long e = getSlot(slot);
+        V oldValue = getValue(e);
+        eraseSlot(slot);
+        free(e);
+        return oldValue;
+    }
+
+    /**
+     * Empties slot. Slot becomes EMPTY only if its group has another empty slot
+     * (so no probe sequence passes through the group), otherwise it is DELETED.
+     */
+    private void eraseSlot(int slot) {
+        modCount++;
+        size--;
+        putSlot(slot, 0);
+        if (matchEmpty(loadGroup(slot >>> GROUP_SHIFT)) != 0) {
+            setCtrl(slot, EMPTY);
+            growthLeft++;
+        } else {
+            setCtrl(slot, DELETED);
+        }
+    }
+
+    public void clear() {
+        ensureOpen();
+        modCount++;
+        if (!allocator.releaseAll()) {
+            for (int i = 0; i < capacity; i++) {
+                if (getCtrl(i) >= 0) {
+                    free(getSlot(i));
+                }
+            }
+        }
+        unsafe.setMemory(ctrl, capacity, EMPTY);
+        unsafe.setMemory(slots, ((long) capacity) << 3, (byte) 0);
+        growthLeft = maxSize(capacity);
+        size = 0;
+    }
+
+    // Entries
+
+    private static final int KEY_START = 12;
+    private static final int KEY_LENGTH = 0;
+    private static final int VAL_LENGTH = 4;
+    private static final int HASH = 8;
+
+    private long init(int h, K k, V v) {
+        byte[] keyArr = toArrayK(k);
+        byte[] valArr = toArrayV(v);
+
+        int size = KEY_START + keyArr.length + valArr.length;
+        long position = allocator.allocate(size);
+        unsafe.putInt(position + KEY_LENGTH, keyArr.length);
+        unsafe.putInt(position + VAL_LENGTH, valArr.length);
+        unsafe.putInt(position + HASH, h);
+        unsafe.copyMemory(keyArr, BYTE_ARRAY_OFFSET, null, position + KEY_START, keyArr.length);
+        unsafe.copyMemory(valArr, BYTE_ARRAY_OFFSET, null, position + KEY_START + keyArr.length, valArr.length);
+        return position;
+    }
+
+    protected byte[] toArrayV(V newValue) {
+        return valueSerializer.serialize(newValue);
+    }
+
+    protected V fromArrayV(byte[] arr) {
+        return valueSerializer.deserialize(arr);
+    }
+
+    protected byte[] toArrayK(K newKey) {
+        if (newKey != null) {
+            return keySerializer.serialize(newKey);
+        }
+        return NULL_ARR;
+    }
+
+    protected K fromArrayK(byte[] arr) {
+        return keySerializer.deserialize(arr);
+    }
+
+    protected final K getKey(long position) {
+        int length = unsafe.getInt(position + KEY_LENGTH);
+        if (length < 1) {
+            return null;
+        }
+        byte[] key = new byte[length];
+        unsafe.copyMemory(null, position + KEY_START, key, BYTE_ARRAY_OFFSET, length);
+        return fromArrayK(key);
+    }
+
+    protected final V getValue(long position) {
+        int length = unsafe.getInt(position + VAL_LENGTH);
+        if (length < 1) {
+            return null;
+        }
+        byte[] val = new byte[length];
+        unsafe.copyMemory(null, position + KEY_START + unsafe.getInt(position + KEY_LENGTH), val, BYTE_ARRAY_OFFSET, length);
+        return fromArrayV(val);
+    }
+
+    protected int getHash(long position) {
+        return unsafe.getInt(position + HASH);
+    }
+
+    private long setValue(V newValue, long position) {
+        int keyLength = unsafe.getInt(position + KEY_LENGTH);
+        int valLength = unsafe.getInt(position + VAL_LENGTH);
+        byte[] arr = toArrayV(newValue);
+        int newValLength = arr.length;
+        if (newValLength != valLength) {
+            position = allocator.reallocate(position, KEY_START + keyLength + valLength,
+                    KEY_START + keyLength + newValLength);
+            unsafe.putInt(position + VAL_LENGTH, newValLength);
+        }
+        unsafe.copyMemory(arr, BYTE_ARRAY_OFFSET, null, position + KEY_START + keyLength, newValLength);
+        return position;
+    }
+
+    private void free(long position) {
+        allocator.free(position, KEY_START + unsafe.getInt(position + KEY_LENGTH) + unsafe.getInt(position + VAL_LENGTH));
+    }
+
+    class Entry implements Map.Entry<K,V> {
+        private final int slot;
+        private long position;
+
+        Entry(int slot, long position) {
+            this.slot = slot;
+            this.position = position;
+        }
+
+        @Override
+        public K getKey() {
+            ensureOpen();
+            return OffHeapOpenHashMap.this.getKey(position);
+        }
+
+        @Override
+        public V getValue() {
+            ensureOpen();
+            return OffHeapOpenHashMap.this.getValue(position);
+        }
+
+        @Override
+        public V setValue(V value) {
+            V ret = getValue();
+            position = OffHeapOpenHashMap.this.setValue(value, position);
+            putSlot(slot, position);
+            return ret;
+        }
+
+        public final boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object k1 = getKey();
+            Object k2 = e.getKey();
+            if (k1 == k2 || (k1 != null && k1.equals(k2))) {
+                Object v1 = getValue();
+                Object v2 = e.getValue();
+                if (v1 == v2 || (v1 != null && v1.equals(v2)))
+                    return true;
+            }
+            return false;
+        }
+
+        public final int hashCode() {
+            K key = getKey();
+            V value = getValue();
+            return (key ==null   ? 0 : key.hashCode()) ^
+                    (value ==null ? 0 : value.hashCode());
+        }
+
+        public final String toString() {
+            return String.valueOf(getKey()) + "=" + String.valueOf(getValue());
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K,V>> {
+        int next = -1;
+        int current = -1;
+        int expectedModCount = modCount;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            while (++next < capacity && getCtrl(next) < 0)
+                ;
+        }
+
+        public boolean hasNext() {
+            return next < capacity;
+        }
+
+        public Map.Entry<K,V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next >= capacity)
+                throw new NoSuchElementException();
+            current = next;
+            advance();
+            return new Entry(current, getSlot(current));
+        }
+
+        public void remove() {
+            if (current < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            long e = getSlot(current);
+            eraseSlot(current);
+            free(e);
+            current = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private transient Set<Map.Entry<K,V>> entrySet = null;
+
+    public Set<Map.Entry<K,V>> entrySet() {
+        Set<Map.Entry<K,V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            int slot = findSlot(e.getKey(), hashOf(e.getKey()));
+            return slot >= 0 && new Entry(slot, getSlot(slot)).equals(e);
+        }
+        public boolean remove(Object o) {
+            if (contains(o)) {
+                OffHeapOpenHashMap.this.remove(((Map.Entry) o).getKey());
+                return true;
+            }
+            return false;
+        }
+        public int size() {
+            return size;
+        }
+        public void clear() {
+            OffHeapOpenHashMap.this.clear();
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,430 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.AllocationTracker;
+import com.jad.offheap.UnsafeProvider;
+import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.allocator.MemoryAllocator;
+
+import java.io.Closeable;
+import java.util.NoSuchElementException;
+
+/**
+ * Base of collections with primitive keys, stored inline in one off-heap array.
+ *
+ * Slot is <tt>keySize</tt> bytes of key followed by fixed width value (none in sets). Table uses
+ * linear probing, key 0 marks empty slot, so mapping for key 0 is kept in a separate slot.
+ * Removal shifts following slots back instead of leaving tombstones.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/02/14
+ */
+
+abstract class OffHeapPrimitiveTable implements Closeable {
+    static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    /**
+     * The default initial capacity - MUST be a power of two.
+     */
+    static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum capacity. MUST be a power of two. Slots are addressed by long index,
+     * so the table is not limited by int range.
+     */
+    static final long MAXIMUM_CAPACITY = 1L << 40;
+
+    /**
+     * The load factor used when none specified in constructor.
+     */
+    static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    final int keySize;
+
+    final int slotSize;
+
+    final float loadFactor;
+
+    /**
+     * The table, resized as necessary. Length MUST Always be a power of two.
+     */
+    transient long table;
+
+    transient long capacity;
+
+    transient long mask;
+
+    transient long size;
+
+    long threshold;
+
+    /**
+     * Slot of key 0.
+     */
+    transient long zeroSlot;
+
+    transient boolean hasZeroKey;
+
+    /**
+     * Set by {@link #insert(long)}: true if slot was created for new key.
+     */
+    transient boolean inserted;
+
+    /**
+     * Native memory of the table, it is released by {@link #close()}, or by the cleaner,
+     * if the collection becomes unreachable without close.
+     */
+    private final Memory memory;
+
+    /**
+     * Owner of native memory of the collection for {@link AllocationTracker}.
+     */
+    final String owner = AllocationTracker.ownerOf(this);
+    private final Runnable cleaner;
+    private volatile boolean closed;
+
+    OffHeapPrimitiveTable(long initialCapacity, float loadFactor, int keySize, int valueSize) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " +
+                    initialCapacity);
+        if (loadFactor <= 0 || loadFactor >= 1 || Float.isNaN(loadFactor))
+            throw new IllegalArgumentException("Illegal load factor: " +
+                    loadFactor);
+        this.keySize = keySize;
+        this.slotSize = keySize + valueSize;
+        this.loadFactor = loadFactor;
+
+        long required = (long) (initialCapacity / (double) loadFactor) + 1;
+        long capacity = 2;
+        while (capacity < required && capacity < MAXIMUM_CAPACITY)
+            capacity <<= 1;
+
+        zeroSlot = unsafe.allocateMemory(slotSize, owner);
+        unsafe.setMemory(zeroSlot, slotSize, (byte) 0);
+        memory = new Memory(zeroSlot, slotSize);
+        cleaner = UnsafeProvider.registerCleaner(this, memory);
+        setTable(newTable(capacity));
+    }
+
+    private void setTable(long table) {
+        this.table = table;
+        memory.table = table;
+        memory.capacity = capacity;
+    }
+
+    /**
+     * Tells that values are pointers (at <tt>valueOffset</tt> of the slot) to blocks of the
+     * allocator, so they are released together with the table.
+     * Block is <tt>int</tt> length followed by value bytes, 0 pointer is no block.
+     */
+    final void ownValues(MemoryAllocator allocator, int valueOffset) {
+        memory.values = allocator;
+        memory.valueOffset = valueOffset;
+    }
+
+    /**
+     * Native memory of the table: slots, zero slot and value blocks. It does not refer the
+     * collection, so the cleaner can release it after the collection is collected.
+     */
+    private static final class Memory implements Runnable {
+        private final long zeroSlot;
+        private final int slotSize;
+        private long table;
+        private long capacity;
+        private MemoryAllocator values;
+        private int valueOffset;
+
+        Memory(long zeroSlot, int slotSize) {
+            this.zeroSlot = zeroSlot;
+            this.slotSize = slotSize;
+        }
+
+        @Override
+        public void run() {
+            if (values != null && !values.releaseAll()) {
+                for (long i = 0; i < capacity; i++) {
+                    freeValue(table + i * slotSize);
+                }
+                freeValue(zeroSlot);
+            }
+            unsafe.freeMemory(table);
+            unsafe.freeMemory(zeroSlot);
+            capacity = 0;
+        }
+
+        private void freeValue(long slot) {
+            long block = unsafe.getLong(slot + valueOffset);
+            if (block != 0) {
+                values.free(block, 4 + unsafe.getInt(block));
+            }
+        }
+    }
+
+    /**
+     * Releases all native memory of the collection, see {@link OffHeapHashMap#close()}.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        size = 0;
+        hasZeroKey = false;
+        cleaner.run();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    final void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException(slotSize == keySize ? "Set is closed" : "Map is closed");
+        }
+    }
+
+    private long newTable(long capacity) {
+        long bytes = capacity * slotSize;
+        long l = unsafe.allocateMemory(bytes, owner);
+        unsafe.setMemory(l, bytes, (byte) 0);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.threshold = Math.min((long) (capacity * (double) loadFactor), capacity - 1);
+        return l;
+    }
+
+    /**
+     * Returns the number of mappings in this collection, or <tt>Integer.MAX_VALUE</tt> if it
+     * is greater, see {@link #sizeLong()}.
+     */
+    public int size() {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of mappings in this collection.
+     */
+    public long sizeLong() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Spreads key bits (murmur3 64 bit finalizer).
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    final long readKey(long slot) {
+        return keySize == 8 ? unsafe.getLong(slot) : unsafe.getInt(slot);
+    }
+
+    private void writeKey(long slot, long key) {
+        if (keySize == 8) {
+            unsafe.putLong(slot, key);
+        } else {
+            unsafe.putInt(slot, (int) key);
+        }
+    }
+
+    final long slot(long index) {
+        return table + index * slotSize;
+    }
+
+    /**
+     * Returns slot of the key or 0.
+     */
+    final long find(long key) {
+        ensureOpen();
+        if (key == 0) {
+            return hasZeroKey ? zeroSlot : 0;
+        }
+        for (long index = mix(key) & mask; ; index = (index + 1) & mask) {
+            long slot = slot(index);
+            long k = readKey(slot);
+            if (k == key) {
+                return slot;
+            }
+            if (k == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns slot of the key, creates it (with zero value) if the key is absent.
+     * {@link #inserted} tells which case happened.
+     */
+    final long insert(long key) {
+        ensureOpen();
+        if (key == 0) {
+            inserted = !hasZeroKey;
+            if (inserted) {
+                hasZeroKey = true;
+                size++;
+            }
+            return zeroSlot;
+        }
+        for (long index = mix(key) & mask; ; index = (index + 1) & mask) {
+            long slot = slot(index);
+            long k = readKey(slot);
+            if (k == key) {
+                inserted = false;
+                return slot;
+            }
+            if (k == 0) {
+                inserted = true;
+                if (size >= threshold) {
+                    resize(capacity << 1);
+                    return insert(key);
+                }
+                writeKey(slot, key);
+                size++;
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Removes mapping, stored in the slot (previously returned by {@link #find(long)}).
+     */
+    final void removeSlot(long slot) {
+        size--;
+        if (slot == zeroSlot) {
+            hasZeroKey = false;
+            unsafe.setMemory(zeroSlot, slotSize, (byte) 0);
+            return;
+        }
+        long hole = (slot - table) / slotSize;
+        for (long index = (hole + 1) & mask; ; index = (index + 1) & mask) {
+            long current = slot(index);
+            long k = readKey(current);
+            if (k == 0) {
+                break;
+            }
+            long ideal = mix(k) & mask;
+            // move back if the hole is between ideal position and current one (cyclically)
+            if (((index - ideal) & mask) >= ((index - hole) & mask)) {
+                unsafe.copyMemory(current, slot(hole), slotSize);
+                hole = index;
+            }
+        }
+        unsafe.setMemory(slot(hole), slotSize, (byte) 0);
+    }
+
+    void resize(long newCapacity) {
+        if (capacity == MAXIMUM_CAPACITY) {
+            throw new IllegalStateException("Capacity limit is reached");
+        }
+        long oldTable = table;
+        long oldCapacity = capacity;
+        setTable(newTable(newCapacity));
+        for (long i = 0; i < oldCapacity; i++) {
+            long oldSlot = oldTable + i * slotSize;
+            long key = readKey(oldSlot);
+            if (key != 0) {
+                long index = mix(key) & mask;
+                while (readKey(slot(index)) != 0) {
+                    index = (index + 1) & mask;
+                }
+                unsafe.copyMemory(oldSlot, slot(index), slotSize);
+            }
+        }
+        unsafe.freeMemory(oldTable);
+    }
+
+    /**
+     * Removes all of the mappings.
+     */
+    public void clear() {
+        ensureOpen();
+        unsafe.setMemory(table, capacity * slotSize, (byte) 0);
+        unsafe.setMemory(zeroSlot, slotSize, (byte) 0);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Walks occupied slots without allocation, the zero slot first. Table is walked downwards,
+     * starting below an empty slot: removal shifts slots back only up to the next empty slot,
+     * which stays empty, so {@link #remove()} moves only visited slots and the walk sees
+     * every other slot once. The table MUST NOT be modified otherwise during the walk.
+     */
+    final class Cursor {
+        private boolean zero;
+        private long index;
+        private long left;
+        private long next;
+        private long current;
+
+        Cursor() {
+            ensureOpen();
+            long empty = 0;
+            while (readKey(slot(empty)) != 0) {
+                empty++;
+            }
+            index = empty;
+            left = capacity - 1;
+            zero = hasZeroKey;
+        }
+
+        boolean hasNext() {
+            ensureOpen();
+            if (next == 0) {
+                next = advance();
+            }
+            return next != 0;
+        }
+
+        private long advance() {
+            if (zero) {
+                zero = false;
+                return zeroSlot;
+            }
+            while (left > 0) {
+                left--;
+                index = (index - 1) & mask;
+                long slot = slot(index);
+                if (readKey(slot) != 0) {
+                    return slot;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the next occupied slot.
+         */
+        long nextSlot() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = 0;
+            return current;
+        }
+
+        /**
+         * Removes the slot, returned by the last {@link #nextSlot()}.
+         */
+        void remove() {
+            if (current == 0) {
+                throw new IllegalStateException();
+            }
+            ensureOpen();
+            removeSlot(current);
+            current = 0;
+        }
+    }
+}
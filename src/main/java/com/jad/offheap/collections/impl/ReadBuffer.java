@@ -0,0 +1,94 @@
+package com.jad.offheap.collections.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lossy buffer of hashes, which readers record and the lock holder drains into the
+ * {@link FrequencySketch}, so only one thread ever writes the sketch (like read buffers of
+ * Caffeine). Readers are spread over stripes by thread id. A stripe is a ring: the reader
+ * claims a slot by CAS of the tail and publishes the hash into it, the drainer consumes
+ * published slots from the head. Hash is dropped, if its stripe is full or the CAS fails,
+ * so recording never waits and never allocates.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/05/14
+ */
+
+final class ReadBuffer {
+    private static final int STRIPE_SIZE = 32;
+    private static final int MAX_STRIPES = 8;
+
+    /**
+     * Distance between counters of stripes in longs, keeps them on different cache lines.
+     */
+    private static final int PAD = 8;
+
+    /**
+     * Marks published slot, empty slot is 0.
+     */
+    private static final long PRESENT = 1L << 32;
+
+    private final int stripeMask;
+    private final AtomicLongArray slots;
+    private final AtomicLongArray tails;
+    private final AtomicLongArray heads;
+
+    ReadBuffer() {
+        int stripes = 1;
+        while (stripes < MAX_STRIPES && stripes < Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        stripeMask = stripes - 1;
+        slots = new AtomicLongArray(stripes * STRIPE_SIZE);
+        tails = new AtomicLongArray(stripes * PAD);
+        heads = new AtomicLongArray(stripes * PAD);
+    }
+
+    /**
+     * Records the hash, unless the stripe of the thread is full.
+     *
+     * @return true if the stripe is full, so the buffer should be drained
+     */
+    boolean record(int hash) {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        long tail = tails.get(stripe * PAD);
+        if (tail - heads.get(stripe * PAD) >= STRIPE_SIZE) {
+            return true;
+        }
+        if (tails.compareAndSet(stripe * PAD, tail, tail + 1)) {
+            slots.lazySet(stripe * STRIPE_SIZE + (int) (tail & (STRIPE_SIZE - 1)), PRESENT | (hash & 0xFFFFFFFFL));
+        }
+        return tail + 1 - heads.get(stripe * PAD) >= STRIPE_SIZE;
+    }
+
+    /**
+     * Increments the sketch for all published hashes, null sketch drops them.
+     * Called by one thread at a time.
+     */
+    void drainTo(FrequencySketch sketch) {
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            long head = heads.get(stripe * PAD);
+            long tail = tails.get(stripe * PAD);
+            for (; head < tail; head++) {
+                int index = stripe * STRIPE_SIZE + (int) (head & (STRIPE_SIZE - 1));
+                long slot = slots.get(index);
+                if (slot == 0) {
+                    // claimed, but not published yet
+                    break;
+                }
+                slots.lazySet(index, 0);
+                if (sketch != null) {
+                    sketch.increment((int) slot);
+                }
+            }
+            heads.lazySet(stripe * PAD, head);
+        }
+    }
+
+    /**
+     * Drops all published hashes. Called by one thread at a time.
+     */
+    void clear() {
+        drainTo(null);
+    }
+}
@@ -0,0 +1,211 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.UnsafeProvider;
+import com.jad.offheap.UnsafeWrapper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Raw snapshot format of hash collections: header followed by entries exactly as they are
+ * stored off-heap (lengths, hash, key and value bytes), without the pointer to next entry.
+ * Bytes are copied between entries and a direct buffer, serializers are never invoked.
+ *
+ * Header is magic (long), version, kind of collection, width of stored hashes in bytes (ints),
+ * number of buckets and size (longs). Width is 8 for large maps
+ * (see {@link OffHeapHashMap#setLargeMap(boolean)}), 4 otherwise.
+ * Numbers are in native byte order, so snapshot is not portable between platforms with
+ * different byte order. Stored hashes are derived from <tt>hashCode()</tt> of keys, so keys
+ * MUST have hashCode stable between JVM runs (e.g. strings or boxed primitives).
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 03/02/14
+ */
+
+final class Snapshot {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    static final long MAGIC = 0x4f66664865617053L;
+    static final int VERSION = 1;
+
+    static final int MAP = 1;
+    static final int SET = 2;
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private Snapshot() {
+    }
+
+    static final class Writer {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final long address = UnsafeProvider.getByteBufferAddress(buffer);
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        private boolean largeHashes;
+
+        void writeHeader(int kind, boolean largeHashes, long tableLength, long size) throws IOException {
+            this.largeHashes = largeHashes;
+            writeLong(MAGIC);
+            writeInt(VERSION);
+            writeInt(kind);
+            writeInt(largeHashes ? 8 : 4);
+            writeLong(tableLength);
+            writeLong(size);
+        }
+
+        /**
+         * Writes hash in the width of the header.
+         */
+        void writeHash(long hash) throws IOException {
+            if (largeHashes) {
+                writeLong(hash);
+            } else {
+                writeInt((int) hash);
+            }
+        }
+
+        void writeInt(int value) throws IOException {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            int position = buffer.position();
+            unsafe.putInt(address + position, value);
+            buffer.position(position + 4);
+        }
+
+        void writeLong(long value) throws IOException {
+            if (buffer.remaining() < 8) {
+                flush();
+            }
+            int position = buffer.position();
+            unsafe.putLong(address + position, value);
+            buffer.position(position + 8);
+        }
+
+        /**
+         * Copies <tt>length</tt> bytes of off-heap memory.
+         */
+        void write(long from, long length) throws IOException {
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int position = buffer.position();
+                int chunk = (int) Math.min(buffer.remaining(), length);
+                unsafe.copyMemory(from, address + position, chunk);
+                buffer.position(position + chunk);
+                from += chunk;
+                length -= chunk;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    static final class Reader {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final long address = UnsafeProvider.getByteBufferAddress(buffer);
+
+        long tableLength;
+        long size;
+        boolean largeHashes;
+
+        Reader(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /**
+         * Reads and validates header, number of buckets and size become available in fields.
+         */
+        void readHeader(int kind) throws IOException {
+            long magic = readLong();
+            if (magic != MAGIC) {
+                throw new IOException(magic == Long.reverseBytes(MAGIC)
+                        ? "Snapshot was written on a platform with other byte order" : "Not a snapshot");
+            }
+            int version = readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int actualKind = readInt();
+            if (actualKind != kind) {
+                throw new IOException("Snapshot of other collection kind " + actualKind);
+            }
+            int hashWidth = readInt();
+            tableLength = readLong();
+            size = readLong();
+            if ((hashWidth != 4 && hashWidth != 8)
+                    || tableLength <= 0 || Long.bitCount(tableLength) != 1 || size < 0) {
+                throw new IOException("Corrupted snapshot header");
+            }
+            largeHashes = hashWidth == 8;
+        }
+
+        private void fill(int required) throws IOException {
+            buffer.compact();
+            while (buffer.position() < required) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Snapshot is truncated");
+                }
+            }
+            buffer.flip();
+        }
+
+        int readInt() throws IOException {
+            if (buffer.remaining() < 4) {
+                fill(4);
+            }
+            int position = buffer.position();
+            buffer.position(position + 4);
+            return unsafe.getInt(address + position);
+        }
+
+        /**
+         * Reads hash in the width of the header.
+         */
+        long readHash() throws IOException {
+            return largeHashes ? readLong() : readInt();
+        }
+
+        long readLong() throws IOException {
+            if (buffer.remaining() < 8) {
+                fill(8);
+            }
+            int position = buffer.position();
+            buffer.position(position + 8);
+            return unsafe.getLong(address + position);
+        }
+
+        /**
+         * Copies <tt>length</tt> bytes to off-heap memory.
+         */
+        void read(long to, long length) throws IOException {
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    fill(1);
+                }
+                int position = buffer.position();
+                int chunk = (int) Math.min(buffer.remaining(), length);
+                unsafe.copyMemory(address + position, to, chunk);
+                buffer.position(position + chunk);
+                to += chunk;
+                length -= chunk;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.UnsafeWrapper;
+
+/**
+ * Hierarchical timer wheel of off-heap entries. Entries are linked into circular doubly linked
+ * lists of buckets by links stored in entries at given offset, buckets (sentinels of lists) are
+ * stored off-heap too. Scheduling, cancellation and advance of time cost amortized O(1):
+ * buckets are spliced to the list of due entries as a whole.
+ *
+ * Level <tt>i</tt> has buckets of <tt>2^SHIFT[i]</tt> ms and covers the span of the bucket
+ * of the next level, the last level holds everything later. Bucket of the lowest level is due,
+ * when its time has passed, buckets of higher levels are due, when their time begins.
+ * So due entries are not necessarily expired: entry from a higher level, or entry which
+ * deadline was extended, is rescheduled by the owner and cascades to a lower level. Time is in milliseconds from arbitrary origin and MUST not be negative.
+ * Not thread safe.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 03/29/14
+ */
+
+final class TimerWheel implements Runnable {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    /**
+     * Buckets of about 1 second, 1 minute, 1 hour, 18 hours and 3 days.
+     */
+    private static final int[] SHIFT = {10, 16, 22, 26, 28};
+    private static final int[] BUCKETS = {64, 64, 16, 4, 1};
+    private static final int[] FIRST_BUCKET;
+
+    /**
+     * Sentinel of the list of due entries, it follows buckets.
+     */
+    private static final int DUE;
+    private static final int SENTINELS;
+
+    static {
+        FIRST_BUCKET = new int[BUCKETS.length];
+        int buckets = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            FIRST_BUCKET[i] = buckets;
+            buckets += BUCKETS[i];
+        }
+        DUE = buckets;
+        SENTINELS = buckets + 1;
+    }
+
+    private final int prev;
+    private final int next;
+
+    private final long sentinels;
+
+    private long time;
+
+    /**
+     * @param links offset of link to previous entry, link to next entry follows it
+     * @param owner owner of the sentinels for {@link com.jad.offheap.AllocationTracker}
+     */
+    TimerWheel(int links, long time, String owner) {
+        this.prev = links;
+        this.next = links + 8;
+        this.time = time;
+        long size = (long) SENTINELS << 4;
+        sentinels = unsafe.allocateMemory(size, owner);
+        if (sentinels <= 0) {
+            throw new OutOfMemoryError();
+        }
+        clear();
+    }
+
+    /**
+     * Node of the sentinel: its links are at the same offsets as links of entries.
+     */
+    private long sentinel(int n) {
+        return sentinels + ((long) n << 4) - prev;
+    }
+
+    private long bucket(int level, long ticks) {
+        return sentinel(FIRST_BUCKET[level] + (int) (ticks & (BUCKETS[level] - 1)));
+    }
+
+    /**
+     * Unlinks all entries (they are released by the owner).
+     */
+    void clear() {
+        for (int n = 0; n < SENTINELS; n++) {
+            long s = sentinel(n);
+            unsafe.putLong(s + prev, s);
+            unsafe.putLong(s + next, s);
+        }
+    }
+
+    long bytes() {
+        return (long) SENTINELS << 4;
+    }
+
+    /**
+     * Releases the buckets, the wheel is attached to memory of the map (see
+     * {@link OffHeapHashMap#attach(Runnable)}).
+     */
+    @Override
+    public void run() {
+        unsafe.freeMemory(sentinels);
+    }
+
+    void schedule(long e, long deadline) {
+        long list;
+        if ((deadline >>> SHIFT[0]) < (time >>> SHIFT[0])) {
+            // bucket has passed already
+            list = sentinel(DUE);
+        } else {
+            long delta = deadline - time;
+            int level = 0;
+            while (level < SHIFT.length - 1 && delta >= (1L << SHIFT[level + 1])) {
+                level++;
+            }
+            list = bucket(level, deadline >>> SHIFT[level]);
+        }
+        long tail = unsafe.getLong(list + prev);
+        unsafe.putLong(e + prev, tail);
+        unsafe.putLong(e + next, list);
+        unsafe.putLong(tail + next, e);
+        unsafe.putLong(list + prev, e);
+    }
+
+    boolean isScheduled(long e) {
+        return unsafe.getLong(e + next) != 0;
+    }
+
+    void unlink(long e) {
+        long p = unsafe.getLong(e + prev);
+        long n = unsafe.getLong(e + next);
+        if (n != 0) {
+            unsafe.putLong(p + next, n);
+            unsafe.putLong(n + prev, p);
+            unsafe.putLong(e + prev, 0);
+            unsafe.putLong(e + next, 0);
+        }
+    }
+
+    /**
+     * Entry is copied to <tt>moved</tt> with its links, neighbours are pointed to the copy.
+     */
+    void relocated(long moved) {
+        long n = unsafe.getLong(moved + next);
+        if (n != 0) {
+            unsafe.putLong(unsafe.getLong(moved + prev) + next, moved);
+            unsafe.putLong(n + prev, moved);
+        }
+    }
+
+    /**
+     * Moves entries of due buckets to the list of due entries.
+     */
+    void advance(long now) {
+        long previous = time;
+        if (now <= previous) {
+            return;
+        }
+        time = now;
+        for (int level = 0; level < SHIFT.length; level++) {
+            long previousTicks = previous >>> SHIFT[level];
+            long ticks = now >>> SHIFT[level];
+            if (ticks == previousTicks) {
+                break;
+            }
+            long count = Math.min(ticks - previousTicks, BUCKETS[level]);
+            long first = level == 0 ? previousTicks : ticks - count + 1;
+            for (long t = first; t < first + count; t++) {
+                splice(bucket(level, t));
+            }
+        }
+    }
+
+    private void splice(long bucket) {
+        long first = unsafe.getLong(bucket + next);
+        if (first == bucket) {
+            return;
+        }
+        long last = unsafe.getLong(bucket + prev);
+        long due = sentinel(DUE);
+        long tail = unsafe.getLong(due + prev);
+        unsafe.putLong(tail + next, first);
+        unsafe.putLong(first + prev, tail);
+        unsafe.putLong(last + next, due);
+        unsafe.putLong(due + prev, last);
+        unsafe.putLong(bucket + prev, bucket);
+        unsafe.putLong(bucket + next, bucket);
+    }
+
+    /**
+     * Unlinks and returns the first due entry, or 0.
+     */
+    long pollDue() {
+        long due = sentinel(DUE);
+        long e = unsafe.getLong(due + next);
+        if (e == due) {
+            return 0;
+        }
+        unlink(e);
+        return e;
+    }
+}
@@ -0,0 +1,245 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.UnsafeWrapper;
+
+/**
+ * Regions of W-TinyLFU policy for a byte budgeted segment. New entries go to the small
+ * admission window, which is LRU. Entries leaving the window become candidates in the main
+ * region, and the candidate is admitted only if its estimated frequency is greater than
+ * frequency of the main victim, otherwise the candidate is evicted. Main region is segmented
+ * LRU: probation and protected lists; entry accessed in probation is promoted to protected,
+ * overflow of protected is demoted back to probation.
+ *
+ * Frequencies are counted by {@link FrequencySketch} for hits and misses. Like
+ * {@link EvictionPolicy#LRU}, readers only mark entries accessed, lists are reordered by the
+ * writer with second chance. Hits and misses of readers go through {@link ReadBuffer}, which the
+ * writer drains into the sketch before eviction. Entry header extension holds links of the list, access mark
+ * and region. Not thread safe, except {@link #accessed(long, int)} and {@link #missed(int)}.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/05/14
+ */
+
+final class WindowTinyLfu {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+
+    /**
+     * Bytes of entry header extension.
+     */
+    static final int HEADER_EXTENSION = 24;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * Average entry size, which is assumed for size of the sketch.
+     */
+    private static final int EXPECTED_ENTRY_SIZE = 64;
+
+    private final OffHeapHashMap<?, ?> map;
+
+    private final int next;
+    private final int accessed;
+    private final int region;
+
+    private final EntryList window;
+    private final EntryList probation;
+    private final EntryList protect;
+
+    private final FrequencySketch sketch;
+    private final ReadBuffer reads = new ReadBuffer();
+
+    private final long windowMax;
+    private final long protectedMax;
+
+    private long windowBytes;
+    private long protectedBytes;
+
+    /**
+     * The eldest candidate, which left the window during current eviction, or 0.
+     * Candidates are at the tail of probation.
+     */
+    private long candidate;
+
+    /**
+     * @param map       owner of entries
+     * @param extension offset of the header extension
+     * @param maxBytes  budget of entries
+     */
+    WindowTinyLfu(OffHeapHashMap<?, ?> map, int extension, long maxBytes) {
+        this.map = map;
+        this.next = extension + 8;
+        this.accessed = extension + 16;
+        this.region = extension + 20;
+        this.window = new EntryList(extension);
+        this.probation = new EntryList(extension);
+        this.protect = new EntryList(extension);
+        // 1% window, 80% of main is protected
+        this.windowMax = Math.max(maxBytes / 100, 1);
+        this.protectedMax = (maxBytes - windowMax) * 4 / 5;
+        this.sketch = new FrequencySketch((int) Math.min(maxBytes / EXPECTED_ENTRY_SIZE, Integer.MAX_VALUE), map.owner);
+        map.attach(sketch);
+    }
+
+    void added(long e, int size, int hash) {
+        sketch.increment(hash);
+        unsafe.putInt(e + region, WINDOW);
+        window.linkLast(e);
+        windowBytes += size;
+    }
+
+    /**
+     * Marks hit of the entry, it may be called by optimistic readers.
+     *
+     * @return true if reads should be drained (see {@link #drainReads()})
+     */
+    boolean accessed(long e, int hash) {
+        unsafe.putInt(e + accessed, 1);
+        return reads.record(hash);
+    }
+
+    /**
+     * Counts miss of the key, it may be called by optimistic readers.
+     *
+     * @return true if reads should be drained (see {@link #drainReads()})
+     */
+    boolean missed(int hash) {
+        return reads.record(hash);
+    }
+
+    /**
+     * Counts recorded hits and misses in the sketch. Called by the writer.
+     */
+    void drainReads() {
+        reads.drainTo(sketch);
+    }
+
+    void removed(long e, int size) {
+        if (e == candidate) {
+            candidate = unsafe.getLong(e + next);
+        }
+        listOf(e).unlink(e);
+        resized(e, -size);
+    }
+
+    /**
+     * Entry of <tt>position</tt> is copied to <tt>moved</tt> and its size is changed by <tt>delta</tt>.
+     */
+    void relocated(long position, long moved, int delta) {
+        if (moved != position) {
+            listOf(moved).relocated(moved);
+            if (candidate == position) {
+                candidate = moved;
+            }
+        }
+        resized(moved, delta);
+    }
+
+    private void resized(long e, int delta) {
+        int r = unsafe.getInt(e + region);
+        if (r == WINDOW) {
+            windowBytes += delta;
+        } else if (r == PROTECTED) {
+            protectedBytes += delta;
+        }
+    }
+
+    private EntryList listOf(long e) {
+        int r = unsafe.getInt(e + region);
+        return r == WINDOW ? window : r == PROBATION ? probation : protect;
+    }
+
+    /**
+     * Ages the sketch and moves entries, which overflow the window, to probation as candidates.
+     *
+     * @param size number of entries, it bounds second chances
+     */
+    void beginEviction(long size) {
+        drainReads();
+        sketch.age();
+        candidate = 0;
+        for (long chances = size; windowBytes > windowMax && window.head != 0; ) {
+            long e = window.head;
+            if (chances-- > 0 && unsafe.getInt(e + accessed) != 0) {
+                unsafe.putInt(e + accessed, 0);
+                window.moveToTail(e);
+                continue;
+            }
+            window.unlink(e);
+            windowBytes -= map.entrySize(e);
+            // access in the window is not a reason for promotion
+            unsafe.putInt(e + accessed, 0);
+            unsafe.putInt(e + region, PROBATION);
+            probation.linkLast(e);
+            if (candidate == 0) {
+                candidate = e;
+            }
+        }
+    }
+
+    void endEviction() {
+        candidate = 0;
+    }
+
+    /**
+     * Chooses the entry to evict: the loser of the eldest candidate and the main victim.
+     *
+     * @param size number of entries, it bounds second chances
+     */
+    long victim(long size) {
+        for (long chances = size; ; ) {
+            long e = probation.head;
+            if (e == 0) {
+                if (protect.head == 0) {
+                    return window.head;
+                }
+                demote(protect.head);
+                continue;
+            }
+            if (candidate == 0 || e == candidate) {
+                // no competition, or only candidates are left
+                return e;
+            }
+            if (chances-- > 0 && unsafe.getInt(e + accessed) != 0) {
+                unsafe.putInt(e + accessed, 0);
+                promote(e);
+                continue;
+            }
+            return sketch.frequency((int) map.getHash(candidate)) > sketch.frequency((int) map.getHash(e))
+                    ? e : candidate;
+        }
+    }
+
+    private void promote(long e) {
+        probation.unlink(e);
+        unsafe.putInt(e + region, PROTECTED);
+        protect.linkLast(e);
+        protectedBytes += map.entrySize(e);
+        while (protectedBytes > protectedMax && protect.head != e) {
+            demote(protect.head);
+        }
+    }
+
+    private void demote(long e) {
+        protect.unlink(e);
+        protectedBytes -= map.entrySize(e);
+        unsafe.putInt(e + region, PROBATION);
+        probation.linkLast(e);
+    }
+
+    void clear() {
+        window.clear();
+        probation.clear();
+        protect.clear();
+        windowBytes = 0;
+        protectedBytes = 0;
+        candidate = 0;
+        reads.clear();
+        sketch.clear();
+    }
+
+    long bytes() {
+        return sketch.bytes();
+    }
+}
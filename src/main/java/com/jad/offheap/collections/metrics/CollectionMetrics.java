@@ -0,0 +1,166 @@
+package com.jad.offheap.collections.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of native memory and structure of an off-heap hash collection. Collections keep
+ * the numbers up to date on every modification, so taking a snapshot does not walk the table.
+ *
+ * Bytes of entries are bytes requested for headers, keys and values; allocator may hold
+ * more (see {@link com.jad.offheap.allocator.SlabAllocator#getReservedBytes()}).
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/12/14
+ */
+
+public final class CollectionMetrics {
+    private final long size;
+    private final long buckets;
+    private final long tableBytes;
+    private final long entryBytes;
+    private final long otherBytes;
+    private final long resizeCount;
+    private final long[] chainHistogram;
+
+    /**
+     * @param chainHistogram number of buckets by length of their chains, the array is not copied
+     */
+    public CollectionMetrics(long size, long buckets, long tableBytes, long entryBytes, long otherBytes,
+                             long resizeCount, long[] chainHistogram) {
+        this.size = size;
+        this.buckets = buckets;
+        this.tableBytes = tableBytes;
+        this.entryBytes = entryBytes;
+        this.otherBytes = otherBytes;
+        this.resizeCount = resizeCount;
+        this.chainHistogram = chainHistogram;
+    }
+
+    /**
+     * Sum of metrics of parts, e.g. segments of concurrent map.
+     */
+    public static CollectionMetrics sum(CollectionMetrics... parts) {
+        long size = 0, buckets = 0, tableBytes = 0, entryBytes = 0, otherBytes = 0, resizeCount = 0;
+        long[] chainHistogram = new long[0];
+        for (CollectionMetrics part : parts) {
+            size += part.size;
+            buckets += part.buckets;
+            tableBytes += part.tableBytes;
+            entryBytes += part.entryBytes;
+            otherBytes += part.otherBytes;
+            resizeCount += part.resizeCount;
+            if (part.chainHistogram.length > chainHistogram.length) {
+                chainHistogram = Arrays.copyOf(chainHistogram, part.chainHistogram.length);
+            }
+            for (int i = 0; i < part.chainHistogram.length; i++) {
+                chainHistogram[i] += part.chainHistogram[i];
+            }
+        }
+        return new CollectionMetrics(size, buckets, tableBytes, entryBytes, otherBytes, resizeCount, chainHistogram);
+    }
+
+    /**
+     * Number of entries, including expired ones, which are not removed yet.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Number of buckets, including buckets of the table under incremental rehash.
+     */
+    public long getBuckets() {
+        return buckets;
+    }
+
+    public long getTableBytes() {
+        return tableBytes;
+    }
+
+    public long getEntryBytes() {
+        return entryBytes;
+    }
+
+    /**
+     * Bytes of auxiliary structures: timer wheel of expiry, frequency sketch of eviction policy.
+     */
+    public long getOtherBytes() {
+        return otherBytes;
+    }
+
+    public long getNativeBytes() {
+        return tableBytes + entryBytes + otherBytes;
+    }
+
+    /**
+     * Native bytes per entry, or 0 for empty collection.
+     */
+    public double getBytesPerEntry() {
+        return size == 0 ? 0 : (double) getNativeBytes() / size;
+    }
+
+    /**
+     * Actual load factor: entries per bucket.
+     */
+    public double getLoadFactor() {
+        return buckets == 0 ? 0 : (double) size / buckets;
+    }
+
+    public long getResizeCount() {
+        return resizeCount;
+    }
+
+    /**
+     * Element <tt>i</tt> is number of buckets, which chains have <tt>i</tt> entries.
+     * It is empty, if the collection does not keep the histogram.
+     */
+    public long[] getChainHistogram() {
+        return chainHistogram.clone();
+    }
+
+    /**
+     * Length of the longest chain, or -1 if the histogram is not kept.
+     */
+    public int getMaxChainLength() {
+        if (chainHistogram.length == 0) {
+            return -1;
+        }
+        for (int i = chainHistogram.length - 1; i > 0; i--) {
+            if (chainHistogram[i] > 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Average length of non-empty chains, it is the average cost of a successful lookup.
+     * It is -1, if the histogram is not kept.
+     */
+    public double getAverageChainLength() {
+        if (chainHistogram.length == 0) {
+            return -1;
+        }
+        long entries = 0;
+        long chains = 0;
+        for (int i = 1; i < chainHistogram.length; i++) {
+            entries += i * chainHistogram[i];
+            chains += chainHistogram[i];
+        }
+        return chains == 0 ? 0 : (double) entries / chains;
+    }
+
+    @Override
+    public String toString() {
+        return "CollectionMetrics{" +
+                "size=" + size +
+                ", buckets=" + buckets +
+                ", tableBytes=" + tableBytes +
+                ", entryBytes=" + entryBytes +
+                ", otherBytes=" + otherBytes +
+                ", resizeCount=" + resizeCount +
+                ", maxChainLength=" + getMaxChainLength() +
+                ", averageChainLength=" + getAverageChainLength() +
+                '}';
+    }
+}
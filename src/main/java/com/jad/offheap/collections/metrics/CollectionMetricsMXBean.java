@@ -0,0 +1,44 @@
+package com.jad.offheap.collections.metrics;
+
+/**
+ * JMX view of {@link CollectionMetrics}, see {@link Metrics#register(String, MetricsSource)}.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/12/14
+ */
+
+public interface CollectionMetricsMXBean {
+
+    long getSize();
+
+    long getBuckets();
+
+    long getTableBytes();
+
+    long getEntryBytes();
+
+    long getOtherBytes();
+
+    long getNativeBytes();
+
+    double getBytesPerEntry();
+
+    double getLoadFactor();
+
+    long getResizeCount();
+
+    /**
+     * Empty, if the collection does not keep the histogram of chain lengths.
+     */
+    long[] getChainHistogram();
+
+    /**
+     * -1, if the collection does not keep the histogram of chain lengths.
+     */
+    int getMaxChainLength();
+
+    /**
+     * -1, if the collection does not keep the histogram of chain lengths.
+     */
+    double getAverageChainLength();
+}
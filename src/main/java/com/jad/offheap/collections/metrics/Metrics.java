@@ -0,0 +1,107 @@
+package com.jad.offheap.collections.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Optional registration of collection metrics in the platform MBean server.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/12/14
+ */
+
+public final class Metrics {
+    public static final String DOMAIN = "com.jad.offheap";
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers MXBean <tt>com.jad.offheap:type=Collection,name=&lt;name&gt;</tt>. Every read
+     * of an attribute takes metrics from the source, so the source should be thread safe
+     * (e.g. {@link com.jad.offheap.collections.impl.ConcurrentOffHeapMap}), or the numbers
+     * may be slightly inconsistent.
+     *
+     * @return name of the bean, which should be passed to {@link #unregister(ObjectName)}
+     *         when the collection is not used anymore
+     * @throws IllegalStateException if registration fails, e.g. the name is taken
+     */
+    public static ObjectName register(String name, MetricsSource source) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Collection,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(source), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics of " + name, e);
+        }
+    }
+
+    public static void unregister(ObjectName objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister " + objectName, e);
+        }
+    }
+
+    private static final class Bean implements CollectionMetricsMXBean {
+        private final MetricsSource source;
+
+        Bean(MetricsSource source) {
+            this.source = source;
+        }
+
+        public long getSize() {
+            return source.getMetrics().getSize();
+        }
+
+        public long getBuckets() {
+            return source.getMetrics().getBuckets();
+        }
+
+        public long getTableBytes() {
+            return source.getMetrics().getTableBytes();
+        }
+
+        public long getEntryBytes() {
+            return source.getMetrics().getEntryBytes();
+        }
+
+        public long getOtherBytes() {
+            return source.getMetrics().getOtherBytes();
+        }
+
+        public long getNativeBytes() {
+            return source.getMetrics().getNativeBytes();
+        }
+
+        public double getBytesPerEntry() {
+            return source.getMetrics().getBytesPerEntry();
+        }
+
+        public double getLoadFactor() {
+            return source.getMetrics().getLoadFactor();
+        }
+
+        public long getResizeCount() {
+            return source.getMetrics().getResizeCount();
+        }
+
+        public long[] getChainHistogram() {
+            return source.getMetrics().getChainHistogram();
+        }
+
+        public int getMaxChainLength() {
+            return source.getMetrics().getMaxChainLength();
+        }
+
+        public double getAverageChainLength() {
+            return source.getMetrics().getAverageChainLength();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.jad.offheap.collections.metrics;
+
+/**
+ * Collection, which reports its native memory and structure.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/12/14
+ */
+
+public interface MetricsSource {
+
+    /**
+     * Returns current metrics. It is cheap: numbers are maintained incrementally.
+     * For collections, which are not thread safe, it should be called by the owner thread.
+     */
+    CollectionMetrics getMetrics();
+}
@@ -0,0 +1,27 @@
+package com.jad.offheap.collections.serializer;
+
+/**
+ * Serializer, which writes and reads off-heap memory directly, without intermediate byte arrays.
+ * Collections detect it and use it instead of {@link #serialize(Object)} / {@link #deserialize(byte[])}.
+ *
+ * Bytes, written by {@link #write(Object, long)}, MUST be the same as returned by {@link #serialize(Object)}.
+ *
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/16/14
+ */
+
+public interface DirectSerializer<K> extends Serializer<K> {
+
+    /**
+     * Number of bytes, which {@link #write(Object, long)} writes for the key.
+     */
+    int sizeOf(K key);
+
+    /**
+     * Writes exactly {@link #sizeOf(Object)} bytes at the address.
+     */
+    void write(K key, long address);
+
+    K read(long address, int length);
+
+}
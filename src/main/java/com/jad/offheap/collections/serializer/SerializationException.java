@@ -6,6 +6,7 @@ package com.jad.offheap.collections.serializer;
  */
 
 public class SerializationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
 
     public SerializationException() {
     }
@@ -1,8 +1,10 @@
 package com.jad.offheap.collections.serializer;
 
+import com.jad.offheap.UnsafeWrapper;
 import com.jad.offheap.collections.utils.Utils;
 
 import java.io.*;
+import java.nio.ByteOrder;
 
 /**
  * @author: Ilya Krokhmalyov
@@ -11,8 +13,11 @@ import java.io.*;
  */
 
 public class Serializers {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
 
-    public static Serializer<Long> LONG_SERIALIZER = new Serializer<Long>() {
+    public static Serializer<Long> LONG_SERIALIZER = new DirectSerializer<Long>() {
         @Override
         public byte[] serialize(Long key) {
             return Utils.longToByteArr(key);
@@ -22,9 +27,26 @@ public class Serializers {
         public Long deserialize(byte[] bytes) {
             return Utils.byteArrToLong(bytes);
         }
+
+        @Override
+        public int sizeOf(Long key) {
+            return 8;
+        }
+
+        @Override
+        public void write(Long key, long address) {
+            long v = key;
+            unsafe.putLong(address, BIG_ENDIAN ? v : Long.reverseBytes(v));
+        }
+
+        @Override
+        public Long read(long address, int length) {
+            long v = unsafe.getLong(address);
+            return BIG_ENDIAN ? v : Long.reverseBytes(v);
+        }
     };
 
-    public static Serializer<Integer> INT_SERIALIZER = new Serializer<Integer>() {
+    public static Serializer<Integer> INT_SERIALIZER = new DirectSerializer<Integer>() {
         @Override
         public byte[] serialize(Integer key) {
             return Utils.intToByteArr(key);
@@ -34,9 +56,30 @@ public class Serializers {
         public Integer deserialize(byte[] bytes) {
             return Utils.byteArrToInt(bytes);
         }
+
+        @Override
+        public int sizeOf(Integer key) {
+            return 4;
+        }
+
+        @Override
+        public void write(Integer key, long address) {
+            int v = key;
+            unsafe.putInt(address, BIG_ENDIAN ? v : Integer.reverseBytes(v));
+        }
+
+        @Override
+        public Integer read(long address, int length) {
+            int v = unsafe.getInt(address);
+            return BIG_ENDIAN ? v : Integer.reverseBytes(v);
+        }
     };
 
-    public static Serializer<String> STRING_SERIALIZER = new Serializer<String>() {
+    /**
+     * UTF-8 serializer. Direct methods encode and decode chars in place, malformed input is
+     * decoded through the byte array to keep the same replacement behaviour as {@link #deserialize(byte[])}.
+     */
+    public static Serializer<String> STRING_SERIALIZER = new DirectSerializer<String>() {
         @Override
         public byte[] serialize(String key) {
             try {
@@ -54,9 +97,109 @@ public class Serializers {
                 throw new RuntimeException(e);
             }
         }
+
+        @Override
+        public int sizeOf(String key) {
+            int length = key.length();
+            int size = 0;
+            for (int i = 0; i < length; i++) {
+                char c = key.charAt(i);
+                if (c < 0x80) {
+                    size++;
+                } else if (c < 0x800) {
+                    size += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+                    size += 4;
+                    i++;
+                } else if (isSurrogate(c)) {
+                    size++; // replaced by '?'
+                } else {
+                    size += 3;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void write(String key, long address) {
+            int length = key.length();
+            for (int i = 0; i < length; i++) {
+                char c = key.charAt(i);
+                if (c < 0x80) {
+                    unsafe.putByte(address++, (byte) c);
+                } else if (c < 0x800) {
+                    unsafe.putByte(address++, (byte) (0xC0 | (c >> 6)));
+                    unsafe.putByte(address++, (byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, key.charAt(++i));
+                    unsafe.putByte(address++, (byte) (0xF0 | (cp >> 18)));
+                    unsafe.putByte(address++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    unsafe.putByte(address++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    unsafe.putByte(address++, (byte) (0x80 | (cp & 0x3F)));
+                } else if (isSurrogate(c)) {
+                    unsafe.putByte(address++, (byte) '?');
+                } else {
+                    unsafe.putByte(address++, (byte) (0xE0 | (c >> 12)));
+                    unsafe.putByte(address++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                    unsafe.putByte(address++, (byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        @Override
+        public String read(long address, int length) {
+            char[] chars = new char[length];
+            int n = 0;
+            long p = address;
+            long end = address + length;
+            while (p < end) {
+                int b = unsafe.getByte(p++) & 0xFF;
+                if (b < 0x80) {
+                    chars[n++] = (char) b;
+                } else if ((b >> 5) == 0x6 && b >= 0xC2 && p < end) {
+                    int b2 = unsafe.getByte(p++);
+                    if ((b2 & 0xC0) != 0x80) {
+                        return readMalformed(address, length);
+                    }
+                    chars[n++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                } else if ((b >> 4) == 0xE && p + 1 < end) {
+                    int b2 = unsafe.getByte(p++);
+                    int b3 = unsafe.getByte(p++);
+                    int cp = ((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+                    if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80 || cp < 0x800 || isSurrogate((char) cp)) {
+                        return readMalformed(address, length);
+                    }
+                    chars[n++] = (char) cp;
+                } else if ((b >> 3) == 0x1E && p + 2 < end) {
+                    int b2 = unsafe.getByte(p++);
+                    int b3 = unsafe.getByte(p++);
+                    int b4 = unsafe.getByte(p++);
+                    int cp = ((b & 0x07) << 18) | ((b2 & 0x3F) << 12) | ((b3 & 0x3F) << 6) | (b4 & 0x3F);
+                    if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80 || (b4 & 0xC0) != 0x80
+                            || cp < 0x10000 || cp > Character.MAX_CODE_POINT) {
+                        return readMalformed(address, length);
+                    }
+                    chars[n++] = (char) ((cp >>> 10) + (Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10)));
+                    chars[n++] = (char) ((cp & 0x3FF) + Character.MIN_LOW_SURROGATE);
+                } else {
+                    return readMalformed(address, length);
+                }
+            }
+            return new String(chars, 0, n);
+        }
+
+        private String readMalformed(long address, int length) {
+            byte[] bytes = new byte[length];
+            unsafe.copyMemory(null, address, bytes, BYTE_ARRAY_OFFSET, length);
+            return deserialize(bytes);
+        }
     };
 
-    public static Serializer<Serializable> SERIALIZABLE_SERIALIZER = new SerializableSerializer();
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_HIGH_SURROGATE && c <= Character.MAX_LOW_SURROGATE;
+    }
+
+    public static Serializer<Serializable> SERIALIZABLE_SERIALIZER = new SerializableSerializer<Serializable>();
 
     public static class SerializableSerializer<T extends Serializable> implements Serializer<T> {
         @Override
@@ -76,7 +219,9 @@ public class Serializers {
         public T deserialize(byte[] bytes) {
             ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
             try {
-                return (T) new ObjectInputStream(bis).readObject();
+                @SuppressWarnings("unchecked")
+                T value = (T) new ObjectInputStream(bis).readObject();
+                return value;
             } catch (Exception e) {
                 throw new SerializationException(e);
             }
@@ -1,5 +1,7 @@
 package com.jad.offheap.collections.utils;
 
+import com.jad.offheap.UnsafeWrapper;
+
 import static java.lang.String.format;
 
 /**
@@ -8,6 +10,8 @@ import static java.lang.String.format;
  */
 
 public class Utils {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
 
     public static long byteArrToLong(byte[] buf) {
         return  ((buf[0] & 0xFFL) << 56) |
@@ -81,6 +85,26 @@ public class Utils {
         return arr;
     }
 
+    /**
+     * Compares <tt>arr.length</tt> bytes of off-heap memory at <tt>address</tt> with array content,
+     * 8 bytes per step.
+     */
+    public static boolean memoryEquals(long address, byte[] arr) {
+        int length = arr.length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (unsafe.getLong(address + i) != unsafe.getLong(arr, BYTE_ARRAY_OFFSET + (long) i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (unsafe.getByte(address + i) != arr[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static void main(String[] args) {
         System.out.println(byteArrToLong(longToByteArr(-1l)));
     }
@@ -0,0 +1,104 @@
+package com.jad.offheap;
+
+import com.jad.offheap.collections.impl.OffHeapLongHashSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 04/26/14
+ */
+
+@Test
+public class AllocationTrackerTest {
+
+    @Test
+    public void testTracking() {
+        AllocationTracker tracker = new AllocationTracker(2);
+        tracker.allocated(0x1000, 16);
+        tracker.allocated(0x2000, 64);
+        tracker.allocated(0x3000, 32);
+        tracker.allocated(0, 8);
+        Assert.assertEquals(tracker.outstandingCount(), 3);
+        Assert.assertEquals(tracker.outstandingBytes(), 112);
+
+        tracker.reallocating(0x1000);
+        tracker.reallocated(0x4000, 128);
+        tracker.freeing(0x2000);
+        try {
+            tracker.freeing(0x2000);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            tracker.reallocating(0x1000);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        List<AllocationTracker.Allocation> outstanding = tracker.outstanding();
+        Assert.assertEquals(outstanding.size(), 2);
+        Assert.assertEquals(outstanding.get(0).getAddress(), 0x4000);
+        Assert.assertEquals(outstanding.get(0).getSize(), 128);
+        // every second allocation is sampled
+        Assert.assertNull(outstanding.get(0).getStackTrace());
+        Assert.assertNotNull(outstanding.get(1).getStackTrace());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tracker.report(new PrintStream(bytes, true));
+        String report = bytes.toString();
+        Assert.assertTrue(report.startsWith("Outstanding native allocations: 2 blocks, 160 bytes"), report);
+        Assert.assertTrue(report.contains("testTracking"), report);
+    }
+
+    @Test
+    public void testOwner() {
+        AllocationTracker tracker = new AllocationTracker(1000);
+        // first allocation is sampled, owner is taken from the stack trace
+        tracker.allocated(0x1000, 16);
+        tracker.allocated(0x2000, 16);
+        tracker.allocated(0x3000, 16, "com.jad.offheap.collections.impl.OffHeapLongHashSet");
+        String previous = AllocationTracker.enter("com.jad.offheap.collections.impl.OffHeapHashMap");
+        try {
+            String nested = AllocationTracker.enter("com.jad.offheap.collections.impl.OffHeapHashSet");
+            tracker.allocated(0x4000, 16);
+            AllocationTracker.exit(nested);
+            tracker.allocated(0x5000, 16);
+        } finally {
+            AllocationTracker.exit(previous);
+        }
+        tracker.allocated(0x6000, 16);
+
+        Map<Long, String> owners = new HashMap<Long, String>();
+        for (AllocationTracker.Allocation allocation : tracker.outstanding()) {
+            owners.put(allocation.getAddress(), allocation.getOwner());
+        }
+        Assert.assertNull(owners.get(0x1000L));
+        Assert.assertNull(owners.get(0x2000L));
+        Assert.assertEquals(owners.get(0x3000L), "com.jad.offheap.collections.impl.OffHeapLongHashSet");
+        Assert.assertEquals(owners.get(0x4000L), "com.jad.offheap.collections.impl.OffHeapHashSet");
+        Assert.assertEquals(owners.get(0x5000L), "com.jad.offheap.collections.impl.OffHeapHashMap");
+        Assert.assertNull(owners.get(0x6000L));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tracker.report(new PrintStream(bytes, true));
+        String report = bytes.toString();
+        Assert.assertTrue(report.contains("com.jad.offheap.collections.impl.OffHeapHashMap: 1 blocks, 16 bytes"), report);
+        Assert.assertTrue(report.contains("<unknown>: 3 blocks, 48 bytes"), report);
+
+        OffHeapLongHashSet first = new OffHeapLongHashSet();
+        OffHeapLongHashSet second = new OffHeapLongHashSet();
+        String owner = AllocationTracker.ownerOf(first);
+        Assert.assertTrue(owner.startsWith("com.jad.offheap.collections.impl.OffHeapLongHashSet@"), owner);
+        Assert.assertEquals(AllocationTracker.ownerOf(first), owner);
+        Assert.assertFalse(AllocationTracker.ownerOf(second).equals(owner));
+        first.close();
+        second.close();
+    }
+}
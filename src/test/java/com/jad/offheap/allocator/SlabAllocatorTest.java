@@ -0,0 +1,62 @@
+package com.jad.offheap.allocator;
+
+import com.jad.offheap.collections.impl.OffHeapHashMap;
+import com.jad.offheap.collections.serializer.Serializers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 01/12/14
+ */
+
+@Test
+public class SlabAllocatorTest {
+
+    @Test
+    public void testReuseFreedBlock() {
+        SlabAllocator allocator = new SlabAllocator(4096, 256);
+        long first = allocator.allocate(20);
+        long second = allocator.allocate(24);
+        Assert.assertEquals(second - first, 24);
+        allocator.free(first, 20);
+        Assert.assertEquals(allocator.allocate(17), first);
+        Assert.assertEquals(allocator.getReservedBytes(), 4096);
+
+        long large = allocator.allocate(1000);
+        Assert.assertTrue(allocator.getReservedBytes() > 4096);
+        allocator.free(large, 1000);
+        Assert.assertEquals(allocator.getReservedBytes(), 4096);
+
+        Assert.assertTrue(allocator.releaseAll());
+        Assert.assertEquals(allocator.getReservedBytes(), 0);
+    }
+
+    @Test
+    public void testMapWithSlabAllocator() {
+        Map<Integer, String> map = new OffHeapHashMap<Integer, String>(16, 0.75f,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER, new SlabAllocator(4096, 512));
+        int count = 10000;
+        for (int index = 0; index < count; index++) {
+            map.put(index, "value" + index);
+        }
+        for (int index = 0; index < count; index += 2) {
+            map.put(index, "longer value" + index);
+        }
+        for (int index = 0; index < count; index += 3) {
+            map.remove(index);
+        }
+        for (int index = 0; index < count; index++) {
+            String expected = index % 3 == 0 ? null : (index % 2 == 0 ? "longer value" : "value") + index;
+            Assert.assertEquals(map.get(index), expected);
+        }
+        map.clear();
+        Assert.assertEquals(map.size(), 0);
+        Assert.assertNull(map.get(1));
+        map.put(1, "one");
+        Assert.assertEquals(map.get(1), "one");
+        map.clear();
+    }
+}
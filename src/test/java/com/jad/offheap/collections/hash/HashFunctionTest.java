@@ -0,0 +1,79 @@
+package com.jad.offheap.collections.hash;
+
+import com.jad.offheap.UnsafeWrapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 05/04/14
+ */
+
+@Test
+public class HashFunctionTest {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void testXxHash64Vectors() {
+        XxHash64 xxHash = new XxHash64();
+        Assert.assertEquals(hash(xxHash, ""), 0xEF46DB3751D8E999L);
+        Assert.assertEquals(hash(xxHash, "abc"), 0x44BC2CF5AD770999L);
+        Assert.assertEquals(hash(xxHash, "Nobody inspects the spammish repetition"), 0xFBCEA83C8A378BF1L);
+        Assert.assertEquals(hash(new XxHash64(20141025), "xxhash"), 0xB559B98D844E0635L);
+    }
+
+    @Test
+    public void testMurmur3Vectors() {
+        Murmur3 murmur = new Murmur3();
+        Assert.assertEquals(hash(murmur, ""), 0L);
+        // first half of 6c1b07bc7bbc4be347939ac4a93c437a, little-endian
+        Assert.assertEquals(hash(murmur, "The quick brown fox jumps over the lazy dog"), 0xE34BBC7BBC071B6CL);
+        Assert.assertEquals(hash(new Murmur3(42), "hello"), 0xC4B8B3C960AF6F08L);
+    }
+
+    @Test
+    public void testMemoryAndArraySame() {
+        Random random = new Random(7);
+        byte[] bytes = new byte[100];
+        random.nextBytes(bytes);
+        long address = unsafe.allocateMemory(bytes.length);
+        try {
+            unsafe.copyMemory(bytes, BYTE_ARRAY_OFFSET, null, address, bytes.length);
+            for (HashFunction function : new HashFunction[]{new XxHash64(), new XxHash64(-1), new Murmur3(), new Murmur3(42)}) {
+                for (int length = 0; length + 3 <= bytes.length; length++) {
+                    byte[] copy = new byte[length];
+                    System.arraycopy(bytes, 3, copy, 0, length);
+                    long expected = function.hash(copy, 0, length);
+                    Assert.assertEquals(function.hash(bytes, 3, length), expected, function + ", length " + length);
+                    Assert.assertEquals(function.hashMemory(address + 3, length), expected, function + ", length " + length);
+                }
+            }
+        } finally {
+            unsafe.freeMemory(address);
+        }
+    }
+
+    @Test
+    public void testSeed() {
+        byte[] bytes = "seeded".getBytes(ASCII);
+        Assert.assertFalse(new XxHash64(1).hash(bytes, 0, bytes.length) == new XxHash64(2).hash(bytes, 0, bytes.length));
+        Assert.assertFalse(new Murmur3(1).hash(bytes, 0, bytes.length) == new Murmur3(2).hash(bytes, 0, bytes.length));
+        Assert.assertEquals(new XxHash64(5), new XxHash64(5));
+        Assert.assertFalse(new XxHash64(5).equals(new Murmur3(5)));
+        try {
+            new Murmur3().hash(bytes, 4, 3);
+            Assert.fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    private static long hash(HashFunction function, String s) {
+        byte[] bytes = s.getBytes(ASCII);
+        return function.hash(bytes, 0, bytes.length);
+    }
+}
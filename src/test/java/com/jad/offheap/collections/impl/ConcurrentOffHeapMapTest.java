@@ -0,0 +1,628 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.collections.function.BiFunction;
+import com.jad.offheap.collections.function.Function;
+import com.jad.offheap.collections.hash.XxHash64;
+import com.jad.offheap.collections.metrics.CollectionMetrics;
+import com.jad.offheap.collections.metrics.Metrics;
+import com.jad.offheap.collections.serializer.Serializer;
+import com.jad.offheap.collections.serializer.Serializers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 03/09/14
+ */
+
+@Test
+public class ConcurrentOffHeapMapTest {
+
+    @Test
+    public void testOptimisticReads() throws InterruptedException {
+        final ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 4,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        checkOptimisticReads(map);
+    }
+
+    @Test
+    public void testIncrementalRehash() throws InterruptedException {
+        final ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 4,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setIncrementalRehash(4);
+        Thread helper = new Thread() {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    map.rehashStep(64);
+                    Thread.yield();
+                }
+            }
+        };
+        helper.start();
+        try {
+            checkOptimisticReads(map);
+        } finally {
+            helper.interrupt();
+            helper.join();
+        }
+        while (map.rehashStep(64))
+            ;
+        Assert.assertFalse(map.rehashStep(64));
+    }
+
+    @Test
+    public void testByteBudget() {
+        final int maxBytes = 1 << 16;
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 4,
+                    maxBytes, policy, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+            for (int key = 0; key < 10; key++) {
+                map.put(key, "hot" + key);
+            }
+            for (int key = 10; key < 50000; key++) {
+                map.put(key, "value" + key);
+                Assert.assertTrue(map.getBytes() <= maxBytes);
+                for (int hot = 0; hot < 10; hot++) {
+                    map.get(hot);
+                }
+            }
+            Assert.assertTrue(map.size() > 500, policy + " " + map.size());
+            for (int hot = 0; hot < 10; hot++) {
+                if (policy == EvictionPolicy.LRU || policy == EvictionPolicy.TINY_LFU) {
+                    Assert.assertEquals(map.get(hot), "hot" + hot);
+                } else if (policy == EvictionPolicy.FIFO) {
+                    Assert.assertNull(map.get(hot));
+                }
+            }
+            map.put(-1, new String(new char[maxBytes]));
+            Assert.assertFalse(map.containsKey(-1));
+            if (policy != EvictionPolicy.TINY_LFU) {
+                // TinyLFU does not admit keys, which are seen once
+                Assert.assertTrue(map.containsKey(49999));
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() {
+        ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 4,
+                1 << 20, EvictionPolicy.TINY_LFU, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        for (int key = 0; key < 10000; key++) {
+            map.put(key, "value" + key);
+        }
+        CollectionMetrics[] segments = map.getSegmentMetrics();
+        Assert.assertEquals(segments.length, 4);
+        long size = 0;
+        long entryBytes = 0;
+        for (CollectionMetrics segment : segments) {
+            Assert.assertTrue(segment.getSize() > 0);
+            Assert.assertTrue(segment.getOtherBytes() > 0, "frequency sketch");
+            size += segment.getSize();
+            entryBytes += segment.getEntryBytes();
+        }
+        CollectionMetrics metrics = map.getMetrics();
+        Assert.assertEquals(metrics.getSize(), map.size());
+        Assert.assertEquals(metrics.getSize(), size);
+        Assert.assertEquals(metrics.getEntryBytes(), entryBytes);
+        Assert.assertEquals(metrics.getEntryBytes(), map.getBytes());
+        Assert.assertTrue(metrics.getResizeCount() > 0);
+
+        ObjectName name = Metrics.register("test", map);
+        try {
+            Assert.assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Size"),
+                    (long) map.size());
+        } catch (JMException e) {
+            throw new AssertionError(e);
+        } finally {
+            Metrics.unregister(name);
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testTinyLfuScanResistance() {
+        int[] kept = new int[2];
+        EvictionPolicy[] policies = {EvictionPolicy.LRU, EvictionPolicy.TINY_LFU};
+        for (int p = 0; p < policies.length; p++) {
+            ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 4,
+                    1 << 16, policies[p], Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+            for (int key = 0; key < 200; key++) {
+                map.put(key, "popular" + key);
+            }
+            for (int i = 0; i < 5; i++) {
+                for (int key = 0; key < 200; key++) {
+                    map.get(key);
+                }
+            }
+            // scan of keys, which are used once: missed and loaded
+            for (int key = 1000; key < 21000; key++) {
+                Assert.assertNull(map.get(key));
+                map.put(key, "scanned" + key);
+            }
+            for (int key = 0; key < 200; key++) {
+                if (map.containsKey(key)) {
+                    kept[p]++;
+                }
+            }
+            Assert.assertTrue(map.getBytes() <= 1 << 16);
+        }
+        Assert.assertEquals(kept[0], 0);
+        Assert.assertTrue(kept[1] > 150, "kept " + kept[1]);
+    }
+
+    private void checkOptimisticReads(final ConcurrentOffHeapMap<Integer, String> map) throws InterruptedException {
+        final int keys = 2000;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final long deadline = System.currentTimeMillis() + 1500;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 2; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    StringBuilder value = new StringBuilder();
+                    while (System.currentTimeMillis() < deadline && failure.get() == null) {
+                        int key = random.nextInt(keys);
+                        if (random.nextInt(4) == 0) {
+                            map.remove(key);
+                        } else {
+                            // values of different length make entries move
+                            value.setLength(0);
+                            value.append(key).append(':');
+                            for (int i = random.nextInt(20); i > 0; i--) {
+                                value.append('x');
+                            }
+                            map.put(key, value.toString());
+                        }
+                    }
+                }
+            });
+        }
+        for (int t = 0; t < 4; t++) {
+            final int seed = 100 + t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (System.currentTimeMillis() < deadline && failure.get() == null) {
+                            int key = random.nextInt(keys);
+                            String value = map.get(key);
+                            if (value != null) {
+                                Assert.assertTrue(value.startsWith(key + ":"), value);
+                                Assert.assertEquals(value.replace("x", "").length(), (key + ":").length());
+                            }
+                            map.containsKey(key);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        for (int key = 0; key < keys; key++) {
+            map.put(key, key + ":");
+        }
+        Assert.assertEquals(map.size(), keys);
+        for (int key = 0; key < keys; key++) {
+            Assert.assertEquals(map.get(key), key + ":");
+        }
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 4,
+                1 << 20, EvictionPolicy.LRU, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setExpireAfterWrite(100, TimeUnit.MILLISECONDS);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, "value" + key);
+        }
+        map.put(-1, "long living", 1, TimeUnit.HOURS);
+        Assert.assertEquals(map.get(0), "value0");
+        Thread.sleep(200);
+        Assert.assertNull(map.get(0));
+        Assert.assertFalse(map.containsKey(1));
+        Assert.assertNull(map.put(2, "rewritten"));
+        Assert.assertEquals(map.get(2), "rewritten");
+        Assert.assertEquals(map.get(-1), "long living");
+        Assert.assertEquals(new HashSet<Integer>(map.keySet()), new HashSet<Integer>(Arrays.asList(-1, 2)));
+    }
+
+    @Test
+    public void testClose() {
+        ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 4,
+                1 << 20, EvictionPolicy.TINY_LFU, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, "value" + key);
+        }
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        map.put(1, "1");
+        Assert.assertEquals(map.get(1), "1");
+        map.close();
+        map.close();
+        try {
+            map.get(1);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.put(2, "2");
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testParallelLoad() throws Exception {
+        ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 8,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.put(-1, "existing");
+        List<List<Map.Entry<Integer, String>>> partitions = new ArrayList<List<Map.Entry<Integer, String>>>();
+        for (int p = 0; p < 4; p++) {
+            Map<Integer, String> partition = new HashMap<Integer, String>();
+            for (int key = p; key < 40000; key += 4) {
+                partition.put(key, "value" + key);
+            }
+            partitions.add(new ArrayList<Map.Entry<Integer, String>>(partition.entrySet()));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            map.load(partitions, true, executor);
+            Assert.assertEquals(map.size(), 40001);
+            for (int key = 0; key < 40000; key++) {
+                Assert.assertEquals(map.get(key), "value" + key);
+            }
+            Assert.assertEquals(map.get(-1), "existing");
+            // every segment is sized once
+            for (CollectionMetrics metrics : map.getSegmentMetrics()) {
+                Assert.assertTrue(metrics.getResizeCount() <= 1, metrics.toString());
+            }
+
+            // the same keys again, they are replaced
+            for (List<Map.Entry<Integer, String>> partition : partitions) {
+                for (Map.Entry<Integer, String> entry : partition) {
+                    entry.setValue("new " + entry.getKey());
+                }
+            }
+            map.load(partitions, false, executor);
+            Assert.assertEquals(map.size(), 40001);
+            Assert.assertEquals(map.get(39999), "new 39999");
+        } finally {
+            executor.shutdown();
+            map.close();
+        }
+    }
+
+    @Test
+    public void testStreamingLoad() throws Exception {
+        final AtomicInteger serialized = new AtomicInteger();
+        Serializer<Integer> keySerializer = new Serializer<Integer>() {
+            @Override
+            public byte[] serialize(Integer key) {
+                serialized.incrementAndGet();
+                return Serializers.INT_SERIALIZER.serialize(key);
+            }
+
+            @Override
+            public Integer deserialize(byte[] bytes) {
+                return Serializers.INT_SERIALIZER.deserialize(bytes);
+            }
+        };
+        ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 8,
+                keySerializer, Serializers.STRING_SERIALIZER);
+        map.setHashFunction(new XxHash64(3));
+        final int size = 100000;
+        List<Iterable<Map.Entry<Integer, String>>> partitions = new ArrayList<Iterable<Map.Entry<Integer, String>>>();
+        for (int p = 0; p < 4; p++) {
+            final int first = p;
+            // entries are produced while they are loaded, as from a file
+            partitions.add(new Iterable<Map.Entry<Integer, String>>() {
+                @Override
+                public Iterator<Map.Entry<Integer, String>> iterator() {
+                    return new Iterator<Map.Entry<Integer, String>>() {
+                        int key = first;
+
+                        @Override
+                        public boolean hasNext() {
+                            return key < size;
+                        }
+
+                        @Override
+                        public Map.Entry<Integer, String> next() {
+                            Map.Entry<Integer, String> entry =
+                                    new AbstractMap.SimpleEntry<Integer, String>(key, "value" + key);
+                            key += 4;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            map.load(partitions, size, true, executor);
+        } finally {
+            executor.shutdown();
+        }
+        // key is serialized to be hashed and to be stored, hash is computed once
+        Assert.assertEquals(serialized.get(), 2 * size);
+        Assert.assertEquals(map.size(), size);
+        for (int key = 0; key < size; key++) {
+            Assert.assertEquals(map.get(key), "value" + key);
+        }
+        for (CollectionMetrics metrics : map.getSegmentMetrics()) {
+            Assert.assertEquals(metrics.getResizeCount(), 1, metrics.toString());
+        }
+        map.close();
+    }
+
+    @Test
+    public void testLoadFailure() throws Exception {
+        ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 8,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        List<Iterable<Map.Entry<Integer, String>>> partitions = new ArrayList<Iterable<Map.Entry<Integer, String>>>();
+        for (int p = 0; p < 2; p++) {
+            final boolean failing = p == 0;
+            // the other partition never ends, so load returns only if it is stopped
+            partitions.add(new Iterable<Map.Entry<Integer, String>>() {
+                @Override
+                public Iterator<Map.Entry<Integer, String>> iterator() {
+                    return new Iterator<Map.Entry<Integer, String>>() {
+                        int key = failing ? -1 : 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return true;
+                        }
+
+                        @Override
+                        public Map.Entry<Integer, String> next() {
+                            if (failing && key < -10000) {
+                                throw new IllegalStateException("Broken partition");
+                            }
+                            Map.Entry<Integer, String> entry =
+                                    new AbstractMap.SimpleEntry<Integer, String>(key, "value" + key);
+                            key += failing ? -1 : 1;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            map.load(partitions, 0, true, executor);
+            Assert.fail();
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        } finally {
+            executor.shutdown();
+        }
+        // tasks are finished, nothing is put after load returned
+        int size = map.size();
+        Assert.assertTrue(size >= 10000, String.valueOf(size));
+        Thread.sleep(50);
+        Assert.assertEquals(map.size(), size);
+        map.close();
+    }
+
+    @Test
+    public void testAtomicOperations() throws InterruptedException {
+        final ConcurrentOffHeapMap<Integer, Long> map = new ConcurrentOffHeapMap<Integer, Long>(16, 0.75f, 4,
+                1 << 20, EvictionPolicy.LRU, Serializers.INT_SERIALIZER, Serializers.LONG_SERIALIZER);
+        final BiFunction<Long, Long, Long> sum = new BiFunction<Long, Long, Long>() {
+            @Override
+            public Long apply(Long a, Long b) {
+                return a + b;
+            }
+        };
+        final int threads = 4;
+        final int keys = 100;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 1000; n++) {
+                        for (int key = 0; key < keys; key++) {
+                            map.mergeAtomic(key, 1L, sum);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int key = 0; key < keys; key++) {
+            Assert.assertEquals(map.get(key), Long.valueOf(threads * 1000));
+        }
+        Assert.assertEquals(map.putIfAbsent(1, 0L), Long.valueOf(threads * 1000));
+        Assert.assertTrue(map.replace(1, (long) threads * 1000, 5L));
+        Assert.assertEquals(map.replace(1, 6L), Long.valueOf(5));
+        Assert.assertFalse(map.remove(1, 5L));
+        Assert.assertTrue(map.remove(1, 6L));
+        Assert.assertNull(map.computeIfPresentAtomic(1, new BiFunction<Integer, Long, Long>() {
+            @Override
+            public Long apply(Integer key, Long value) {
+                return value + 1;
+            }
+        }));
+        Assert.assertEquals(map.computeIfAbsentAtomic(1, new Function<Integer, Long>() {
+            @Override
+            public Long apply(Integer key) {
+                return key * 10L;
+            }
+        }), Long.valueOf(10));
+        Assert.assertEquals(map.size(), keys);
+        map.close();
+    }
+
+    @Test
+    public void testCounters() throws InterruptedException {
+        final ConcurrentOffHeapMap<String, Long> map = new ConcurrentOffHeapMap<String, Long>(
+                Serializers.STRING_SERIALIZER, Serializers.LONG_SERIALIZER);
+        final int threads = 4;
+        final int keys = 50;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 2000; n++) {
+                        for (int key = 0; key < keys; key++) {
+                            map.incrementAndGet("counter" + key);
+                            map.addAndGet("sum" + key, key);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        // readers see whole values only
+        for (int n = 0; n < 10000; n++) {
+            Long value = map.get("counter" + (n % keys));
+            Assert.assertTrue(value == null || (value > 0 && value <= threads * 2000));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int key = 0; key < keys; key++) {
+            Assert.assertEquals(map.get("counter" + key), Long.valueOf(threads * 2000));
+            Assert.assertEquals(map.get("sum" + key), Long.valueOf(threads * 2000L * key));
+        }
+        Assert.assertEquals(map.getAndSet("counter0", -1), threads * 2000);
+        Assert.assertEquals(map.decrementAndGet("counter0"), -2);
+        map.close();
+    }
+
+    @Test
+    public void testHashFunction() throws Exception {
+        ConcurrentOffHeapMap<Integer, String> map = new ConcurrentOffHeapMap<Integer, String>(16, 0.75f, 8,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setHashFunction(new XxHash64(42));
+        List<List<Map.Entry<Integer, String>>> partitions = new ArrayList<List<Map.Entry<Integer, String>>>();
+        for (int p = 0; p < 4; p++) {
+            List<Map.Entry<Integer, String>> partition = new ArrayList<Map.Entry<Integer, String>>();
+            for (int key = p * 1000; key < (p + 1) * 1000; key++) {
+                partition.add(new AbstractMap.SimpleEntry<Integer, String>(key, "value" + key));
+            }
+            partitions.add(partition);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            map.load(partitions, true, executor);
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(map.size(), 4000);
+        for (int key = 0; key < 4000; key++) {
+            Assert.assertEquals(map.get(key), "value" + key);
+        }
+        Assert.assertEquals(map.put(5000, "new"), null);
+        Assert.assertEquals(map.replace(5000, "newer"), "new");
+        Assert.assertEquals(map.remove(0), "value0");
+        Iterator<Integer> keys = map.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next() % 2 == 0) {
+                keys.remove();
+            }
+        }
+        Assert.assertEquals(map.size(), 2000);
+        Assert.assertFalse(map.containsKey(2));
+        Assert.assertEquals(map.get(3), "value3");
+        try {
+            map.setHashFunction(null);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        map.close();
+    }
+
+    @Test
+    public void testReadBuffer() throws InterruptedException {
+        final ReadBuffer reads = new ReadBuffer();
+        final FrequencySketch sketch = new FrequencySketch(1000, null);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    // at least once, the writer may finish before readers are scheduled
+                    do {
+                        reads.record(42);
+                    } while (!stop.get());
+                }
+            };
+            readers[t].start();
+        }
+        // the writer drains and ages concurrently with readers, sketch stays consistent
+        for (int n = 0; n < 1000; n++) {
+            reads.drainTo(sketch);
+            sketch.age();
+        }
+        stop.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        reads.drainTo(sketch);
+        Assert.assertTrue(sketch.frequency(42) > 0);
+        Assert.assertTrue(sketch.frequency(42) <= 15);
+
+        // full stripe drops hashes and asks for draining
+        boolean full = false;
+        for (int n = 0; n < 100; n++) {
+            full |= reads.record(7);
+        }
+        Assert.assertTrue(full);
+        reads.clear();
+        Assert.assertFalse(reads.record(7));
+        sketch.run();
+    }
+}
@@ -0,0 +1,682 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.collections.function.BiFunction;
+import com.jad.offheap.collections.function.Function;
+import com.jad.offheap.collections.hash.AbstractHashFunction;
+import com.jad.offheap.collections.hash.Murmur3;
+import com.jad.offheap.collections.hash.XxHash64;
+import com.jad.offheap.collections.metrics.CollectionMetrics;
+import com.jad.offheap.collections.serializer.Serializers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 01/19/14
+ */
+
+@Test
+public class OffHeapHashMapTest {
+
+    @Test
+    public void testKeyBytesComparison() {
+        OffHeapHashMap<String, Integer> map = new OffHeapHashMap<String, Integer>(16,
+                Serializers.STRING_SERIALIZER, Serializers.INT_SERIALIZER);
+        map.setKeyBytesComparison(true);
+        // "Aa" and "BB" have the same hashCode
+        map.put("Aa", 1);
+        map.put("BB", 2);
+        map.put("Aa", 3);
+        Assert.assertEquals(map.size(), 2);
+        Assert.assertEquals(map.get("Aa"), Integer.valueOf(3));
+        Assert.assertEquals(map.get("BB"), Integer.valueOf(2));
+        Assert.assertNull(map.get(1));
+        Assert.assertTrue(map.containsKey("BB"));
+        Assert.assertEquals(map.remove("BB"), Integer.valueOf(2));
+        Assert.assertFalse(map.containsKey("BB"));
+        Assert.assertTrue(map.containsKey("Aa"));
+        map.clear();
+
+        OffHeapHashSet<String> set = new OffHeapHashSet<String>(16, Serializers.STRING_SERIALIZER);
+        set.setKeyBytesComparison(true);
+        Assert.assertTrue(set.add("Aa"));
+        Assert.assertTrue(set.add("BB"));
+        Assert.assertFalse(set.add("Aa"));
+        Assert.assertTrue(set.remove("Aa"));
+        Assert.assertTrue(set.contains("BB"));
+        Assert.assertFalse(set.contains("Aa"));
+        set.clear();
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        OffHeapHashMap<String, String> map = new OffHeapHashMap<String, String>(
+                Serializers.STRING_SERIALIZER, Serializers.STRING_SERIALIZER);
+        OffHeapHashSet<Long> set = new OffHeapHashSet<Long>(Serializers.LONG_SERIALIZER);
+        Map<String, String> expectedMap = new HashMap<String, String>();
+        Set<Long> expectedSet = new HashSet<Long>();
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            // some values are larger than snapshot buffer
+            String value = i % 10000 == 0 ? longValue.append(new char[1 << 19]).toString() : "value" + i;
+            map.put("key" + i, value);
+            expectedMap.put("key" + i, value);
+            set.add((long) i * i);
+            expectedSet.add((long) i * i);
+        }
+        map.put(null, "null");
+        expectedMap.put(null, "null");
+
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            map.writeSnapshot(channel);
+            long setStart = channel.position();
+            set.writeSnapshot(channel);
+
+            OffHeapHashMap<String, String> loadedMap = new OffHeapHashMap<String, String>(
+                    Serializers.STRING_SERIALIZER, Serializers.STRING_SERIALIZER);
+            loadedMap.put("stale", "stale");
+            channel.position(0);
+            loadedMap.readSnapshot(channel);
+            Assert.assertEquals(loadedMap, expectedMap);
+            loadedMap.put("key1", "changed");
+            Assert.assertEquals(loadedMap.get("key1"), "changed");
+
+            OffHeapHashSet<Long> loadedSet = new OffHeapHashSet<Long>(Serializers.LONG_SERIALIZER);
+            channel.position(setStart);
+            loadedSet.readSnapshot(channel);
+            Assert.assertEquals(loadedSet, expectedSet);
+
+            channel.position(0);
+            try {
+                loadedSet.readSnapshot(channel);
+                Assert.fail("Map snapshot is read by set");
+            } catch (IOException e) {
+                // expected
+            }
+            channel.truncate(setStart - 10);
+            channel.position(0);
+            try {
+                loadedMap.readSnapshot(channel);
+                Assert.fail("Truncated snapshot is read");
+            } catch (IOException e) {
+                Assert.assertTrue(loadedMap.isEmpty());
+            }
+            raf.close();
+            map.clear();
+            set.clear();
+            loadedMap.clear();
+            loadedSet.clear();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testIncrementalRehash() {
+        OffHeapHashMap<Integer, String> map = new OffHeapHashMap<Integer, String>(16,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setIncrementalRehash(2);
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        Random random = new Random(3);
+        boolean rehashed = false;
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(50000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    Assert.assertEquals(map.remove(key), expected.remove(key));
+                    break;
+                case 1:
+                    Assert.assertEquals(map.get(key), expected.get(key));
+                    break;
+                default:
+                    // values of different length make entries move
+                    String value = key + ":" + random.nextInt(1 << random.nextInt(30));
+                    Assert.assertEquals(map.put(key, value), expected.put(key, value));
+            }
+            if (map.isRehashing()) {
+                rehashed = true;
+                if (random.nextInt(1000) == 0) {
+                    Assert.assertEquals(map, expected);
+                }
+            }
+        }
+        Assert.assertTrue(rehashed);
+        map.put(null, "null");
+        expected.put(null, "null");
+        while (!map.isRehashing()) {
+            int key = 100000 + random.nextInt(100000);
+            map.put(key, "new");
+            expected.put(key, "new");
+        }
+        // iteration over both tables
+        for (Iterator<Map.Entry<Integer, String>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Integer, String> entry = iterator.next();
+            Integer key = entry.getKey();
+            if (key != null && key % 2 == 0) {
+                iterator.remove();
+                expected.remove(key);
+            } else {
+                entry.setValue("longer value of " + key);
+                expected.put(key, "longer value of " + key);
+            }
+        }
+        Assert.assertTrue(map.isRehashing());
+        Assert.assertEquals(map, expected);
+        Assert.assertTrue(map.containsValue("longer value of null"));
+        while (map.rehashStep(100))
+            ;
+        Assert.assertEquals(map, expected);
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testMetrics() {
+        OffHeapHashMap<Integer, String> map = new OffHeapHashMap<Integer, String>(16,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setIncrementalRehash(4);
+        Assert.assertFalse(map.isChainHistogram());
+        map.setChainHistogram(true);
+        Random random = new Random(5);
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(20000);
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+            } else {
+                map.put(key, key + ":" + random.nextInt(1 << random.nextInt(30)));
+            }
+            if (random.nextInt(5000) == 0) {
+                assertMetrics(map);
+            }
+        }
+        CollectionMetrics metrics = assertMetrics(map);
+        Assert.assertTrue(metrics.getResizeCount() >= 10);
+        Assert.assertEquals(metrics.getTableBytes(), metrics.getBuckets() << 3);
+        Assert.assertTrue(metrics.getMaxChainLength() >= 1);
+        Assert.assertTrue(metrics.getAverageChainLength() >= 1);
+        Assert.assertEquals(metrics.getLoadFactor(), (double) metrics.getSize() / metrics.getBuckets());
+
+        for (Iterator<Integer> iterator = map.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next() % 2 == 0) {
+                iterator.remove();
+            }
+        }
+        assertMetrics(map);
+        OffHeapHashMap<?, ?> clone = (OffHeapHashMap<?, ?>) map.clone();
+        Assert.assertTrue(clone.isChainHistogram());
+        assertMetrics(clone);
+        clone.close();
+        map.setChainHistogram(false);
+        Assert.assertEquals(map.getMetrics().getChainHistogram(), new long[0]);
+        Assert.assertEquals(map.getMetrics().getMaxChainLength(), -1);
+        Assert.assertEquals(map.getMetrics().getAverageChainLength(), -1.0);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, "value" + key);
+        }
+        // counted from the table, when it is enabled again
+        map.setChainHistogram(true);
+        assertMetrics(map);
+        map.clear();
+        metrics = assertMetrics(map);
+        Assert.assertEquals(metrics.getEntryBytes(), 0);
+        Assert.assertEquals(metrics.getChainHistogram(), new long[]{metrics.getBuckets()});
+    }
+
+    /**
+     * Compares incrementally maintained metrics with the walked table.
+     */
+    private static CollectionMetrics assertMetrics(OffHeapHashMap<?, ?> map) {
+        long[] histogram = new long[64];
+        long bytes = 0;
+        int length = 0;
+        for (int i = 0; i < map.bucketCount(); i++) {
+            int chain = 0;
+            for (long e = map.bucketAt(i); e > 0; e = map.getNext(e)) {
+                bytes += map.entrySize(e);
+                chain++;
+            }
+            histogram[chain]++;
+            length = Math.max(length, chain + 1);
+        }
+        CollectionMetrics metrics = map.getMetrics();
+        Assert.assertEquals(metrics.getSize(), map.size());
+        Assert.assertEquals(metrics.getBuckets(), map.bucketCount());
+        Assert.assertEquals(metrics.getEntryBytes(), bytes);
+        Assert.assertEquals(metrics.getChainHistogram(),
+                map.isChainHistogram() ? Arrays.copyOf(histogram, length) : new long[0]);
+        return metrics;
+    }
+
+    @Test
+    public void testExpiry() {
+        final long[] now = {0};
+        OffHeapHashMap<Integer, String> map = new OffHeapHashMap<Integer, String>(
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER) {
+            @Override
+            long currentTime() {
+                return now[0];
+            }
+        };
+        map.put(0, "0");
+        try {
+            map.setExpireAfterWrite(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        map.clear();
+        map.setExpireAfterWrite(10, TimeUnit.SECONDS);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, "value" + key);
+        }
+        map.put(1000, "long living", 1, TimeUnit.HOURS);
+        map.put(null, "null", 1, TimeUnit.HOURS);
+        // moved entries stay scheduled
+        for (Map.Entry<Integer, String> entry : map.entrySet()) {
+            entry.setValue("longer value of " + entry.getKey());
+        }
+
+        now[0] = 9999;
+        Assert.assertEquals(map.get(0), "longer value of 0");
+        now[0] = 10000;
+        Assert.assertNull(map.get(0));
+        Assert.assertFalse(map.containsKey(0));
+        // iteration skips expired entries, size does not
+        Assert.assertEquals(new HashSet<Integer>(map.keySet()), new HashSet<Integer>(Arrays.asList(1000, null)));
+        Assert.assertEquals(map.size(), 1002);
+        Assert.assertNull(map.put(1, "rewritten"));
+        Assert.assertNull(map.remove(2));
+
+        // every write removes a batch of expired entries
+        now[0] = 11000;
+        int writes = 0;
+        while (map.size() > 3) {
+            map.remove(-1);
+            writes++;
+        }
+        Assert.assertTrue(writes < 100, "writes " + writes);
+        Assert.assertEquals(map.get(1), "rewritten");
+        Assert.assertEquals(map.get(1000), "longer value of 1000");
+        Assert.assertEquals(map.get(null), "longer value of null");
+        now[0] = 20000;
+        Assert.assertNull(map.get(1));
+        now[0] = 3600000;
+        Assert.assertNull(map.get(1000));
+        map.put(-1, "trigger");
+        Assert.assertEquals(map.size(), 1);
+        map.remove(-1);
+
+        // deadline after access moves with reads
+        map.setExpireAfterWrite(0, TimeUnit.SECONDS);
+        map.setExpireAfterAccess(1, TimeUnit.SECONDS);
+        map.put(1, "read");
+        map.put(2, "not read");
+        for (int i = 0; i < 10; i++) {
+            now[0] += 500;
+            Assert.assertEquals(map.get(1), "read");
+            map.put(3, "written");
+        }
+        Assert.assertFalse(map.containsKey(2));
+        Assert.assertEquals(map.size(), 2);
+        now[0] += 1000;
+        Assert.assertNull(map.get(1));
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testClose() {
+        OffHeapHashMap<Integer, String> map = new OffHeapHashMap<Integer, String>(
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setExpireAfterWrite(1, TimeUnit.HOURS);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, "value" + key);
+        }
+        @SuppressWarnings("unchecked")
+        OffHeapHashMap<Integer, String> clone = (OffHeapHashMap<Integer, String>) map.clone();
+        Iterator<Integer> iterator = map.keySet().iterator();
+        iterator.next();
+        map.close();
+        Assert.assertTrue(map.isClosed());
+        Assert.assertEquals(map.size(), 0);
+        map.close();
+        try {
+            map.get(1);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            map.put(1, "1");
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            iterator.next();
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        // clone owns its own memory
+        Assert.assertEquals(clone.size(), 1000);
+        Assert.assertEquals(clone.get(999), "value999");
+        clone.close();
+
+        OffHeapHashSet<String> set = new OffHeapHashSet<String>(Serializers.STRING_SERIALIZER);
+        set.add("a");
+        set.add(null);
+        Assert.assertTrue(set.remove("a"));
+        set.close();
+        Assert.assertTrue(set.isEmpty());
+        try {
+            set.contains("a");
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testLoadFactorAboveOne() throws IOException {
+        OffHeapHashMap<Integer, String> map = new OffHeapHashMap<Integer, String>(16, 8,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, "value" + key);
+        }
+        Assert.assertEquals(map.sizeLong(), 1000);
+        Assert.assertEquals(map.size(), 1000);
+        // 8 entries per bucket on average
+        Assert.assertEquals(map.bucketCount(), 128);
+        for (int key = 0; key < 1000; key++) {
+            Assert.assertEquals(map.get(key), "value" + key);
+        }
+
+        // snapshot keeps size as long
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            map.writeSnapshot(channel);
+            ByteBuffer header = ByteBuffer.allocate(36).order(ByteOrder.nativeOrder());
+            channel.read(header, 0);
+            Assert.assertEquals(header.getLong(20), 128);
+            Assert.assertEquals(header.getLong(28), 1000);
+            channel.position(0);
+            OffHeapHashMap<Integer, String> loaded = new OffHeapHashMap<Integer, String>(
+                    Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+            loaded.readSnapshot(channel);
+            Assert.assertEquals(loaded, map);
+            raf.close();
+            loaded.close();
+        } finally {
+            file.delete();
+        }
+        map.close();
+    }
+
+    @Test
+    public void testLargeMap() throws IOException {
+        OffHeapHashMap<String, String> map = new OffHeapHashMap<String, String>(
+                Serializers.STRING_SERIALIZER, Serializers.STRING_SERIALIZER);
+        OffHeapHashMap<String, String> compact = new OffHeapHashMap<String, String>(
+                Serializers.STRING_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setLargeMap(true);
+        Assert.assertEquals(map.getHashFunction(), new XxHash64(0));
+        try {
+            map.setHashFunction(null);
+            Assert.fail("large map without hash function");
+        } catch (IllegalStateException expected) {
+        }
+        map.setHashFunction(new XxHash64(7));
+        Assert.assertTrue(map.maximumCapacity() > 1L << 30);
+        Assert.assertEquals(map.indexFor(-1L, 1L << 34), (1L << 34) - 1);
+        boolean wideHashes = false;
+        for (int i = 0; i < 10000; i++) {
+            map.put("key" + i, "value" + i);
+            compact.put("key" + i, "value" + i);
+            long hash = map.getHash(map.getEntry("key" + i));
+            wideHashes |= hash != (int) hash;
+        }
+        map.put(null, "null");
+        compact.put(null, "null");
+        Assert.assertTrue(wideHashes, "64-bit hashes are stored");
+        // hash takes 4 more bytes in the header
+        Assert.assertEquals(map.getMetrics().getEntryBytes(), compact.getMetrics().getEntryBytes() + 4 * 10001);
+        Assert.assertEquals(map, compact);
+        Assert.assertEquals(map.remove("key5"), "value5");
+        Assert.assertNull(map.get("key5"));
+        compact.remove("key5");
+        try {
+            map.setLargeMap(false);
+            Assert.fail("mode of not empty map");
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(map.clone(), compact);
+
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            map.writeSnapshot(channel);
+            long compactStart = channel.position();
+            compact.writeSnapshot(channel);
+
+            // large to compact and back, keys are hashed again
+            OffHeapHashMap<String, String> loaded = new OffHeapHashMap<String, String>(
+                    Serializers.STRING_SERIALIZER, Serializers.STRING_SERIALIZER);
+            channel.position(0);
+            loaded.readSnapshot(channel);
+            Assert.assertEquals(loaded, compact);
+            Assert.assertEquals(loaded.get("key1"), "value1");
+            loaded.close();
+            loaded = new OffHeapHashMap<String, String>(
+                    Serializers.STRING_SERIALIZER, Serializers.STRING_SERIALIZER);
+            loaded.setLargeMap(true);
+            channel.position(compactStart);
+            loaded.readSnapshot(channel);
+            Assert.assertEquals(loaded, compact);
+            Assert.assertEquals(loaded.get("key1"), "value1");
+            Assert.assertNull(loaded.get("key5"));
+            loaded.close();
+            raf.close();
+        } finally {
+            file.delete();
+        }
+
+        map.clear();
+        map.setLargeMap(false);
+        map.put("key1", "value1");
+        Assert.assertEquals(map.get("key1"), "value1");
+        Assert.assertEquals(map.getMetrics().getEntryBytes(), compact.entrySize(compact.getEntry("key1")));
+        map.close();
+        compact.close();
+    }
+
+    @Test
+    public void testBulkLoad() {
+        Map<Integer, String> source = new HashMap<Integer, String>();
+        for (int key = 0; key < 10000; key++) {
+            source.put(key, "value" + key);
+        }
+        OffHeapHashMap<Integer, String> map = new OffHeapHashMap<Integer, String>(
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        map.setIncrementalRehash(4);
+        map.put(-1, "existing");
+        map.putAll(source.entrySet().iterator(), source.size(), true);
+        Assert.assertEquals(map.getMetrics().getResizeCount(), 1);
+        Assert.assertEquals(map.size(), 10001);
+        Assert.assertEquals(map.get(-1), "existing");
+        for (int key = 0; key < 10000; key++) {
+            Assert.assertEquals(map.get(key), "value" + key);
+        }
+        assertMetrics(map);
+
+        // keys may repeat, expected size is too small
+        Map<Integer, String> updates = new HashMap<Integer, String>();
+        for (int key = 5000; key < 30000; key++) {
+            updates.put(key, "updated" + key);
+        }
+        map.putAll(updates.entrySet().iterator(), 100, false);
+        Assert.assertEquals(map.size(), 30001);
+        Assert.assertEquals(map.get(4999), "value4999");
+        Assert.assertEquals(map.get(5000), "updated5000");
+        assertMetrics(map);
+        map.close();
+
+        OffHeapHashSet<Integer> set = new OffHeapHashSet<Integer>(Serializers.INT_SERIALIZER);
+        set.addAll(source.keySet().iterator(), source.size(), true);
+        set.addAll(Arrays.asList(1, 2, 10000).iterator(), 3, false);
+        Assert.assertEquals(set.getMetrics().getResizeCount(), 1);
+        Assert.assertEquals(set.size(), 10001);
+        Assert.assertTrue(set.contains(10000));
+        Assert.assertTrue(set.contains(9999));
+        set.close();
+    }
+
+    @Test
+    public void testAtomicOperations() {
+        OffHeapHashMap<String, String> map = new OffHeapHashMap<String, String>(
+                Serializers.STRING_SERIALIZER, Serializers.STRING_SERIALIZER);
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        Assert.assertEquals(map.putIfAbsent("key1", "other"), "value1");
+        Assert.assertNull(map.putIfAbsent("new", "new value"));
+        Assert.assertNull(map.putIfAbsent(null, "null"));
+        Assert.assertEquals(map.get(null), "null");
+
+        // values of other length move entries in the middle of chains
+        Assert.assertEquals(map.replace("key2", "much longer value 2"), "value2");
+        Assert.assertNull(map.replace("absent", "value"));
+        Assert.assertFalse(map.containsKey("absent"));
+        Assert.assertFalse(map.replace("key3", "value2", "v"));
+        Assert.assertTrue(map.replace("key3", "value3", "v"));
+        Assert.assertFalse(map.remove("key4", "value5"));
+        Assert.assertTrue(map.remove("key4", "value4"));
+        Assert.assertFalse(map.remove("key4", "value4"));
+
+        Function<String, String> upper = new Function<String, String>() {
+            @Override
+            public String apply(String key) {
+                return key.toUpperCase();
+            }
+        };
+        Assert.assertEquals(map.computeIfAbsentAtomic("key5", upper), "value5");
+        Assert.assertEquals(map.computeIfAbsentAtomic("abc", upper), "ABC");
+        BiFunction<String, String, String> concat = new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String a, String b) {
+                return b.isEmpty() ? null : a + b;
+            }
+        };
+        Assert.assertEquals(map.computeIfPresentAtomic("key6", concat), "key6value6");
+        Assert.assertNull(map.computeIfPresentAtomic("absent", concat));
+        Assert.assertEquals(map.mergeAtomic("key7", "+", concat), "value7+");
+        Assert.assertEquals(map.mergeAtomic("merged", "m", concat), "m");
+        Assert.assertNull(map.mergeAtomic("key8", "", concat));
+
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            expected.put("key" + i, "value" + i);
+        }
+        expected.put("new", "new value");
+        expected.put(null, "null");
+        expected.put("key2", "much longer value 2");
+        expected.put("key3", "v");
+        expected.remove("key4");
+        expected.put("abc", "ABC");
+        expected.put("key6", "key6value6");
+        expected.put("key7", "value7+");
+        expected.put("merged", "m");
+        expected.remove("key8");
+        Assert.assertEquals(map, expected);
+        assertMetrics(map);
+        try {
+            map.incrementAndGet("key1");
+            Assert.fail("Values are not longs");
+        } catch (UnsupportedOperationException expectedException) {
+        }
+        map.close();
+
+        OffHeapHashMap<String, Long> counters = new OffHeapHashMap<String, Long>(
+                Serializers.STRING_SERIALIZER, Serializers.LONG_SERIALIZER);
+        Assert.assertEquals(counters.incrementAndGet("a"), 1);
+        Assert.assertEquals(counters.addAndGet("a", -5), -4);
+        Assert.assertEquals(counters.getAndAdd("a", 4), -4);
+        Assert.assertEquals(counters.getAndSet("a", Long.MIN_VALUE), 0);
+        Assert.assertEquals(counters.get("a"), Long.valueOf(Long.MIN_VALUE));
+        Assert.assertEquals(counters.getAndSet("b", 7), 0);
+        Assert.assertEquals(counters.decrementAndGet("b"), 6);
+        counters.put("c", null);
+        Assert.assertEquals(counters.incrementAndGet("c"), 1);
+        Assert.assertEquals(counters.size(), 3);
+        counters.close();
+    }
+
+    @Test
+    public void testHashFunction() throws IOException {
+        OffHeapHashMap<String, Integer> map = new OffHeapHashMap<String, Integer>(16,
+                Serializers.STRING_SERIALIZER, Serializers.INT_SERIALIZER);
+        map.setHashFunction(new XxHash64(AbstractHashFunction.randomSeed()));
+        Assert.assertTrue(map.isKeyBytesComparison());
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        for (int n = 0; n < 5000; n++) {
+            map.put("key" + n, n);
+            expected.put("key" + n, n);
+        }
+        // "Aa" and "BB" have the same hashCode, but not the same bytes
+        map.put("Aa", 1);
+        map.put("BB", 2);
+        map.put(null, 3);
+        expected.put("Aa", 1);
+        expected.put("BB", 2);
+        expected.put(null, 3);
+        Assert.assertEquals(map, expected);
+        Assert.assertEquals(map.remove("Aa"), Integer.valueOf(1));
+        Assert.assertEquals(map.get("BB"), Integer.valueOf(2));
+        Assert.assertEquals(map.putIfAbsent("BB", 5), Integer.valueOf(2));
+        Assert.assertNull(map.get(42));
+        expected.remove("Aa");
+        try {
+            map.setHashFunction(new Murmur3());
+            Assert.fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // hashes of the snapshot are recomputed by the function of the reader
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            map.writeSnapshot(channel);
+            channel.position(0);
+            OffHeapHashMap<String, Integer> loaded = new OffHeapHashMap<String, Integer>(16,
+                    Serializers.STRING_SERIALIZER, Serializers.INT_SERIALIZER);
+            loaded.setHashFunction(new Murmur3(7));
+            loaded.readSnapshot(channel);
+            Assert.assertEquals(loaded, expected);
+            for (String key : expected.keySet()) {
+                Assert.assertEquals(loaded.get(key), expected.get(key));
+            }
+            raf.close();
+            loaded.close();
+        } finally {
+            file.delete();
+        }
+        map.close();
+    }
+}
@@ -0,0 +1,234 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.collections.function.BiFunction;
+import com.jad.offheap.collections.function.Function;
+import com.jad.offheap.collections.serializer.Serializers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 03/16/14
+ */
+
+@Test
+public class OffHeapLruCacheTest {
+
+    @Test
+    public void testSameAsLinkedHashMap() {
+        final int maxEntries = 1000;
+        OffHeapLruCache<Integer, String> cache = new OffHeapLruCache<Integer, String>(maxEntries, 0,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        Map<Integer, String> expected = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        Random random = new Random(5);
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(3000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    Assert.assertEquals(cache.remove(key), expected.remove(key));
+                    break;
+                case 1:
+                    Assert.assertEquals(cache.get(key), expected.get(key));
+                    break;
+                default:
+                    // values of different length make entries move
+                    String value = key + ":" + random.nextInt(1 << random.nextInt(30));
+                    Assert.assertEquals(cache.put(key, value), expected.put(key, value));
+            }
+            Assert.assertEquals(cache.size(), expected.size());
+        }
+        assertSameContent(cache, expected);
+
+        // neither removal nor update through iterator is an access
+        for (Iterator<Map.Entry<Integer, String>> iterator = cache.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Integer, String> entry = iterator.next();
+            Integer key = entry.getKey();
+            if (key % 2 == 0) {
+                iterator.remove();
+            } else {
+                entry.setValue("longer value of " + key);
+            }
+        }
+        for (Iterator<Map.Entry<Integer, String>> iterator = expected.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Integer, String> entry = iterator.next();
+            if (entry.getKey() % 2 == 0) {
+                iterator.remove();
+            } else {
+                entry.setValue("longer value of " + entry.getKey());
+            }
+        }
+        assertSameContent(cache, expected);
+        // eldest entries are evicted in the same order
+        for (int key = 10000; key < 11000; key++) {
+            cache.put(key, "new");
+            expected.put(key, "new");
+            Assert.assertEquals(cache.keySet(), expected.keySet());
+        }
+        cache.clear();
+        Assert.assertEquals(cache.getBytes(), 0);
+    }
+
+    /**
+     * Compares copies, get of access ordered maps changes the order.
+     */
+    private static void assertSameContent(Map<Integer, String> actual, Map<Integer, String> expected) {
+        Assert.assertEquals(new HashMap<Integer, String>(actual), new HashMap<Integer, String>(expected));
+    }
+
+    @Test
+    public void testMaxBytes() throws IOException {
+        OffHeapLruCache<Long, String> cache = new OffHeapLruCache<Long, String>(0, 100000,
+                Serializers.LONG_SERIALIZER, Serializers.STRING_SERIALIZER);
+        for (long i = 0; i < 10000; i++) {
+            cache.put(i, "value" + i);
+            Assert.assertTrue(cache.getBytes() <= 100000);
+        }
+        Assert.assertTrue(cache.size() < 10000);
+        Assert.assertTrue(cache.containsKey(9999L));
+        Assert.assertFalse(cache.containsKey(0L));
+
+        long bytes = cache.getBytes();
+        cache.put(9999L, "much longer value");
+        Assert.assertEquals(cache.getBytes(), bytes + "much longer value".length() - "value9999".length());
+        cache.put(-1L, new String(new char[200000]));
+        Assert.assertFalse(cache.containsKey(-1L));
+
+        File file = File.createTempFile("lru", ".bin");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            cache.writeSnapshot(channel);
+            channel.position(0);
+            OffHeapLruCache<Long, String> loaded = new OffHeapLruCache<Long, String>(100, 0,
+                    Serializers.LONG_SERIALIZER, Serializers.STRING_SERIALIZER);
+            loaded.readSnapshot(channel);
+            raf.close();
+            Assert.assertEquals(loaded.size(), 100);
+            for (Map.Entry<Long, String> entry : loaded.entrySet()) {
+                Assert.assertEquals(entry.getValue(), cache.get(entry.getKey()));
+            }
+            loaded.clear();
+        } finally {
+            file.delete();
+        }
+        cache.clear();
+    }
+
+    @Test
+    public void testLimitsOfAllMutators() {
+        OffHeapLruCache<Integer, String> cache = new OffHeapLruCache<Integer, String>(10, 0,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        BiFunction<String, String, String> concat = new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String a, String b) {
+                return a + b;
+            }
+        };
+        Function<Integer, String> name = new Function<Integer, String>() {
+            @Override
+            public String apply(Integer key) {
+                return "computed" + key;
+            }
+        };
+        for (int key = 0; key < 1000; key++) {
+            cache.putIfAbsent(key, "value" + key);
+            Assert.assertTrue(cache.size() <= 10);
+            cache.mergeAtomic(key + 1000, "merged", concat);
+            Assert.assertTrue(cache.size() <= 10);
+            cache.computeIfAbsentAtomic(key + 2000, name);
+            Assert.assertTrue(cache.size() <= 10);
+        }
+        Assert.assertEquals(cache.size(), 10);
+        Assert.assertEquals(cache.get(2999), "computed2999");
+
+        OffHeapLruCache<Integer, Long> counters = new OffHeapLruCache<Integer, Long>(10, 0,
+                Serializers.INT_SERIALIZER, Serializers.LONG_SERIALIZER);
+        for (int key = 0; key < 1000; key++) {
+            counters.incrementAndGet(key);
+            counters.getAndSet(key + 1000, key);
+            Assert.assertTrue(counters.size() <= 10);
+        }
+        Assert.assertEquals(counters.get(1999), Long.valueOf(999));
+        counters.close();
+
+        // growing values by replace, merge and computeIfPresent respect the byte limit
+        OffHeapLruCache<Integer, String> bounded = new OffHeapLruCache<Integer, String>(0, 2000,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        for (int key = 0; key < 20; key++) {
+            bounded.put(key, "v");
+        }
+        long bytes = bounded.getBytes();
+        for (int key = 0; key < 20; key++) {
+            bounded.replace(key, "value of " + key + " grown by replace");
+            Assert.assertTrue(bounded.getBytes() <= 2000);
+            bounded.mergeAtomic(key, " and by merge", concat);
+            Assert.assertTrue(bounded.getBytes() <= 2000);
+            bounded.computeIfPresentAtomic(key, new BiFunction<Integer, String, String>() {
+                @Override
+                public String apply(Integer key, String value) {
+                    return value + value;
+                }
+            });
+            Assert.assertTrue(bounded.getBytes() <= 2000);
+        }
+        Assert.assertTrue(bounded.getBytes() > bytes);
+        Assert.assertTrue(bounded.size() < 20);
+        bounded.put(19, "small");
+        // entry larger than the whole cache is not kept
+        Assert.assertEquals(bounded.replace(19, new String(new char[5000])), "small");
+        Assert.assertFalse(bounded.containsKey(19));
+        bounded.close();
+        cache.close();
+    }
+
+    @Test
+    public void testTimeToLiveRespectsLimits() {
+        OffHeapLruCache<Integer, String> cache = new OffHeapLruCache<Integer, String>(10, 0,
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        for (int key = 0; key < 1000; key++) {
+            cache.put(key, "value" + key, 1, TimeUnit.HOURS);
+            Assert.assertTrue(cache.size() <= 10);
+        }
+        cache.put(null, "null key", 1, TimeUnit.HOURS);
+        Assert.assertEquals(cache.size(), 10);
+        Assert.assertEquals(cache.get(null), "null key");
+        Assert.assertEquals(cache.get(999), "value999");
+        Assert.assertFalse(cache.containsKey(989));
+        cache.close();
+    }
+
+    @Test
+    public void testBulkLoadRespectsLimits() {
+        Map<Integer, String> source = new LinkedHashMap<Integer, String>();
+        for (int key = 0; key < 3000; key++) {
+            source.put(key, "value" + key);
+        }
+        for (boolean uniqueKeys : new boolean[]{true, false}) {
+            OffHeapLruCache<Integer, String> cache = new OffHeapLruCache<Integer, String>(10, 0,
+                    Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+            cache.putAll(source.entrySet().iterator(), source.size(), uniqueKeys);
+            Assert.assertEquals(cache.size(), 10);
+            Assert.assertEquals(cache.get(2999), "value2999");
+            Assert.assertFalse(cache.containsKey(2989));
+            cache.close();
+        }
+    }
+}
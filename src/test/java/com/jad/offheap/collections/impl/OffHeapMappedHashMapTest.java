@@ -0,0 +1,135 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.collections.serializer.Serializers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/23/14
+ */
+
+@Test
+public class OffHeapMappedHashMapTest {
+
+    @Test
+    public void testReopen() throws IOException {
+        File file = File.createTempFile("mapped", ".map");
+        file.delete();
+        try {
+            // small regions, so bucket array spans several of them
+            OffHeapMappedHashMap<Integer, String> map = new OffHeapMappedHashMap<Integer, String>(file, 16, 0.75f,
+                    OffHeapMappedHashMap.MIN_REGION_SIZE, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+            Map<Integer, String> expected = new HashMap<Integer, String>();
+            Random random = new Random(17);
+            for (int i = 0; i < 100000; i++) {
+                int key = random.nextInt(20000);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        String value = random.nextInt(10) == 0 ? null : "value" + random.nextInt(1 << random.nextInt(30));
+                        Assert.assertEquals(map.put(key, value), expected.put(key, value));
+                        break;
+                    case 1:
+                        Assert.assertEquals(map.remove(key), expected.remove(key));
+                        break;
+                    default:
+                        Assert.assertEquals(map.get(key), expected.get(key));
+                }
+            }
+            Assert.assertEquals(map, expected);
+            map.close();
+
+            map = new OffHeapMappedHashMap<Integer, String>(file, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+            Assert.assertEquals(map.size(), expected.size());
+            Assert.assertEquals(map, expected);
+
+            for (Iterator<Map.Entry<Integer, String>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<Integer, String> entry = iterator.next();
+                if (entry.getKey() % 3 == 0) {
+                    expected.remove(entry.getKey());
+                    iterator.remove();
+                } else {
+                    entry.setValue("long value " + entry.getKey());
+                    expected.put(entry.getKey(), "long value " + entry.getKey());
+                }
+            }
+            map.force();
+            map.put(-1, "not forced");
+
+            try {
+                new OffHeapMappedHashMap<Integer, String>(file, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+                Assert.fail("Dirty file is opened");
+            } catch (IOException e) {
+                // expected
+            }
+            map.remove(-1);
+            map.close();
+
+            map = new OffHeapMappedHashMap<Integer, String>(file, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+            Assert.assertEquals(map, expected);
+            map.clear();
+            Assert.assertTrue(map.isEmpty());
+            map.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGrowAfterReopen() throws IOException {
+        File file = File.createTempFile("mapped", ".map");
+        file.delete();
+        try {
+            OffHeapMappedHashMap<String, String> map = new OffHeapMappedHashMap<String, String>(file, 16, 0.75f,
+                    OffHeapMappedHashMap.MIN_REGION_SIZE, Serializers.STRING_SERIALIZER,
+                    Serializers.STRING_SERIALIZER);
+            Map<String, String> expected = new HashMap<String, String>();
+            for (int i = 0; i < 5000; i++) {
+                map.put("key" + i, "value" + i);
+                expected.put("key" + i, "value" + i);
+            }
+            map.close();
+
+            map = new OffHeapMappedHashMap<String, String>(file, Serializers.STRING_SERIALIZER,
+                    Serializers.STRING_SERIALIZER);
+            Assert.assertEquals(map.sizeLong(), 5000);
+            Assert.assertEquals(map, expected);
+            for (int i = 5000; i < 20000; i++) {
+                map.put("key" + i, "value" + i);
+                expected.put("key" + i, "value" + i);
+            }
+            Assert.assertEquals(map.remove("key7"), "value7");
+            expected.remove("key7");
+            map.close();
+
+            map = new OffHeapMappedHashMap<String, String>(file, Serializers.STRING_SERIALIZER,
+                    Serializers.STRING_SERIALIZER);
+            Assert.assertTrue(map.capacity() >= 16384);
+            Assert.assertEquals(map, expected);
+            map.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testNotMapFile() throws IOException {
+        File file = File.createTempFile("mapped", ".map");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[4096]);
+            out.close();
+            new OffHeapMappedHashMap<Integer, String>(file, Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.collections.serializer.Serializers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 01/26/14
+ */
+
+@Test
+public class OffHeapOpenHashMapTest {
+
+    @Test
+    public void testSameAsHashMap() {
+        OffHeapOpenHashMap<Integer, String> map = new OffHeapOpenHashMap<Integer, String>(
+                Serializers.INT_SERIALIZER, Serializers.STRING_SERIALIZER);
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(5000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    Assert.assertEquals(map.put(key, "v" + i), expected.put(key, "v" + i));
+                    break;
+                case 1:
+                    Assert.assertEquals(map.remove(key), expected.remove(key));
+                    break;
+                default:
+                    Assert.assertEquals(map.get(key), expected.get(key));
+            }
+        }
+        Assert.assertEquals(map.size(), expected.size());
+        Assert.assertEquals(map, expected);
+
+        int removed = 0;
+        for (Iterator<Map.Entry<Integer, String>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Integer, String> entry = iterator.next();
+            Integer key = entry.getKey();
+            Assert.assertEquals(entry.getValue(), expected.get(key));
+            if (key % 2 == 0) {
+                iterator.remove();
+                expected.remove(key);
+                removed++;
+            }
+        }
+        Assert.assertTrue(removed > 0);
+        Assert.assertEquals(map, expected);
+
+        map.put(null, "null");
+        Assert.assertEquals(map.get(null), "null");
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get(1));
+    }
+}
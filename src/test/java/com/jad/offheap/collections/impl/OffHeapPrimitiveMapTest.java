@@ -0,0 +1,218 @@
+package com.jad.offheap.collections.impl;
+
+import com.jad.offheap.allocator.SlabAllocator;
+import com.jad.offheap.collections.serializer.Serializers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/02/14
+ */
+
+@Test
+public class OffHeapPrimitiveMapTest {
+
+    @Test
+    public void testLongLongMap() {
+        OffHeapLongLongMap map = new OffHeapLongLongMap(4, 0.75f, -1);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(11);
+        for (int i = 0; i < 300000; i++) {
+            long key = random.nextInt(4000) - 100;
+            switch (random.nextInt(3)) {
+                case 0:
+                    Long previous = expected.put(key, (long) i);
+                    Assert.assertEquals(map.put(key, i), previous == null ? -1 : previous.longValue());
+                    break;
+                case 1:
+                    previous = expected.remove(key);
+                    Assert.assertEquals(map.remove(key), previous == null ? -1 : previous.longValue());
+                    break;
+                default:
+                    previous = expected.get(key);
+                    Assert.assertEquals(map.get(key), previous == null ? -1 : previous.longValue());
+                    Assert.assertEquals(map.containsKey(key), previous != null);
+            }
+            Assert.assertEquals(map.size(), expected.size());
+        }
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertFalse(map.containsKey(0));
+    }
+
+    @Test
+    public void testIntKeyMaps() {
+        OffHeapIntIntMap intMap = new OffHeapIntIntMap();
+        OffHeapLongIntMap longMap = new OffHeapLongIntMap();
+        for (int i = -1000; i < 1000; i++) {
+            intMap.put(i, i * 2);
+            longMap.put(i * 1000000007L, i * 3);
+        }
+        for (int i = -1000; i < 1000; i += 2) {
+            Assert.assertEquals(intMap.remove(i), i * 2);
+            Assert.assertEquals(longMap.remove(i * 1000000007L), i * 3);
+        }
+        Assert.assertEquals(intMap.size(), 1000);
+        Assert.assertEquals(longMap.size(), 1000);
+        for (int i = -1000; i < 1000; i++) {
+            Assert.assertEquals(intMap.get(i), i % 2 == 0 ? 0 : i * 2);
+            Assert.assertEquals(longMap.get(i * 1000000007L), i % 2 == 0 ? 0 : i * 3);
+        }
+    }
+
+    @Test
+    public void testObjectValueMaps() {
+        OffHeapLongObjectMap<String> map = new OffHeapLongObjectMap<String>(16, 0.75f,
+                Serializers.STRING_SERIALIZER, new SlabAllocator(4096, 256));
+        Map<Long, String> expected = new HashMap<Long, String>();
+        Random random = new Random(13);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(2000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    String value = i % 10 == 0 ? null : "value" + random.nextInt(i + 1);
+                    Assert.assertEquals(map.put(key, value), expected.put(key, value));
+                    break;
+                case 1:
+                    Assert.assertEquals(map.remove(key), expected.remove(key));
+                    break;
+                default:
+                    Assert.assertEquals(map.get(key), expected.get(key));
+                    Assert.assertEquals(map.containsKey(key), expected.containsKey(key));
+            }
+        }
+        Assert.assertEquals(map.size(), expected.size());
+        map.clear();
+        Assert.assertNull(map.get(1));
+
+        OffHeapIntObjectMap<Long> intMap = new OffHeapIntObjectMap<Long>(Serializers.LONG_SERIALIZER);
+        for (int i = 0; i < 1000; i++) {
+            intMap.put(i, (long) i << 32);
+        }
+        Assert.assertEquals(intMap.get(999), Long.valueOf(999L << 32));
+        Assert.assertEquals(intMap.remove(0), Long.valueOf(0));
+        Assert.assertFalse(intMap.containsKey(0));
+        intMap.close();
+        Assert.assertTrue(intMap.isClosed());
+        Assert.assertEquals(intMap.size(), 0);
+        try {
+            intMap.get(1);
+            Assert.fail();
+        } catch (IllegalStateException closed) {
+        }
+        map.close();
+    }
+
+    @Test
+    public void testLongHashSet() {
+        OffHeapLongHashSet set = new OffHeapLongHashSet(4, 0.75f);
+        Set<Long> expected = new HashSet<Long>();
+        Random random = new Random(13);
+        for (int i = 0; i < 300000; i++) {
+            long value = random.nextInt(4000) - 100;
+            switch (random.nextInt(3)) {
+                case 0:
+                    Assert.assertEquals(set.add(value), expected.add(value));
+                    break;
+                case 1:
+                    Assert.assertEquals(set.remove(value), expected.remove(value));
+                    break;
+                default:
+                    Assert.assertEquals(set.contains(value), expected.contains(value));
+            }
+            Assert.assertEquals(set.size(), expected.size());
+        }
+        Assert.assertTrue(set.add(Long.MIN_VALUE));
+        expected.add(Long.MIN_VALUE);
+
+        // removal shifts slots, the iterator still sees every value once
+        int before = set.size();
+        Set<Long> seen = new HashSet<Long>();
+        LongIterator iterator = set.iterator();
+        while (iterator.hasNext()) {
+            long value = iterator.next();
+            Assert.assertTrue(seen.add(value));
+            if (value % 3 != 0) {
+                iterator.remove();
+                expected.remove(value);
+            }
+        }
+        Assert.assertEquals(seen.size(), before);
+        Assert.assertEquals(set.size(), expected.size());
+        for (long value : expected) {
+            Assert.assertTrue(set.contains(value));
+        }
+        iterator = set.iterator();
+        while (iterator.hasNext()) {
+            Assert.assertTrue(expected.remove(iterator.next()));
+        }
+        Assert.assertTrue(expected.isEmpty());
+        try {
+            set.iterator().remove();
+            Assert.fail();
+        } catch (IllegalStateException nothingReturned) {
+        }
+        set.close();
+        try {
+            set.contains(1);
+            Assert.fail();
+        } catch (IllegalStateException closed) {
+        }
+    }
+
+    @Test
+    public void testIntHashSet() {
+        OffHeapIntHashSet set = new OffHeapIntHashSet();
+        for (int i = -1000; i < 1000; i++) {
+            Assert.assertTrue(set.add(i * 7919));
+        }
+        Assert.assertFalse(set.add(0));
+        Assert.assertEquals(set.size(), 2000);
+        Assert.assertTrue(set.remove(0));
+        Assert.assertFalse(set.contains(0));
+        Assert.assertTrue(set.contains(-7919));
+        Set<Integer> seen = new HashSet<Integer>();
+        IntIterator iterator = set.iterator();
+        while (iterator.hasNext()) {
+            int value = iterator.next();
+            Assert.assertTrue(seen.add(value));
+            iterator.remove();
+        }
+        Assert.assertEquals(seen.size(), 1999);
+        Assert.assertTrue(set.isEmpty());
+        set.close();
+    }
+
+    @Test
+    public void testLongSize() {
+        Assert.assertTrue(OffHeapPrimitiveTable.MAXIMUM_CAPACITY > Integer.MAX_VALUE);
+        OffHeapLongHashSet set = new OffHeapLongHashSet();
+        for (long i = 0; i < 1000; i++) {
+            set.add(i << 33);
+        }
+        Assert.assertEquals(set.sizeLong(), 1000);
+        Assert.assertEquals(set.size(), 1000);
+        // count beyond int range is only reported, not allocated
+        set.size = Integer.MAX_VALUE + 10L;
+        Assert.assertEquals(set.sizeLong(), Integer.MAX_VALUE + 10L);
+        Assert.assertEquals(set.size(), Integer.MAX_VALUE);
+        set.size = 1000;
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertTrue(set.contains(i << 33));
+        }
+        Assert.assertTrue(set.capacity() >= 1024);
+        set.close();
+
+        OffHeapIntHashSet ints = new OffHeapIntHashSet(100000L, 0.5f);
+        Assert.assertEquals(ints.capacity(), 1L << 18);
+        Assert.assertTrue(ints.add(7));
+        ints.close();
+    }
+}
@@ -31,6 +31,7 @@ public class SimpleUsageMap {
     }
 
     private static class People implements Serializable {
+        private static final long serialVersionUID = 1L;
 
         private String name;
 
@@ -0,0 +1,86 @@
+package com.jad.offheap.collections.serializer;
+
+import com.jad.offheap.UnsafeWrapper;
+import com.jad.offheap.collections.impl.OffHeapHashMap;
+import com.jad.offheap.collections.impl.OffHeapHashSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author: Ilya Krokhmalyov jad7kii@gmail.com
+ * @since: 02/16/14
+ */
+
+@Test
+public class DirectSerializerTest {
+    private static UnsafeWrapper unsafe = UnsafeWrapper.unsafeWrapper;
+    private static final int BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+
+    @Test
+    public void testSameBytesAsSerialize() {
+        checkSameBytes((DirectSerializer<Long>) Serializers.LONG_SERIALIZER, Long.MIN_VALUE, -1L, 0L, 42L, Long.MAX_VALUE);
+        checkSameBytes((DirectSerializer<Integer>) Serializers.INT_SERIALIZER, Integer.MIN_VALUE, -1, 0, 42, Integer.MAX_VALUE);
+        checkSameBytes((DirectSerializer<String>) Serializers.STRING_SERIALIZER, "", "ascii", "\u00e9t\u00e9",
+                "\u4e2d\u6587", "\ud83d\ude00 smile", "\ud800 unpaired", "tail \udc00");
+    }
+
+    private static <T> void checkSameBytes(DirectSerializer<T> serializer, T... values) {
+        for (T value : values) {
+            byte[] expected = serializer.serialize(value);
+            int size = serializer.sizeOf(value);
+            Assert.assertEquals(size, expected.length);
+            long address = unsafe.allocateMemory(Math.max(size, 1));
+            try {
+                serializer.write(value, address);
+                byte[] actual = new byte[size];
+                unsafe.copyMemory(null, address, actual, BYTE_ARRAY_OFFSET, size);
+                Assert.assertTrue(Arrays.equals(actual, expected), String.valueOf(value));
+                Assert.assertEquals(serializer.read(address, size), serializer.deserialize(expected));
+            } finally {
+                unsafe.freeMemory(address);
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedUtf8() {
+        DirectSerializer<String> serializer = (DirectSerializer<String>) Serializers.STRING_SERIALIZER;
+        byte[] bytes = {'a', (byte) 0xC0, (byte) 0x80, (byte) 0xE4, 'b'};
+        long address = unsafe.allocateMemory(bytes.length);
+        try {
+            unsafe.copyMemory(bytes, BYTE_ARRAY_OFFSET, null, address, bytes.length);
+            Assert.assertEquals(serializer.read(address, bytes.length), serializer.deserialize(bytes));
+        } finally {
+            unsafe.freeMemory(address);
+        }
+    }
+
+    @Test
+    public void testCollections() {
+        OffHeapHashMap<String, Long> map = new OffHeapHashMap<String, Long>(Serializers.STRING_SERIALIZER,
+                Serializers.LONG_SERIALIZER);
+        for (long i = 0; i < 1000; i++) {
+            map.put("key\u00ff" + i, i);
+        }
+        map.put("null", null);
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertEquals(map.get("key\u00ff" + i), Long.valueOf(i));
+            map.put("key\u00ff" + i, i * 3);
+        }
+        Assert.assertEquals(map.get("key\u00ff" + 7), Long.valueOf(21));
+        Assert.assertNull(map.get("null"));
+        Assert.assertTrue(map.containsKey("null"));
+        Assert.assertEquals(map.remove("key\u00ff" + 7), Long.valueOf(21));
+        Assert.assertEquals(map.size(), 1000);
+
+        OffHeapHashSet<Integer> set = new OffHeapHashSet<Integer>(Serializers.INT_SERIALIZER);
+        for (int i = -500; i < 500; i++) {
+            set.add(i);
+        }
+        Assert.assertTrue(set.contains(-500));
+        Assert.assertFalse(set.contains(500));
+        Assert.assertEquals(set.size(), 1000);
+    }
+}